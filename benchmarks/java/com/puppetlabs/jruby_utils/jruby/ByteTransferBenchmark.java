@@ -0,0 +1,77 @@
+package com.puppetlabs.jruby_utils.jruby;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.jruby.embed.LocalContextScope;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares passing a payload through a Ruby method and back as a Java String,
+ * which is converted to a Ruby String and back again, against passing it as
+ * bytes wrapped with {@code wrapBytes} and taking the result with
+ * {@code callMethodForBytes}, which share the payload's storage.  The
+ * interesting measure is the allocation per call, so run with the GC
+ * profiler and compare {@code gc.alloc.rate.norm}:
+ *
+ *   lein with-profile +benchmark run -m org.openjdk.jmh.Main ByteTransferBenchmark -prof gc
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ByteTransferBenchmark {
+
+    @Param({"65536", "4194304"})
+    public int size;
+
+    private InternalScriptingContainer container;
+    private Object receiver;
+    private String string;
+    private byte[] bytes;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        container = new InternalScriptingContainer(LocalContextScope.SINGLETHREAD);
+        // Returns its argument, so that only the transfer in and out is
+        // measured
+        receiver = container.runScriptlet(
+                "Object.new.tap { |o| def o.same(s); s; end }");
+        bytes = new byte[size];
+        Arrays.fill(bytes, (byte) 'x');
+        string = new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        container.terminate();
+    }
+
+    @Benchmark
+    public Object string() {
+        return container.callMethodWithArgArray(receiver, "same",
+                new Object[]{string}, String.class);
+    }
+
+    @Benchmark
+    public ByteBuffer wrappedBytes() {
+        return container.callMethodForBytes(receiver, "same",
+                new Object[]{container.wrapBytes(bytes)});
+    }
+}
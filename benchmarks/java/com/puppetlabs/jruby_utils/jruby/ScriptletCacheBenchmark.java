@@ -0,0 +1,68 @@
+package com.puppetlabs.jruby_utils.jruby;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jruby.embed.LocalContextScope;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares running the same small scriptlet over and over with
+ * {@code runScriptlet}, which parses it every time, against
+ * {@code runCachedScriptlet}, which only parses it the first time.  The
+ * difference is the cost of parsing, which dominates for scriptlets this
+ * small.
+ *
+ * Run with:
+ *
+ *   lein with-profile +benchmark run -m org.openjdk.jmh.Main ScriptletCacheBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ScriptletCacheBenchmark {
+
+    @Param({
+        "1 + 2",
+        "[1, 2, 3].map { |x| x * 2 }.reduce(:+)",
+        "h = { 'a' => 1, 'b' => 2 }; h.select { |k, v| v > 1 }.keys.first"
+    })
+    public String script;
+
+    private InternalScriptingContainer container;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        container = new InternalScriptingContainer(LocalContextScope.SINGLETHREAD);
+        container.runScriptlet(script);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        container.terminate();
+    }
+
+    @Benchmark
+    public Object runScriptlet() {
+        return container.runScriptlet(script);
+    }
+
+    @Benchmark
+    public Object runCachedScriptlet() {
+        return container.runCachedScriptlet(script);
+    }
+}
@@ -0,0 +1,70 @@
+package com.puppetlabs.jruby_utils.pool;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares the latency of borrowing from a saturated JRubyPool in the default
+ * mode against fair mode.  More threads borrow than there are elements in the
+ * pool, so most borrows have to wait for an element to be returned.  The
+ * sample-time mode reports the latency distribution, including the p99 and
+ * p99.99 percentiles which are where the two modes differ most.
+ *
+ * Run with:
+ *
+ *   lein with-profile +benchmark run -m org.openjdk.jmh.Main JRubyPoolBenchmark
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(16)
+@State(Scope.Benchmark)
+public class JRubyPoolBenchmark {
+
+    @Param({"false", "true"})
+    public boolean fair;
+
+    @Param({"4"})
+    public int size;
+
+    // Amount of work done while an element is borrowed, in JMH's
+    // arbitrary `consumeCPU` tokens.
+    @Param({"1000"})
+    public long work;
+
+    private JRubyPool<Object> pool;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        pool = new JRubyPool<>(size, fair);
+        for (int i = 0; i < size; i++) {
+            pool.register(new Object());
+        }
+    }
+
+    @Benchmark
+    public void borrowAndRelease() throws InterruptedException {
+        Object item = pool.borrowItem();
+        try {
+            Blackhole.consumeCPU(work);
+        } finally {
+            pool.releaseItem(item);
+        }
+    }
+}
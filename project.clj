@@ -54,7 +54,12 @@
                                   (if (= 17 (java.lang.Integer/parseInt major))
                                     ["--add-opens" "java.base/sun.nio.ch=ALL-UNNAMED" "--add-opens" "java.base/java.io=ALL-UNNAMED"]
                                     [])))}
-             :testutils {:source-paths ^:replace ["test/unit" "test/integration"]}}
+             :testutils {:source-paths ^:replace ["test/unit" "test/integration"]}
+             ;; JMH micro-benchmarks for the Java pool implementations, run with
+             ;; `lein with-profile +benchmark run -m org.openjdk.jmh.Main`
+             :benchmark {:java-source-paths ["benchmarks/java"]
+                         :dependencies [[org.openjdk.jmh/jmh-core "1.37"]
+                                        [org.openjdk.jmh/jmh-generator-annprocess "1.37"]]}}
 
   :plugins [[lein-parent "0.3.7"]
             [puppetlabs/i18n "0.8.0" :hooks false]])
@@ -0,0 +1,184 @@
+(ns puppetlabs.services.jruby-pool-manager.impl.borrow-recorder
+  (:require [clojure.tools.logging :as log]
+            [schema.core :as schema]
+            [puppetlabs.services.jruby-pool-manager.jruby-schemas :as jruby-schemas]
+            [puppetlabs.services.jruby-pool-manager.impl.jruby-internal :as jruby-internal]
+            [puppetlabs.i18n.core :as i18n])
+  (:import (clojure.lang IFn)
+           (com.puppetlabs.jruby_utils.pool BorrowJournal BorrowReplay BorrowReplay$Report
+                                            LockablePool)
+           (java.nio.file Paths)
+           (java.util.concurrent ConcurrentHashMap)
+           (java.util.concurrent.atomic AtomicReference)
+           (java.util.function Supplier)))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+;;; Private
+
+;; The events of a pool don't carry timings, so the recorder derives them:
+;; a borrow waits from its `:instance-requested` event to its
+;; `:instance-borrowed` event, which are raised on the same thread, and holds
+;; its instance until the `:instance-returned` event raised on that thread for
+;; that instance.  The pool lock is timed the same way.
+
+(def max-reason-length
+  "Reasons are recorded as their printed form, truncated to this many
+  characters."
+  256)
+
+(defn- reason-key
+  "The part of `reason` which is recorded. Reasons given for requests are
+  usually maps holding the whole request, which would give nearly every
+  event a distinct reason, so a map is recorded as the `:request-method` and
+  `:route-id` of its `:request`, if it has one, or else as its keys."
+  [reason]
+  (cond
+    (map? reason) (if-let [request (:request reason)]
+                    (if (map? request)
+                      [(:request-method request) (:route-id request)]
+                      :request)
+                    (set (keys reason)))
+    (nil? reason) 'nil
+    (or (keyword? reason) (symbol? reason) (string? reason)) reason
+    :else (class reason)))
+
+(defn- describe-reason
+  [reason]
+  (let [s (pr-str reason)]
+    (if (> (count s) max-reason-length)
+      (subs s 0 max-reason-length)
+      s)))
+
+(defn- instance-id
+  [instance]
+  (if (jruby-schemas/jruby-instance? instance)
+    (:id instance)
+    -1))
+
+(defn- borrow-key
+  [instance]
+  (bit-or (bit-shift-left (.getId (Thread/currentThread)) 32)
+          (bit-and (instance-id instance) 0xffffffff)))
+
+(defn- thread-local-timestamp
+  ^ThreadLocal []
+  (ThreadLocal/withInitial (reify Supplier
+                             (get [_] (long-array 1)))))
+
+(defn- elapsed-since
+  [^long start]
+  (if (zero? start)
+    0
+    (- (System/nanoTime) start)))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+;;; Public
+
+(schema/defn create-journal :- BorrowJournal
+  "Creates a journal at `path` with room for `max-records` events,
+  replacing any existing file. Each event takes 32 bytes."
+  [path :- schema/Str
+   max-records :- schema/Int]
+  (BorrowJournal. (Paths/get path (into-array String [])) max-records))
+
+(schema/defn event-handler :- IFn
+  "Returns an event handler, to be passed to
+  `jruby-core/register-event-handler`, which records the borrows, returns and
+  locks of a pool to `journal`, with their reasons, wait times and hold
+  times. Only a bounded part of each reason is recorded; see `reason-key`."
+  [journal :- BorrowJournal]
+  (let [^BorrowJournal journal journal
+        requested (thread-local-timestamp)
+        borrows (ConcurrentHashMap.)
+        lock-requested (thread-local-timestamp)
+        lock-acquired (AtomicReference.)
+        ;; Printing a reason is only done the first time it is seen
+        reason-ids (ConcurrentHashMap.)
+        reason-id (fn [reason]
+                    (let [k (reason-key reason)]
+                      (or (.get reason-ids k)
+                          (let [id (.reasonId journal (describe-reason k))]
+                            (.putIfAbsent reason-ids k id)
+                            id))))]
+    (fn [{:keys [type reason instance]}]
+      (case type
+        :instance-requested
+        (aset ^longs (.get requested) 0 (System/nanoTime))
+
+        :instance-borrowed
+        (let [^longs start (.get requested)
+              wait (elapsed-since (aget start 0))]
+          (aset start 0 0)
+          (when (jruby-schemas/jruby-instance? instance)
+            (.put borrows (borrow-key instance) (long-array [(System/nanoTime) wait])))
+          (.append journal BorrowJournal/BORROWED (instance-id instance) (reason-id reason) wait 0))
+
+        :instance-returned
+        (let [^longs borrow (.remove borrows (borrow-key instance))
+              [hold wait] (if borrow
+                            [(elapsed-since (aget borrow 0)) (aget borrow 1)]
+                            [0 0])]
+          (.append journal BorrowJournal/RETURNED (instance-id instance) (reason-id reason) wait hold))
+
+        :lock-requested
+        (aset ^longs (.get lock-requested) 0 (System/nanoTime))
+
+        :lock-acquired
+        (let [^longs start (.get lock-requested)
+              stall (elapsed-since (aget start 0))]
+          (aset start 0 0)
+          (.set lock-acquired (long-array [(System/nanoTime) stall]))
+          (.append journal BorrowJournal/LOCK_ACQUIRED -1 (reason-id reason) stall 0))
+
+        :lock-released
+        (let [^longs acquired (.getAndSet lock-acquired nil)
+              [hold stall] (if acquired
+                             [(elapsed-since (aget acquired 0)) (aget acquired 1)]
+                             [0 0])]
+          (.append journal BorrowJournal/LOCK_RELEASED -1 (reason-id reason) stall hold))
+
+        nil))))
+
+(schema/defn close-journal!
+  "Closes `journal`, writing its reasons alongside it, and logs how many
+  events it recorded."
+  [journal :- BorrowJournal]
+  (.close journal)
+  (let [dropped (.getDroppedCount journal)]
+    (log/info (i18n/trs "Recorded {0} pool events to the borrow journal" (.getRecordCount journal)))
+    (when (pos? dropped)
+      (log/warn (i18n/trs "{0} pool events were not recorded because the borrow journal was full"
+                          dropped)))))
+
+(schema/defn replay-pool :- LockablePool
+  "Creates an empty pool of the kind the pools created from `config` use, and
+  registers stand-ins for its instances, for `replay` to borrow."
+  [config :- jruby-schemas/JRubyConfig]
+  (let [size (:max-active-instances config)]
+    (if (:multithreaded config)
+      (doto (jruby-internal/instantiate-reference-pool size)
+        (.register (Object.)))
+      (let [pool (jruby-internal/instantiate-instance-pool size (:fair-borrows config))]
+        (dotimes [_ size]
+          (.register pool (Object.)))
+        pool))))
+
+(schema/defn replay :- BorrowReplay$Report
+  "Replays the borrows and locks recorded in the journal at `path` against
+  `pool-or-config`: either a LockablePool, with its elements registered, or
+  a JRubyConfig from which to create a pool with `replay-pool`. `speed` is
+  how many times faster than recorded to replay. Blocks until the replay is
+  complete, and returns its report."
+  ([path :- schema/Str
+    pool-or-config :- (schema/either LockablePool jruby-schemas/JRubyConfig)]
+   (replay path pool-or-config 1.0))
+  ([path :- schema/Str
+    pool-or-config :- (schema/either LockablePool jruby-schemas/JRubyConfig)
+    speed :- schema/Num]
+   (let [pool (if (instance? LockablePool pool-or-config)
+                pool-or-config
+                (replay-pool pool-or-config))
+         records (BorrowJournal/read (Paths/get path (into-array String [])))
+         report (.run (BorrowReplay. records (double speed)) pool)]
+     (log/info (i18n/trs "Replayed borrow journal {0}:\n{1}" path (str report)))
+     report)))
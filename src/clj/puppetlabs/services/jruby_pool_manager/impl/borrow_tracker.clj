@@ -0,0 +1,170 @@
+(ns puppetlabs.services.jruby-pool-manager.impl.borrow-tracker
+  (:require [clojure.tools.logging :as log]
+            [schema.core :as schema]
+            [puppetlabs.services.jruby-pool-manager.jruby-schemas :as jruby-schemas]
+            [puppetlabs.i18n.core :as i18n])
+  (:import (puppetlabs.services.jruby_pool_manager.jruby_schemas JRubyInstance)
+           (java.util.concurrent ConcurrentHashMap Executors ScheduledExecutorService
+                                 ThreadFactory TimeUnit)
+           (java.util.concurrent.atomic AtomicBoolean)
+           (java.util.function BiFunction)))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+;;; Private
+
+(def max-watchdog-interval
+  "The longest time, in milliseconds, between two checks for long borrows."
+  10000)
+
+(defn- watchdog-service
+  []
+  (Executors/newSingleThreadScheduledExecutor
+   (reify ThreadFactory
+     (newThread [_ runnable]
+       (doto (Thread. ^Runnable runnable "jruby-borrow-watchdog")
+         (.setDaemon true))))))
+
+;; Borrows are keyed by the thread which made them and the instance borrowed,
+;; so that the usual return, by the borrowing thread, finds its record without
+;; looking through the others. Both are compared by identity, since `equals`
+;; on a JRubyInstance record is a deep comparison. A thread may borrow the
+;; same instance of a multithreaded pool more than once, so each key holds a
+;; vector of records, the latest borrow last.
+(deftype BorrowKey [owner borrowed]
+  Object
+  (equals [_ other]
+    (and (instance? BorrowKey other)
+         (identical? owner (.-owner ^BorrowKey other))
+         (identical? borrowed (.-borrowed ^BorrowKey other))))
+  (hashCode [_]
+    (unchecked-add-int (unchecked-multiply-int 31 (System/identityHashCode owner))
+                       (System/identityHashCode borrowed))))
+
+(defn- remove-latest-borrow!
+  "Removes the latest record under `key`, returning it, or nil if there is
+  none."
+  [^ConcurrentHashMap borrows key]
+  (let [removed (volatile! nil)]
+    (.computeIfPresent borrows key
+                       (reify BiFunction
+                         (apply [_ _ records]
+                           (vreset! removed (peek records))
+                           (let [remaining (pop records)]
+                             (when (seq remaining) remaining)))))
+    @removed))
+
+(defn- borrow-entries
+  "The borrows currently recorded by the tracker, oldest first."
+  [{:keys [^ConcurrentHashMap borrows]}]
+  (sort-by :borrowed-at (mapcat identity (vals borrows))))
+
+(defn- stack-lines
+  [^Throwable stack]
+  (mapv str (.getStackTrace stack)))
+
+(schema/defn ^:always-validate
+  describe-borrow :- jruby-schemas/OutstandingBorrow
+  [{:keys [instance ^Thread thread reason borrowed-at stack]} now]
+  (cond-> {:instance-id (:id instance)
+           :thread (.getName thread)
+           :reason reason
+           :borrowed-at borrowed-at
+           :held-ms (- now borrowed-at)}
+    stack (assoc :stack (stack-lines stack))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+;;; Public
+
+(schema/defn ^:always-validate
+  create-borrow-tracker :- jruby-schemas/BorrowTracker
+  [config :- jruby-schemas/JRubyConfig]
+  {:borrows (ConcurrentHashMap.)
+   :capture-stacks? (:capture-borrow-stacks config)
+   :watchdog (atom nil)})
+
+(schema/defn borrow-started!
+  "Records that the current thread has borrowed `instance`. The stack is only
+  captured if the tracker was configured to, and even then is not walked
+  until it is reported."
+  [{:keys [^ConcurrentHashMap borrows capture-stacks?]} :- jruby-schemas/BorrowTracker
+   instance :- JRubyInstance
+   reason :- schema/Any]
+  (let [thread (Thread/currentThread)
+        record {:instance instance
+                :thread thread
+                :reason reason
+                :borrowed-at (System/currentTimeMillis)
+                :stack (when capture-stacks?
+                         (Exception. (i18n/trs "JRubyInstance {0} borrowed here" (:id instance))))
+                :reported? (AtomicBoolean. false)}]
+    (.merge borrows
+            (BorrowKey. thread instance)
+            [record]
+            (reify BiFunction
+              (apply [_ records _]
+                (conj records record))))))
+
+(schema/defn borrow-ended!
+  "Removes the record of a borrow of `instance`, returning it. With a
+  multithreaded pool the same instance can be borrowed many times at once, so
+  the latest borrow made by the current thread is removed, which is found
+  directly. Instances are occasionally returned by a different thread to the
+  one that borrowed them, in which case any borrow of the instance is removed,
+  after looking through the others."
+  [{:keys [^ConcurrentHashMap borrows]} :- jruby-schemas/BorrowTracker
+   instance :- JRubyInstance]
+  (or (remove-latest-borrow! borrows (BorrowKey. (Thread/currentThread) instance))
+      (some (fn [^BorrowKey key]
+              (when (identical? instance (.-borrowed key))
+                (remove-latest-borrow! borrows key)))
+            (.keySet borrows))))
+
+(schema/defn ^:always-validate
+  outstanding-borrows :- [jruby-schemas/OutstandingBorrow]
+  "Describes every borrow which has not yet been returned, oldest first."
+  [tracker :- jruby-schemas/BorrowTracker]
+  (let [now (System/currentTimeMillis)]
+    (mapv #(describe-borrow % now) (borrow-entries tracker))))
+
+(schema/defn report-long-borrows!
+  "Logs a warning for each borrow which has been held for longer than
+  `threshold` milliseconds. Each borrow is only reported once."
+  [tracker :- jruby-schemas/BorrowTracker
+   threshold :- schema/Int]
+  (let [now (System/currentTimeMillis)]
+    (doseq [{:keys [borrowed-at ^AtomicBoolean reported? stack] :as entry} (borrow-entries tracker)
+            :while (>= (- now borrowed-at) threshold)
+            :when (.compareAndSet reported? false true)]
+      (let [{:keys [instance-id thread reason held-ms]} (describe-borrow entry now)
+            message (i18n/trs "JRubyInstance {0} has been borrowed by thread {1} for {2}ms, for reason: {3}"
+                              instance-id thread held-ms (pr-str reason))]
+        (if stack
+          (log/warn stack message)
+          (log/warn message))))))
+
+(schema/defn start-watchdog!
+  "Starts a background thread which periodically reports borrows held for
+  longer than `threshold` milliseconds. Does nothing if `threshold` is not
+  positive."
+  [{:keys [watchdog] :as tracker} :- jruby-schemas/BorrowTracker
+   threshold :- schema/Int]
+  (when (pos? threshold)
+    (let [interval (min threshold max-watchdog-interval)
+          ^ScheduledExecutorService service (watchdog-service)]
+      (.scheduleWithFixedDelay service
+                               ^Runnable (fn []
+                                           (try
+                                             (report-long-borrows! tracker threshold)
+                                             (catch Exception e
+                                               (log/error e (i18n/trs "Error checking for long JRubyInstance borrows")))))
+                               interval
+                               interval
+                               TimeUnit/MILLISECONDS)
+      (reset! watchdog service))))
+
+(schema/defn stop-watchdog!
+  "Stops the background thread started by `start-watchdog!`, if any."
+  [{:keys [watchdog]} :- jruby-schemas/BorrowTracker]
+  (when-let [^ScheduledExecutorService service @watchdog]
+    (.shutdownNow service)
+    (reset! watchdog nil)))
@@ -0,0 +1,124 @@
+(ns puppetlabs.services.jruby-pool-manager.impl.canary
+  (:require [schema.core :as schema]
+            [puppetlabs.services.jruby-pool-manager.jruby-schemas :as jruby-schemas])
+  (:import (java.util.concurrent.atomic LongAccumulator LongAdder)
+           (java.util.function LongBinaryOperator)
+           (org.jruby.embed LocalContextScope)
+           (puppetlabs.services.jruby_pool_manager.jruby_schemas JRubyInstance)))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+;;; Private
+
+(def default-context-scope
+  "The LocalContextScope of the ScriptingContainers of instances created with
+  the default tuning. Each instance is used by one thread at a time, so it
+  needs no more than one context."
+  :singlethread)
+
+(defn- counters
+  []
+  {:borrows (LongAdder.)
+   :busy-time (LongAdder.)
+   :max-borrow-time (LongAccumulator. (reify LongBinaryOperator
+                                        (applyAsLong [_ x y]
+                                          (Math/max x y)))
+                                      0)})
+
+(schema/defn canary-count :- schema/Int
+  "How many of each `:max-active-instances` consecutive instance ids are
+  canaries: the configured fraction, rounded up so that any fraction creates
+  at least one."
+  [{:keys [canary max-active-instances]} :- jruby-schemas/JRubyConfig]
+  (if canary
+    (min max-active-instances
+         (long (Math/ceil (* (:fraction canary) max-active-instances))))
+    0))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+;;; Public
+
+(schema/defn initialize-canary-config :- (schema/maybe jruby-schemas/CanaryConfig)
+  "Converts the keyword settings of a `:canary` config, which may have been
+  given as strings, to keywords."
+  [canary :- (schema/maybe {schema/Keyword schema/Any})]
+  (when canary
+    (cond-> canary
+      (:compile-mode canary) (update :compile-mode keyword)
+      (:context-scope canary) (update :context-scope keyword))))
+
+(schema/defn instance-profile :- jruby-schemas/InstanceProfile
+  "Which tuning a new instance with `id` is created with. An instance which
+  replaces another is instead created with the profile of the instance it
+  replaces, recorded in its retirement, so a canary is replaced by a canary
+  however the pool has been resized since."
+  [config :- jruby-schemas/JRubyConfig
+   id :- schema/Int]
+  (if (and (not (:multithreaded config))
+           (< (mod id (:max-active-instances config)) (canary-count config)))
+    :canary
+    :default))
+
+(schema/defn profile-setting :- schema/Any
+  "The value of `setting` for instances created with `profile`: the canary
+  setting if the profile is `:canary` and the setting is given, otherwise
+  the pool's, if any."
+  [config :- jruby-schemas/JRubyConfig
+   profile :- jruby-schemas/InstanceProfile
+   setting :- schema/Keyword]
+  (let [canary (:canary config)]
+    (if (and (= :canary profile) (contains? canary setting))
+      (get canary setting)
+      (get config setting))))
+
+(schema/defn context-scope :- LocalContextScope
+  "The LocalContextScope of the ScriptingContainers of instances created with
+  `profile`."
+  [config :- jruby-schemas/JRubyConfig
+   profile :- jruby-schemas/InstanceProfile]
+  (case (or (profile-setting config profile :context-scope) default-context-scope)
+    :singlethread LocalContextScope/SINGLETHREAD
+    :threadsafe LocalContextScope/THREADSAFE
+    :concurrent LocalContextScope/CONCURRENT))
+
+(schema/defn create-profile-counters :- jruby-schemas/ProfileCounters
+  []
+  {:since (System/currentTimeMillis)
+   :counters {:default (counters)
+              :canary (counters)}})
+
+(schema/defn record-borrow-time!
+  "Counts a borrow of `instance` which held it for `duration` milliseconds."
+  [profile-counters :- jruby-schemas/ProfileCounters
+   instance :- JRubyInstance
+   duration :- schema/Int]
+  (let [{:keys [^LongAdder borrows ^LongAdder busy-time ^LongAccumulator max-borrow-time]}
+        (get-in profile-counters [:counters (get-in instance [:internal :profile] :default)])]
+    (.increment borrows)
+    (.add busy-time duration)
+    (.accumulate max-borrow-time duration)))
+
+(schema/defn profile-statistics :- {jruby-schemas/InstanceProfile jruby-schemas/ProfileStatistics}
+  "Summarizes `profile-counters` for each profile which has instances or has
+  counted borrows, given the profiles of the instances currently registered."
+  [profile-counters :- jruby-schemas/ProfileCounters
+   instance-profiles :- [jruby-schemas/InstanceProfile]]
+  (let [instance-counts (frequencies instance-profiles)
+        seconds (max 0.001 (/ (- (System/currentTimeMillis) (:since profile-counters)) 1000.0))]
+    (into {}
+          (for [[profile {:keys [^LongAdder borrows ^LongAdder busy-time
+                                 ^LongAccumulator max-borrow-time]}] (:counters profile-counters)
+                :let [instances (get instance-counts profile 0)
+                      borrow-count (.sum borrows)
+                      busy (.sum busy-time)]
+                :when (or (pos? instances) (pos? borrow-count))]
+            [profile {:instances instances
+                      :borrows borrow-count
+                      :busy-time busy
+                      :mean-borrow-time (if (pos? borrow-count)
+                                          (double (/ busy borrow-count))
+                                          0.0)
+                      :max-borrow-time (.get max-borrow-time)
+                      :borrows-per-second (/ borrow-count seconds)
+                      :borrows-per-instance-second (if (pos? instances)
+                                                     (/ borrow-count seconds instances)
+                                                     0.0)}]))))
@@ -0,0 +1,284 @@
+(ns puppetlabs.services.jruby-pool-manager.impl.compile-cache
+  (:require [clojure.edn :as edn]
+            [clojure.java.io :as io]
+            [clojure.string :as str]
+            [clojure.tools.logging :as log]
+            [me.raynes.fs :as fs]
+            [schema.core :as schema]
+            [puppetlabs.services.jruby-pool-manager.jruby-schemas :as jruby-schemas]
+            [puppetlabs.i18n.core :as i18n])
+  (:import (com.puppetlabs.jruby_utils.jruby InternalScriptingContainer)
+           (java.io File)
+           (java.nio.charset StandardCharsets)
+           (java.nio.file CopyOption Files StandardCopyOption)
+           (java.nio.file.attribute FileAttribute)
+           (java.security MessageDigest)
+           (java.util.concurrent ConcurrentHashMap)
+           (java.util.concurrent.atomic AtomicLong)
+           (java.util.function Function)
+           (org.jruby.embed LocalContextScope)
+           (org.jruby.runtime Constants)))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+;;; Private
+
+;; The cache holds a directory per JRuby version, so that upgrading JRuby never
+;; loads bytecode compiled by another version.  Within it, each directory on
+;; the ruby-load-path has a mirror directory, named after a hash of its path,
+;; which is put on the load path just ahead of it.  For each source file
+;; `foo/bar.rb` the mirror holds the compiled `foo/bar.class`, which `require`
+;; then finds in preference to the source, and a `foo/bar.source.edn` record
+;; of the source it was compiled from.  A record without a compiled class
+;; marks a source which failed to compile, so it isn't retried until the
+;; source changes.
+
+(def source-suffix ".rb")
+(def compiled-suffix ".class")
+(def record-suffix ".source.edn")
+
+;; Guards installing and evicting entries beneath each cache root, so that an
+;; entry being compiled in the background cannot be installed for a source
+;; which changed, and was evicted, while it was compiling.
+(defonce ^:private root-locks (ConcurrentHashMap.))
+
+;; The cache roots for which a background compile is currently running.
+(defonce ^:private compiling (ConcurrentHashMap/newKeySet))
+
+;; Incremented whenever entries are installed in or evicted from any cache.
+(defonce ^:private generation-counter (AtomicLong.))
+
+(defn- root-lock
+  [^File root]
+  (.computeIfAbsent ^ConcurrentHashMap root-locks
+                    (.getAbsolutePath root)
+                    (reify Function
+                      (apply [_ _] (Object.)))))
+
+(defn- sha-256
+  [^bytes data]
+  (format "%064x" (BigInteger. 1 (.digest (MessageDigest/getInstance "SHA-256") data))))
+
+(defn- file-sha-256
+  [^File f]
+  (sha-256 (Files/readAllBytes (.toPath f))))
+
+(defn cache-root
+  "The directory under `compile-cache-dir` for the running version of JRuby."
+  ^File [compile-cache-dir]
+  (io/file compile-cache-dir (str "jruby-" Constants/VERSION)))
+
+(defn cacheable?
+  "Only load path entries which are directories on disk are cached; e.g.
+  `uri:classloader:` entries are left alone."
+  [load-path-entry]
+  (.isDirectory (io/file load-path-entry)))
+
+(defn mirror-dir
+  "The directory holding the compiled forms of the sources under
+  `load-path-entry`."
+  ^File [^File root load-path-entry]
+  (let [path (.getAbsolutePath (io/file load-path-entry))]
+    (io/file root (subs (sha-256 (.getBytes path StandardCharsets/UTF_8)) 0 16))))
+
+(defn- relative-base
+  "The path of `f` relative to `dir`, without `suffix`."
+  [^File dir ^File f suffix]
+  (let [relative (str (.relativize (.toPath dir) (.toPath f)))]
+    (subs relative 0 (- (count relative) (count suffix)))))
+
+(defn- files-with-suffix
+  [^File dir suffix]
+  (filter #(and (.isFile ^File %) (str/ends-with? (.getName ^File %) suffix))
+          (file-seq dir)))
+
+(defn- source-stat
+  [^File source]
+  {:size (.length source)
+   :modified (.lastModified source)})
+
+(defn- read-record
+  [^File record-file]
+  (try
+    (edn/read-string (slurp record-file))
+    (catch Exception _
+      nil)))
+
+(defn- move-atomically!
+  [^File from ^File to]
+  (Files/move (.toPath from) (.toPath to)
+              (into-array CopyOption [StandardCopyOption/ATOMIC_MOVE
+                                      StandardCopyOption/REPLACE_EXISTING])))
+
+(defn- write-record!
+  [^File record-file record]
+  (let [tmp (File/createTempFile "record" ".tmp" (.getParentFile record-file))]
+    (spit tmp (pr-str record))
+    (move-atomically! tmp record-file)))
+
+(defn- evict!
+  "Removes an entry.  The compiled class goes first, so that an entry is never
+  loaded once its record has gone."
+  [^File mirror base]
+  (Files/deleteIfExists (.toPath (io/file mirror (str base compiled-suffix))))
+  (Files/deleteIfExists (.toPath (io/file mirror (str base record-suffix)))))
+
+(schema/defn evict-stale! :- schema/Int
+  "Evicts the entries in the mirror of `load-path-entry` whose sources have
+  changed or gone, and any compiled classes left without a record by an
+  interrupted install. Returns the number of entries evicted. Sources whose
+  size or modification time changed are hashed, so that merely touching a
+  source doesn't evict it."
+  [root :- File
+   load-path-entry :- schema/Str]
+  (let [mirror (mirror-dir root load-path-entry)
+        entry (io/file load-path-entry)
+        evicted (atom 0)]
+    (doseq [^File record-file (files-with-suffix mirror record-suffix)
+            :let [base (relative-base mirror record-file record-suffix)
+                  source (io/file entry (str base source-suffix))
+                  record (read-record record-file)]]
+      (cond
+        (or (nil? record) (not (.isFile source)))
+        (do (evict! mirror base)
+            (swap! evicted inc))
+
+        (= (source-stat source) (select-keys record [:size :modified]))
+        nil
+
+        (= (:sha256 record) (file-sha-256 source))
+        (write-record! record-file (merge record (source-stat source)))
+
+        :else
+        (do (evict! mirror base)
+            (swap! evicted inc))))
+    (doseq [^File compiled (files-with-suffix mirror compiled-suffix)
+            :let [base (relative-base mirror compiled compiled-suffix)]
+            :when (not (.exists (io/file mirror (str base record-suffix))))]
+      (evict! mirror base)
+      (swap! evicted inc))
+    @evicted))
+
+(defn- ruby-string
+  [s]
+  (str "'" (-> s (str/replace "\\" "\\\\") (str/replace "'" "\\'")) "'"))
+
+(defn- compiler-container
+  []
+  (doto (InternalScriptingContainer. LocalContextScope/SINGLETHREAD)
+    (.runScriptlet "require 'jruby/compiler'")))
+
+(defn- compile-source
+  "Compiles `source` with jrubyc into `staging`, returning the compiled class,
+  or nil if the source could not be compiled.  The source is compiled by its
+  absolute path, which becomes its `__FILE__`, so that `require_relative` and
+  friends still resolve against the source's own directory."
+  [^InternalScriptingContainer container ^File source ^File staging]
+  (try
+    (.runScriptlet container
+                   (format "JRuby::Compiler.compile_argv(['-t', %s, %s])"
+                           (ruby-string (.getAbsolutePath staging))
+                           (ruby-string (.getAbsolutePath source))))
+    (first (files-with-suffix staging compiled-suffix))
+    (catch Exception e
+      (log/debug e (i18n/trs "Could not compile ''{0}'' for the compile cache" source))
+      nil)))
+
+(defn- compile-entry!
+  [container ^File root ^File mirror ^File entry ^File source]
+  (let [base (relative-base entry source source-suffix)
+        sha (file-sha-256 source)
+        stat (source-stat source)
+        staging (.toFile (Files/createTempDirectory (.toPath root) "compile"
+                                                    (make-array FileAttribute 0)))]
+    (try
+      (let [compiled (compile-source container source staging)]
+        (locking (root-lock root)
+          ;; The source may have changed, and its entry been evicted, while it
+          ;; was compiling; it is picked up by the next refresh instead
+          (when (= sha (file-sha-256 source))
+            (let [target (io/file mirror (str base compiled-suffix))]
+              (fs/mkdirs (.getParentFile target))
+              (when compiled
+                (move-atomically! compiled target))
+              (write-record! (io/file mirror (str base record-suffix))
+                             (assoc stat :sha256 sha :compiled? (boolean compiled)))
+              (boolean compiled)))))
+      (finally
+        (fs/delete-dir staging)))))
+
+(schema/defn compile-missing! :- schema/Int
+  "Compiles each source under the given load path entries which has no entry
+  in the cache. Returns the number of sources compiled."
+  [root :- File
+   load-path-entries :- [schema/Str]]
+  (fs/mkdirs root)
+  (let [container (compiler-container)]
+    (try
+      (count
+       (for [load-path-entry load-path-entries
+             :let [entry (io/file load-path-entry)
+                   mirror (mirror-dir root load-path-entry)]
+             ^File source (doall (files-with-suffix entry source-suffix))
+             :let [base (relative-base entry source source-suffix)]
+             :when (not (.exists (io/file mirror (str base record-suffix))))
+             :when (compile-entry! container root mirror entry source)]
+         source))
+      (finally
+        (.terminate container)))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+;;; Public
+
+(defn generation
+  "A number which changes whenever the contents of any compile cache change,
+  e.g. so that an index of the files on the load path can be rebuilt."
+  []
+  (.get ^AtomicLong generation-counter))
+
+(schema/defn ^:always-validate
+  load-path :- [schema/Str]
+  "The load path for a scripting container created from `config`: the
+  `:ruby-load-path` with, when a compile cache is configured, the mirror of
+  each of its directories just ahead of that directory."
+  [{:keys [ruby-load-path compile-cache-dir]} :- jruby-schemas/JRubyConfig]
+  (if compile-cache-dir
+    (let [root (cache-root compile-cache-dir)]
+      (vec (mapcat #(if (cacheable? %)
+                      [(.getAbsolutePath (mirror-dir root %)) %]
+                      [%])
+                   ruby-load-path)))
+    ruby-load-path))
+
+(schema/defn ^:always-validate
+  refresh! :- (schema/maybe Thread)
+  "Brings the compile cache up to date with the `:ruby-load-path` before new
+  JRubyInstances are created. Stale entries are evicted before this returns,
+  so no instance created afterwards can load them; sources without an entry
+  are then compiled on a background thread, which is returned, and instances
+  created in the meantime simply load those sources as usual. Does nothing
+  if no compile cache is configured."
+  [{:keys [ruby-load-path compile-cache-dir]} :- jruby-schemas/JRubyConfig]
+  (when compile-cache-dir
+    (let [root (cache-root compile-cache-dir)
+          entries (filterv cacheable? ruby-load-path)
+          evicted (locking (root-lock root)
+                    (reduce + (map #(evict-stale! root %) entries)))]
+      (when (pos? evicted)
+        (.incrementAndGet ^AtomicLong generation-counter)
+        (log/info (i18n/trs "Evicted {0} stale entries from the JRuby compile cache in ''{1}''"
+                            evicted root)))
+      (when (.add compiling (.getAbsolutePath root))
+        (doto (Thread. ^Runnable (fn []
+                                   (try
+                                     (let [compiled (compile-missing! root entries)]
+                                       (when (pos? compiled)
+                                         (.incrementAndGet ^AtomicLong generation-counter))
+                                       (log/info (i18n/trs "Compiled {0} Ruby sources into the JRuby compile cache in ''{1}''"
+                                                           compiled root)))
+                                     (catch Exception e
+                                       (log/warn e (i18n/trs "Error populating the JRuby compile cache in ''{0}''" root)))
+                                     (finally
+                                       (.remove compiling (.getAbsolutePath root)))))
+                       "jruby-compile-cache")
+          (.setDaemon true)
+          (.start))))))
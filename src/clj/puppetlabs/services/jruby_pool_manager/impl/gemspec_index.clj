@@ -0,0 +1,154 @@
+(ns puppetlabs.services.jruby-pool-manager.impl.gemspec-index
+  (:require [clojure.java.io :as io]
+            [clojure.string :as str]
+            [clojure.tools.logging :as log]
+            [schema.core :as schema]
+            [puppetlabs.services.jruby-pool-manager.jruby-schemas :as jruby-schemas]
+            [puppetlabs.i18n.core :as i18n])
+  (:import (com.puppetlabs.jruby_utils.jruby ScriptingContainer)
+           (java.io File)
+           (java.util Collections Map)))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+;;; Private
+
+;; RubyGems evaluates a gem's `.gemspec` file, which is Ruby code, whenever it
+;; needs the gem's full specification, and every scripting container does so
+;; for itself.  The index holds each specification under the gem directories
+;; as a marshalled map of its instance variables, keyed by the path of its
+;; `.gemspec` file, so that containers other than the one which built the
+;; index can restore specifications without evaluating any gemspecs.  It is
+;; shared by every pool with the same gem directories, and is only rebuilt
+;; when the specifications in those directories change.
+
+;; The most recently built index, as {:fingerprint [...] :index (promise)}.
+(defonce ^:private current-index (atom nil))
+
+(def ^:private gemspec-hook
+  "Ruby code defining the module which builds the index, and which installs
+  it by prepending a `Gem::Specification.load` that restores indexed
+  specifications. Specifications which aren't indexed, or can't be restored,
+  are loaded by the original `load`."
+  "require 'rubygems'
+   require 'java'
+
+   module JRubyUtils
+     module GemspecIndex
+       # State of the containers which built the index, not of the specs
+       EXCLUDED = [:@activated, :@loaded].freeze
+
+       def self.build(files)
+         index = java.util.HashMap.new
+         files.each do |file|
+           begin
+             spec = Gem::Specification.load(file)
+             next unless spec
+             ivars = {}
+             (spec.instance_variables - EXCLUDED).each do |ivar|
+               ivars[ivar] = spec.instance_variable_get(ivar)
+             end
+             index.put(file, Marshal.dump(ivars).to_java_bytes)
+           rescue StandardError
+             # Specs which can't be marshalled are loaded from their gemspec
+           end
+         end
+         index
+       end
+
+       def self.install(index)
+         @index = index
+         @restored = {}
+         Gem::Specification.singleton_class.prepend(self)
+       end
+
+       def self.restore(file)
+         path = File.expand_path(file.to_s)
+         @restored[path] ||= begin
+           bytes = @index.get(path)
+           if bytes
+             spec = Gem::Specification.allocate
+             Marshal.load(String.from_java_bytes(bytes)).each do |ivar, value|
+               spec.instance_variable_set(ivar, value)
+             end
+             spec
+           end
+         rescue StandardError
+           nil
+         end
+       end
+
+       def load(file)
+         GemspecIndex.restore(file) || super
+       end
+     end
+   end
+   JRubyUtils::GemspecIndex")
+
+(schema/defn gem-dirs :- [schema/Str]
+  "The gem directories the containers created from `config` use: the
+  `:gem-home` followed by each directory in the `:gem-path`."
+  [{:keys [gem-home gem-path]} :- jruby-schemas/JRubyConfig]
+  (into [gem-home]
+        (when gem-path
+          (remove str/blank? (str/split gem-path (re-pattern File/pathSeparator))))))
+
+(defn- normalized-path
+  [^File f]
+  (str (.normalize (.toAbsolutePath (.toPath f)))))
+
+(schema/defn gemspec-files :- [File]
+  "The `.gemspec` files in the `specifications` directory of each gem
+  directory."
+  [config :- jruby-schemas/JRubyConfig]
+  (->> (gem-dirs config)
+       (map #(io/file % "specifications"))
+       (filter #(.isDirectory ^File %))
+       (mapcat #(.listFiles ^File %))
+       (filter #(str/ends-with? (.getName ^File %) ".gemspec"))
+       (sort-by normalized-path)))
+
+(schema/defn fingerprint :- [[schema/Any]]
+  "Identifies the current contents of the gemspecs: the index is rebuilt
+  whenever a gemspec is added, removed or modified."
+  [files :- [File]]
+  (mapv (fn [^File f] [(normalized-path f) (.length f) (.lastModified f)]) files))
+
+(defn- build-index!
+  [^ScriptingContainer scripting-container hook files]
+  (let [start (System/currentTimeMillis)
+        index (.callMethodWithArgArray scripting-container hook "build"
+                                       (into-array Object [(mapv normalized-path files)])
+                                       Map)]
+    (log/info (i18n/trs "Indexed {0} of {1} gem specifications in {2}ms"
+                        (.size ^Map index) (count files) (- (System/currentTimeMillis) start)))
+    (Collections/unmodifiableMap index)))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+;;; Public
+
+(schema/defn install!
+  "Installs the index of gem specifications into `scripting-container`. The
+  first container created once the gemspecs have changed builds the index
+  instead, by loading every gemspec; containers created while it is doing so
+  load their specifications as usual. Does nothing unless `:gemspec-index`
+  is enabled."
+  [scripting-container :- ScriptingContainer
+   config :- jruby-schemas/JRubyConfig]
+  (when (:gemspec-index config)
+    (let [files (gemspec-files config)
+          fp (fingerprint files)
+          claim {:fingerprint fp :index (promise)}
+          current (swap! current-index #(if (= fp (:fingerprint %)) % claim))
+          hook (.runScriptlet scripting-container gemspec-hook)]
+      (if (identical? claim current)
+        (let [index (try
+                      (build-index! scripting-container hook files)
+                      (catch Exception e
+                        (log/warn e (i18n/trs "Error indexing gem specifications"))
+                        nil))]
+          (deliver (:index claim) index))
+        (let [index (:index current)]
+          (when-let [index (and (realized? index) @index)]
+            (.callMethodWithArgArray scripting-container hook "install"
+                                     (into-array Object [index])
+                                     Object)))))))
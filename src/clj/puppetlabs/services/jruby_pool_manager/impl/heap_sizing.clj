@@ -0,0 +1,106 @@
+(ns puppetlabs.services.jruby-pool-manager.impl.heap-sizing
+  (:require [clojure.tools.logging :as log]
+            [schema.core :as schema]
+            [puppetlabs.kitchensink.core :as ks]
+            [puppetlabs.services.jruby-pool-manager.impl.jruby-internal :as jruby-internal]
+            [puppetlabs.services.jruby-pool-manager.jruby-schemas :as jruby-schemas]
+            [puppetlabs.i18n.core :as i18n])
+  (:import (com.puppetlabs.jruby_utils.pool JRubyPool)
+           (java.lang.management ManagementFactory MemoryMXBean)))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+;;; Private
+
+;; The heap an instance retains is estimated as the growth in the heap in use,
+;; after a full collection, across the creation of the pool's first
+;; instance, which is created on its own.  Anything else allocating at the
+;; same time, e.g. another pool being primed, inflates the estimate, which
+;; errs towards a smaller pool.
+
+(def gc-rounds
+  "How many times the heap is collected before it is measured, so that
+  objects which were only reachable through finalizers are gone too."
+  3)
+
+(def min-instance-bytes
+  "The smallest retained heap an instance is taken to have, in case the
+  measurement is thrown out by a collection freeing more than was allocated."
+  (* 1024 1024))
+
+(def bytes-per-megabyte (* 1024 1024))
+
+(defn- megabytes
+  [bytes]
+  (quot bytes bytes-per-megabyte))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+;;; Public
+
+(schema/defn default-max-active-instances :- schema/Int
+  "The default `:max-active-instances` when a `:heap-budget` is given: one
+  instance per core, less one for everything else, since the budget rather
+  than a fixed cap then decides how many of those are created."
+  [num-cpus :- schema/Int]
+  (max 1 (dec num-cpus)))
+
+(schema/defn heap-in-use :- schema/Int
+  "The heap in use, in bytes, after collecting garbage."
+  []
+  (let [^MemoryMXBean memory (ManagementFactory/getMemoryMXBean)]
+    (dotimes [_ gc-rounds]
+      (.gc memory))
+    (.getUsed (.getHeapMemoryUsage memory))))
+
+(schema/defn instance-limit :- {:instance-bytes schema/Int
+                                :memory-limit schema/Int
+                                :core-limit schema/Int
+                                :size schema/Int}
+  "How many instances the pool may have, given that each retains
+  `instance-bytes` of heap: as many as fit in the `:heap-budget`, but no more
+  than `:max-active-instances` or than there are cores to run them."
+  [config :- jruby-schemas/JRubyConfig
+   instance-bytes :- schema/Int
+   num-cpus :- schema/Int]
+  (let [instance-bytes (max instance-bytes min-instance-bytes)
+        memory-limit (max 1 (quot (* (:heap-budget config) bytes-per-megabyte) instance-bytes))
+        core-limit (default-max-active-instances num-cpus)]
+    {:instance-bytes instance-bytes
+     :memory-limit memory-limit
+     :core-limit core-limit
+     :size (min memory-limit core-limit (:max-active-instances config))}))
+
+(schema/defn apply-heap-budget! :- schema/Int
+  "Limits the size of the pool to as many instances as fit in the
+  `:heap-budget`, now that its first instance has been created. `heap-before`
+  is the heap in use before that instance was created. The limit also caps
+  later growth of the pool, and any instances it removes are returned to the
+  pool's instance budget. Returns the size of the pool. Should only be
+  called from the modify-instance-agent, while the pool is being primed."
+  [pool-context :- jruby-schemas/PoolContext
+   heap-before :- schema/Int]
+  (let [config (:config pool-context)
+        pool (jruby-internal/get-pool pool-context)
+        size (jruby-internal/get-pool-size pool-context)
+        retained (- (heap-in-use) heap-before)
+        {:keys [instance-bytes memory-limit core-limit] :as limit}
+        (instance-limit config retained (ks/num-cpus))
+        new-size (min size (:size limit))]
+    (log/info (i18n/trs "The first JRubyInstance retains about {0}MB of heap; a heap budget of {1}MB allows {2} instance(s), and {3} core(s) allow {4}."
+                        (megabytes instance-bytes) (:heap-budget config) memory-limit
+                        (ks/num-cpus) core-limit))
+    (when (< new-size size)
+      (log/info (i18n/trs "Reducing the JRuby pool from {0} to {1} instance(s) to stay within its heap budget."
+                          size new-size))
+      (.setMaxSize ^JRubyPool pool new-size))
+    (swap! (jruby-internal/get-pool-state-container pool-context)
+           assoc :size new-size :heap-limit (:size limit))
+    (jruby-internal/release-budget! pool-context (- size new-size))
+    new-size))
+
+(schema/defn within-heap-limit? :- schema/Bool
+  "Whether the pool may grow to `size` instances without exceeding the
+  limit set by its heap budget, if it has one."
+  [pool-context :- jruby-schemas/PoolContext
+   size :- schema/Int]
+  (let [limit (:heap-limit (jruby-internal/get-pool-state pool-context))]
+    (or (nil? limit) (<= size limit))))
@@ -0,0 +1,239 @@
+(ns puppetlabs.services.jruby-pool-manager.impl.instance-budget
+  (:require [clojure.tools.logging :as log]
+            [schema.core :as schema]
+            [puppetlabs.services.jruby-pool-manager.impl.jruby-agents :as jruby-agents]
+            [puppetlabs.services.jruby-pool-manager.impl.jruby-internal :as jruby-internal]
+            [puppetlabs.services.jruby-pool-manager.jruby-schemas :as jruby-schemas]
+            [puppetlabs.i18n.core :as i18n])
+  (:import (com.puppetlabs.jruby_utils.pool JRubyPool)
+           (java.util.concurrent Executors ScheduledExecutorService ThreadFactory TimeUnit)))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+;;; Private
+
+(def default-rebalance-interval
+  "Default time between rebalances of the budget in milliseconds."
+  1000)
+
+(def resize-timeout
+  "How long, in milliseconds, a rebalance waits for a pool to grow or shrink.
+  Resizes queue behind flushes on the pool's modify-instance-agent."
+  60000)
+
+(def PoolDemand
+  "The state of a pool which is relevant to rebalancing its capacity."
+  {:size schema/Int
+   :min schema/Int
+   :max schema/Int
+   :free schema/Int
+   :waiting schema/Int})
+
+(def Move
+  "A change to the capacity of a pool: the pool at index `:grow` gains an
+  instance, taken from the pool at index `:from` if given, otherwise from the
+  unallocated budget."
+  {:grow schema/Int
+   (schema/optional-key :from) schema/Int})
+
+(schema/defn resizable? :- schema/Bool
+  [pool-context :- jruby-schemas/PoolContext]
+  (instance? JRubyPool (jruby-internal/get-pool pool-context)))
+
+(schema/defn pool-demand :- PoolDemand
+  [pool-context :- jruby-schemas/PoolContext]
+  (let [{:keys [min-active-instances max-active-instances]} (:config pool-context)
+        size (jruby-internal/get-pool-size pool-context)
+        stats (.getStatistics (jruby-internal/get-pool pool-context))]
+    (if (resizable? pool-context)
+      {:size size
+       :min min-active-instances
+       ;; A pool with a heap budget can't grow past what fits within it
+       :max (min max-active-instances
+                 (get (jruby-internal/get-pool-state pool-context) :heap-limit max-active-instances))
+       :free (.getFreeCount stats)
+       :waiting (.getWaiterCount stats)}
+      ;; A multithreaded pool always has exactly one instance
+      {:size size :min size :max size :free 0 :waiting 0})))
+
+(schema/defn plan-rebalance :- [Move]
+  "Decides how to move capacity between pools. Each pool with borrowers
+  waiting and room to grow gains one instance, those with the most borrowers
+  waiting first: from the unallocated budget while there is any, and
+  otherwise from the pool with the most idle instances above its minimum,
+  provided that pool has no borrowers waiting itself."
+  [demands :- [PoolDemand]
+   available :- schema/Int]
+  (let [needy (->> (range (count demands))
+                   (filter #(let [{:keys [waiting size max]} (nth demands %)]
+                              (and (pos? waiting) (< size max))))
+                   (sort-by #(- (:waiting (nth demands %)))))]
+    (loop [[i & more] needy
+           demands (vec demands)
+           available available
+           moves []]
+      (if-not i
+        moves
+        (if (pos? available)
+          (recur more
+                 (update-in demands [i :size] inc)
+                 (dec available)
+                 (conj moves {:grow i}))
+          (let [donor (->> (range (count demands))
+                           (filter #(let [{:keys [waiting free size min]} (nth demands %)]
+                                      (and (not= i %) (zero? waiting) (pos? free) (> size min))))
+                           (sort-by #(- (:free (nth demands %))))
+                           first)]
+            (if donor
+              (recur more
+                     (-> demands
+                         (update-in [i :size] inc)
+                         (update-in [donor :size] dec)
+                         (update-in [donor :free] dec))
+                     available
+                     (conj moves {:grow i :from donor}))
+              (recur more demands available moves))))))))
+
+(schema/defn resize! :- schema/Bool
+  "Runs `resize-fn` on the pool's modify-instance-agent, so that it cannot
+  overlap with a flush, and waits for it to finish. Returns whether the pool
+  was resized. If the agent is still busy after `resize-timeout`, this gives
+  up waiting and returns false, but `resize-fn` still runs once the agent gets
+  to it, so it must do its own accounting against the budget."
+  [pool-context :- jruby-schemas/PoolContext
+   resize-fn :- (schema/pred ifn?)]
+  (let [result (promise)]
+    (jruby-agents/send-agent (jruby-agents/get-modify-instance-agent pool-context)
+                             #(try
+                                (deliver result (resize-fn pool-context))
+                                (finally
+                                  (deliver result false))))
+    (true? (deref result resize-timeout false))))
+
+(schema/defn reserve! :- schema/Bool
+  "Allocates `n` instances from the budget, if that many are unallocated."
+  [{:keys [max-instances allocated]} :- jruby-schemas/InstanceBudget
+   n :- schema/Int]
+  (let [[old new] (swap-vals! allocated #(if (<= (+ % n) max-instances) (+ % n) %))]
+    (or (zero? n) (not= old new))))
+
+(schema/defn release!
+  [{:keys [allocated]} :- jruby-schemas/InstanceBudget
+   n :- schema/Int]
+  (swap! allocated - n))
+
+(schema/defn grow-within-budget! :- schema/Bool
+  "Allocates an instance from the budget and grows the pool by it, returning
+  it to the budget if the pool can't grow. Should only be called from the
+  modify-instance-agent"
+  [budget :- jruby-schemas/InstanceBudget
+   pool-context :- jruby-schemas/PoolContext]
+  (and (reserve! budget 1)
+       (or (jruby-agents/grow-pool! pool-context)
+           (do (release! budget 1) false))))
+
+(schema/defn shrink-within-budget! :- schema/Bool
+  "Shrinks the pool by one instance, if one is idle, and returns it to the
+  budget. Should only be called from the modify-instance-agent"
+  [budget :- jruby-schemas/InstanceBudget
+   pool-context :- jruby-schemas/PoolContext]
+  (if (jruby-agents/shrink-pool! pool-context)
+    (do (release! budget 1) true)
+    false))
+
+(schema/defn apply-move!
+  [budget :- jruby-schemas/InstanceBudget
+   pools :- [jruby-schemas/PoolContext]
+   {:keys [grow from]} :- Move]
+  ;; The donor may have lent out its idle instance since the plan was made, in
+  ;; which case the move is abandoned until the next rebalance.  Otherwise its
+  ;; instance goes back to the budget, from which the target then takes it.
+  (when (or (nil? from)
+            (resize! (nth pools from) #(shrink-within-budget! budget %)))
+    (resize! (nth pools grow) #(grow-within-budget! budget %))))
+
+(defn- rebalancer-service
+  []
+  (Executors/newSingleThreadScheduledExecutor
+   (reify ThreadFactory
+     (newThread [_ runnable]
+       (doto (Thread. ^Runnable runnable "jruby-budget-rebalancer")
+         (.setDaemon true))))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+;;; Public
+
+(schema/defn ^:always-validate
+  create-budget :- jruby-schemas/InstanceBudget
+  [{:keys [max-total-instances instance-creation-concurrency]} :- jruby-schemas/InstanceBudgetConfig]
+  {:max-instances max-total-instances
+   :creation-service (Executors/newFixedThreadPool (or instance-creation-concurrency 3))
+   :pools (atom [])
+   :allocated (atom 0)
+   :rebalancer (atom nil)})
+
+(schema/defn ^:always-validate
+  initial-pool-size :- schema/Int
+  "The number of instances a pool sharing `budget` starts with. Allocates
+  them from the budget, throwing if it cannot guarantee them."
+  [budget :- jruby-schemas/InstanceBudget
+   config :- jruby-schemas/JRubyConfig]
+  (let [size (if (:multithreaded config) 1 (:min-active-instances config))]
+    (when-not (reserve! budget size)
+      (throw (IllegalStateException.
+              (i18n/tru "Cannot guarantee {0} JRubyInstance(s) to the pool, since only {1} of the {2} allowed across all pools remain."
+                        size
+                        (- (:max-instances budget) @(:allocated budget))
+                        (:max-instances budget)))))
+    size))
+
+(schema/defn add-pool!
+  [budget :- jruby-schemas/InstanceBudget
+   pool-context :- jruby-schemas/PoolContext]
+  (swap! (:pools budget) conj pool-context))
+
+(schema/defn remove-pool!
+  "Stops counting the pool against the budget, which should be done once it
+  has been shut down. Its allocation is kept equal to its size as the size
+  changes, so that is what is returned to the budget."
+  [budget :- jruby-schemas/InstanceBudget
+   pool-context :- jruby-schemas/PoolContext]
+  (let [[old _] (swap-vals! (:pools budget)
+                            (fn [pools]
+                              (filterv #(not (identical? % pool-context)) pools)))]
+    (when (some #(identical? % pool-context) old)
+      (release! budget (jruby-internal/get-pool-size pool-context)))))
+
+(schema/defn rebalance!
+  "Moves capacity between the pools sharing the budget according to their
+  current demand."
+  [budget :- jruby-schemas/InstanceBudget]
+  (let [pools @(:pools budget)
+        available (- (:max-instances budget) @(:allocated budget))]
+    (doseq [move (plan-rebalance (mapv pool-demand pools) available)]
+      (apply-move! budget pools move))))
+
+(schema/defn start-rebalancer!
+  "Starts a background thread which rebalances the budget every
+  `interval` milliseconds."
+  [{:keys [rebalancer] :as budget} :- jruby-schemas/InstanceBudget
+   interval :- (schema/maybe schema/Int)]
+  (let [interval (or interval default-rebalance-interval)
+        ^ScheduledExecutorService service (rebalancer-service)]
+    (.scheduleWithFixedDelay service
+                             ^Runnable (fn []
+                                         (try
+                                           (rebalance! budget)
+                                           (catch Exception e
+                                             (log/error e (i18n/trs "Error rebalancing JRuby instances between pools")))))
+                             interval
+                             interval
+                             TimeUnit/MILLISECONDS)
+    (reset! rebalancer service)))
+
+(schema/defn stop!
+  "Stops rebalancing and shuts down the shared creation-service."
+  [{:keys [rebalancer creation-service]} :- jruby-schemas/InstanceBudget]
+  (when-let [^ScheduledExecutorService service @rebalancer]
+    (.shutdownNow service)
+    (reset! rebalancer nil))
+  (.shutdown creation-service))
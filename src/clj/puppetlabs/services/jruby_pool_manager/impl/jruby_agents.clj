@@ -1,13 +1,18 @@
 (ns puppetlabs.services.jruby-pool-manager.impl.jruby-agents
   (:require [schema.core :as schema]
+            [puppetlabs.services.jruby-pool-manager.impl.compile-cache :as compile-cache]
+            [puppetlabs.services.jruby-pool-manager.impl.heap-sizing :as heap-sizing]
             [puppetlabs.services.jruby-pool-manager.impl.jruby-internal :as jruby-internal]
+            [puppetlabs.services.jruby-pool-manager.impl.require-index :as require-index]
             [clojure.tools.logging :as log]
             [puppetlabs.kitchensink.core :as ks]
             [puppetlabs.services.jruby-pool-manager.jruby-schemas :as jruby-schemas]
             [puppetlabs.i18n.core :as i18n])
   (:import (clojure.lang IFn IDeref)
+           (com.puppetlabs.jruby_utils.pool JRubyPool)
            (puppetlabs.services.jruby_pool_manager.jruby_schemas PoisonPill JRubyInstance)
-           (java.util.concurrent TimeUnit TimeoutException ExecutionException Future ExecutorService)))
+           (java.util.concurrent TimeUnit TimeoutException ExecutionException Future ExecutorService
+                                 Executors ThreadFactory Callable ScheduledExecutorService)))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 ;;; Private
@@ -54,69 +59,333 @@
 
 (declare send-flush-instance!)
 
+(schema/defn refresh-load-path!
+  "Brings the compile cache up to date with the load path, and drops the
+  require index so that it is rebuilt, before a new generation of
+  JRubyInstances is created."
+  [config :- jruby-schemas/JRubyConfig]
+  (compile-cache/refresh! config)
+  (require-index/invalidate! config))
+
+(def max-creation-backoff
+  "The longest time, in milliseconds, to wait before retrying a failed
+  instance creation, however many times it has failed."
+  60000)
+
+(schema/defn creation-backoff :- schema/Int
+  "How long to wait before retrying a failed instance creation for the
+  `attempt`th time, counting from 0: the `:creation-retry-backoff`, doubled
+  for each earlier retry, up to `max-creation-backoff`."
+  [config :- jruby-schemas/JRubyConfig
+   attempt :- schema/Int]
+  (min max-creation-backoff
+       (* (:creation-retry-backoff config) (bit-shift-left 1 (min attempt 30)))))
+
+(defn- poison-pool!
+  "Replaces the free instances in the pool with a PoisonPill, so that every
+  borrow fails with `e`, and throws."
+  [pool e message]
+  (.clear pool)
+  (jruby-internal/insert-poison-pill pool e)
+  (throw (IllegalStateException. ^String message ^Throwable e)))
+
+(schema/defn degradable? :- schema/Bool
+  "Whether the pool carries on at reduced capacity when an instance can't be
+  created, rather than being poisoned, while the creation is retried. Only
+  pools which aren't multithreaded and whose config allows retries do."
+  [pool-context :- jruby-schemas/PoolContext]
+  (and (pos? (get-in pool-context [:config :creation-retries]))
+       (instance? JRubyPool (jruby-internal/get-pool pool-context))))
+
+(def ^:private retry-timer
+  "Schedules the retries of failed instance creations, so that no agent or
+  creation thread is tied up waiting for one."
+  (delay
+   (Executors/newSingleThreadScheduledExecutor
+    (reify ThreadFactory
+      (newThread [_ runnable]
+        (doto (Thread. ^Runnable runnable "jruby-creation-retry")
+          (.setDaemon true)))))))
+
+(schema/defn create-instance! :- JRubyInstance
+  "Calls `create-fn` to create an instance. A failure is counted in the pool
+  state before the exception is rethrown."
+  [pool-context :- jruby-schemas/PoolContext
+   create-fn :- IFn]
+  (try
+    (create-fn)
+    (catch Exception e
+      (swap! (jruby-internal/get-pool-state-container pool-context)
+             update :creation-failures (fnil inc 0))
+      (throw e))))
+
+(declare restore-degraded-capacity!)
+
+(schema/defn schedule-restore! :- schema/Bool
+  "Schedules `restore-degraded-capacity!` as the `retry`th retry of the
+  instances the pool has given up on, counting from 1, to be sent to the
+  modify-instance-agent once the backoff for it has passed. Does nothing, and
+  returns false, if a retry is already scheduled, the `:creation-retries` are
+  used up or the pool is shutting down."
+  [pool-context :- jruby-schemas/PoolContext
+   retry :- schema/Int]
+  (let [config (:config pool-context)
+        retries (:creation-retries config)
+        state (jruby-internal/get-pool-state-container pool-context)]
+    (if (and (<= retry retries)
+             (not (jruby-internal/shutting-down? pool-context))
+             (not (:restore-scheduled (first (swap-vals! state assoc :restore-scheduled true)))))
+      (let [backoff (creation-backoff config (dec retry))]
+        (log/warn (i18n/trs "Trying to create {0} JRubyInstance(s) again in {1}ms (retry {2} of {3})."
+                            (get @state :degraded 0) backoff retry retries))
+        (.schedule ^ScheduledExecutorService @retry-timer
+                   ^Runnable (fn []
+                               (send-agent (get-modify-instance-agent pool-context)
+                                           #(restore-degraded-capacity! pool-context retry)))
+                   (long backoff)
+                   TimeUnit/MILLISECONDS)
+        true)
+      false)))
+
+(schema/defn degrade-or-poison!
+  "Handles the failure to create the instance filling a slot in the pool. If
+  the pool is `degradable?`, the slot is given up, and returned to the pool's
+  instance budget, so that the pool keeps serving at reduced capacity, and
+  `restore-degraded-capacity!` is scheduled to try filling it again after a
+  backoff. Otherwise the pool is poisoned with `e`, and an exception with
+  `message` thrown."
+  [pool-context :- jruby-schemas/PoolContext
+   e :- Exception
+   message :- schema/Str]
+  (let [pool (jruby-internal/get-pool pool-context)
+        state (jruby-internal/get-pool-state-container pool-context)
+        remaining (when (degradable? pool-context)
+                    (locking state
+                      (let [size (:size @state)]
+                        ;; The size is reduced before the pool, as when
+                        ;; shrinking it, so that `borrow-all-jrubies` never
+                        ;; waits for the missing instance
+                        (swap! state #(-> %
+                                          (assoc :size (dec size))
+                                          (update :degraded (fnil inc 0))))
+                        (.setMaxSize ^JRubyPool pool (dec size))
+                        (dec size))))]
+    (if remaining
+      (do
+        (jruby-internal/release-budget! pool-context 1)
+        (log/error e (i18n/trs "Failed to create a JRubyInstance; the pool will serve with {0} instance(s) until it can be created."
+                               remaining))
+        (schedule-restore! pool-context 1))
+      (poison-pool! pool e message))))
+
 (schema/defn add-instance
-  [{:keys [config] :as pool-context} :- jruby-schemas/PoolContext
-   id :- schema/Int]
-  (let [pool (jruby-internal/get-pool pool-context)]
-    (try
-      (jruby-internal/create-pool-instance! pool id config
-                                            (:splay-instance-flush config))
-      (catch Exception e
-        (.clear pool)
-        (jruby-internal/insert-poison-pill pool e)
-        (throw (IllegalStateException.
-                 (i18n/tru "There was a problem adding a JRubyInstance to the pool.")
-                 e))))))
+  ([pool-context :- jruby-schemas/PoolContext
+    id :- schema/Int]
+   (add-instance pool-context id nil))
+  ([{:keys [config] :as pool-context} :- jruby-schemas/PoolContext
+    id :- schema/Int
+    previous-retirement :- (schema/maybe jruby-schemas/InstanceRetirement)]
+   (let [pool (jruby-internal/get-pool pool-context)]
+     (try
+       (create-instance!
+        pool-context
+        #(jruby-internal/create-pool-instance! pool id config
+                                               (:splay-instance-flush config)
+                                               (jruby-internal/instance-creation-options pool-context previous-retirement)))
+       (catch Exception e
+         (degrade-or-poison! pool-context e
+                             (i18n/tru "There was a problem adding a JRubyInstance to the pool.")))))))
 
 (schema/defn ^:always-validate
   prime-pool!
   "Fill the pool with new JRubyInstances.  Instantiates the first JRuby (Puppet
   will sometimes alter the filesystem on first instantiation) and the remaining
-  instances in parallel.  NOTE: this function should never be called except by
-  the modify-instance-agent to create a pool's initial jruby instances."
+  instances in parallel.  If the config has a `:heap-budget`, the heap retained
+  by the first instance decides how many of the remaining ones are created.
+  NOTE: this function should never be called except by the
+  modify-instance-agent to create a pool's initial jruby instances."
   [{:keys [config] :as pool-context} :- jruby-schemas/PoolContext]
   (log/debug (format "%s\n%s"
                      (i18n/trs "Initializing JRubyInstances with the following settings:")
                      (ks/pprint-to-string config)))
+  (refresh-load-path! config)
   (let [pool (jruby-internal/get-pool pool-context)
         creation-service (jruby-internal/get-creation-service pool-context)
+        heap-budgeted? (and (:heap-budget config) (instance? JRubyPool pool))
+        heap-before (when heap-budgeted? (heap-sizing/heap-in-use))
         total (.remainingCapacity pool)
-        [first-id & ids] (->> total range (map inc))
+        first-id 1
         add-instance* (fn [id]
                           (log/debug (i18n/trs "Priming JRubyInstance {0} of {1}"
                                                id count))
                           (add-instance pool-context id)
                           (log/info (i18n/trs "Finished creating JRubyInstance {0} of {1}"
                                               id count)))
-        initial-task (fn [] (add-instance* first-id))
-        tasks (for [id ids] (fn [] (add-instance* id)))]
+        initial-task (fn [] (add-instance* first-id))]
     (execute-tasks! [initial-task] creation-service)
-    (when (seq ids)
-      (execute-tasks! tasks creation-service))))
+    (let [total (if heap-budgeted?
+                  (heap-sizing/apply-heap-budget! pool-context heap-before)
+                  total)
+          ids (range (inc first-id) (inc total))]
+      (when (seq ids)
+        (execute-tasks! (for [id ids] (fn [] (add-instance* id))) creation-service)))))
+
+(schema/defn retire-without-replacement!
+  "Cleans up a JRubyInstance retired while the pool is shutting down, which is
+  not replaced. The size of the pool is reduced along with it, as when
+  shrinking the pool, so that a drain for the shutdown neither waits for it
+  nor for a replacement. Should only be called from the modify-instance-agent"
+  [pool-context :- jruby-schemas/PoolContext
+   instance :- JRubyInstance]
+  (let [cleanup-fn (get-in pool-context [:config :lifecycle :cleanup])
+        pool (jruby-internal/get-pool pool-context)
+        state (jruby-internal/get-pool-state-container pool-context)
+        size (:size (swap! state update :size dec))]
+    (jruby-internal/cleanup-pool-instance! instance cleanup-fn)
+    (.setMaxSize ^JRubyPool pool size)
+    (jruby-internal/release-budget! pool-context 1)
+    (log/info (i18n/trs "Not replacing JRubyInstance {0}, since the pool is shutting down."
+                        (:id instance)))))
 
 (schema/defn ^:always-validate
   flush-instance!
   "Flush a single JRubyInstance.  Create a new replacement instance
-  and insert it into the specified pool. Should only be called from
-  the modify-instance-agent"
+  and insert it into the specified pool, unless the pool has started to shut
+  down. Should only be called from the modify-instance-agent"
   [pool-context :- jruby-schemas/PoolContext
    instance :- JRubyInstance
    new-id :- schema/Int
    config :- jruby-schemas/JRubyConfig]
   (let [cleanup-fn (get-in pool-context [:config :lifecycle :cleanup])
         pool (jruby-internal/get-pool pool-context)]
-    (jruby-internal/cleanup-pool-instance! instance cleanup-fn)
-    (jruby-internal/create-pool-instance! pool new-id config)))
+    (jruby-internal/invalidate-call-cache! pool-context)
+    (if (jruby-internal/shutting-down? pool-context)
+      (retire-without-replacement! pool-context instance)
+      (do
+        (jruby-internal/cleanup-pool-instance! instance cleanup-fn)
+        (try
+          (create-instance!
+           pool-context
+           #(jruby-internal/create-pool-instance! pool new-id config false
+                                                  (jruby-internal/instance-creation-options
+                                                   pool-context
+                                                   (jruby-internal/retirement instance :max-borrows))))
+          (catch Exception e
+            (if (degradable? pool-context)
+              (degrade-or-poison! pool-context e
+                                  (i18n/tru "There was a problem adding a JRubyInstance to the pool."))
+              (throw e))))))))
+
+(schema/defn ^:always-validate
+  grow-pool! :- schema/Bool
+  "Adds one JRubyInstance to the pool, unless it is already at the capacity it
+  was created with or at the limit set by its heap budget. Returns whether an
+  instance was added; if the pool is `degradable?`, failing to create the
+  instance leaves the pool as it was. Should only be called from the
+  modify-instance-agent"
+  [{:keys [config] :as pool-context} :- jruby-schemas/PoolContext]
+  (let [pool (jruby-internal/get-pool pool-context)
+        size (jruby-internal/get-pool-size pool-context)
+        id (->> (.getRegisteredElements pool) (map :id) (reduce max 0) inc)]
+    (if (and (< size (.getCapacity pool))
+             (heap-sizing/within-heap-limit? pool-context (inc size)))
+      (do
+        ;; The pool lock is only granted once every instance up to the max
+        ;; size is registered, so raising the max size before the recorded
+        ;; size means that a concurrent `borrow-all-jrubies` can't be given
+        ;; the lock until the new instance is in the pool, and then borrows
+        ;; it along with the rest.  A failure lowers them in the reverse
+        ;; order.
+        (.setMaxSize pool (inc size))
+        (swap! (jruby-internal/get-pool-state-container pool-context) update :size inc)
+        (if (try
+              (create-instance!
+               pool-context
+               #(jruby-internal/create-pool-instance! pool id config
+                                                      (:splay-instance-flush config)
+                                                      (jruby-internal/instance-creation-options pool-context)))
+              true
+              (catch Exception e
+                (if (degradable? pool-context)
+                  (do
+                    (swap! (jruby-internal/get-pool-state-container pool-context) update :size dec)
+                    (.setMaxSize pool size)
+                    (log/error e (i18n/trs "Failed to grow JRuby pool; it remains at {0} instances" size))
+                    false)
+                  (poison-pool! pool e (i18n/tru "There was a problem adding a JRubyInstance to the pool.")))))
+          (do
+            (log/info (i18n/trs "Grew JRuby pool to {0} instances" (inc size)))
+            true)
+          false))
+      false)))
+
+(schema/defn ^:always-validate
+  restore-degraded-capacity!
+  "Tries again to create the instances given up on by `degrade-or-poison!`,
+  growing the pool back towards its full size, as the `retry`th retry of
+  them, or as a fresh start if `retry` is 0. If some still can't be created,
+  another retry is scheduled; once the retries are used up, the pool keeps
+  serving without them until it is next flushed, unless it has no instance
+  left, in which case it is poisoned. Should only be called from the
+  modify-instance-agent"
+  ([pool-context :- jruby-schemas/PoolContext]
+   (restore-degraded-capacity! pool-context 0))
+  ([pool-context :- jruby-schemas/PoolContext
+    retry :- schema/Int]
+   (let [state (jruby-internal/get-pool-state-container pool-context)]
+     (when (pos? retry)
+       (swap! state dissoc :restore-scheduled))
+     (let [degraded (get @state :degraded 0)]
+       (when (and (pos? degraded)
+                  (not (jruby-internal/shutting-down? pool-context)))
+         (log/info (i18n/trs "Trying to restore {0} JRubyInstance(s) which could not be created earlier." degraded))
+         (dotimes [_ degraded]
+           ;; The slot was returned to the instance budget when it was given
+           ;; up, so it has to be allocated again
+           (when (jruby-internal/reserve-budget! pool-context 1)
+             (if (grow-pool! pool-context)
+               (swap! state update :degraded dec)
+               (jruby-internal/release-budget! pool-context 1))))
+         (when (and (pos? (get @state :degraded 0))
+                    (not (schedule-restore! pool-context (inc retry)))
+                    (zero? (jruby-internal/get-pool-size pool-context)))
+           (poison-pool! (jruby-internal/get-pool pool-context)
+                         (IllegalStateException.
+                          (i18n/tru "Gave up creating JRubyInstances after {0} retries."
+                                    (get-in pool-context [:config :creation-retries])))
+                         (i18n/tru "There was a problem adding a JRubyInstance to the pool."))))))))
+
+(schema/defn ^:always-validate
+  shrink-pool! :- schema/Bool
+  "Retires one idle JRubyInstance from the pool, reducing its size by one.
+  Returns false, leaving the pool as it was, if no instance is idle. Should
+  only be called from the modify-instance-agent"
+  [pool-context :- jruby-schemas/PoolContext]
+  (let [pool (jruby-internal/get-pool pool-context)
+        cleanup-fn (get-in pool-context [:config :lifecycle :cleanup])
+        instance (.borrowItemWithTimeout pool 0 TimeUnit/MILLISECONDS)]
+    (if (jruby-schemas/jruby-instance? instance)
+      (let [size (dec (jruby-internal/get-pool-size pool-context))]
+        ;; The size is reduced before the instance is unregistered, since the
+        ;; pool cannot be locked until it is
+        (swap! (jruby-internal/get-pool-state-container pool-context) assoc :size size)
+        (jruby-internal/cleanup-pool-instance! instance cleanup-fn)
+        (.setMaxSize pool size)
+        (log/info (i18n/trs "Shrank JRuby pool to {0} instances" size))
+        true)
+      false)))
 
 (schema/defn borrow-all-jrubies*
   "The core logic for borrow-all-jrubies. Should only be called from borrow-all-jrubies"
   [pool-context :- jruby-schemas/PoolContext
    borrow-exception :- IDeref]
   (let [pool-size (jruby-internal/get-pool-size pool-context)
-        pool (jruby-internal/get-pool pool-context)
-        borrow-fn (partial jruby-internal/borrow-from-pool pool-context)]
+        pool (jruby-internal/get-pool pool-context)]
     (try
-      (into [] (repeatedly pool-size borrow-fn))
+      ;; The pool is locked, and the lock is only granted once every instance
+      ;; has been returned, so this takes all of them in one step rather than
+      ;; going through the full borrow path once per instance.
+      (jruby-internal/borrow-many-from-pool pool-context pool-size)
 
       ; We catch the exception here, place it in the borrow-exception atom
       ; for use in the calling fn, and then throw it again so that
@@ -133,7 +402,14 @@
         (.unlock pool)))))
 
 (schema/defn borrow-all-jrubies :- [JRubyInstance]
-  "Locks the pool and borrows all the instances"
+  "Locks the pool and borrows all the instances.
+
+  The instances are taken in one `borrowItems` batch once the lock has been
+  granted, rather than a batch at a time as they are returned. The lock has
+  to be held from the start of the drain anyway, so that no instance of the
+  old generation is lent out again, and it is released as soon as the batch
+  has been taken; borrowing earlier, under the same lock, would not shorten
+  the time for which borrowers are held off."
   [pool-context :- jruby-schemas/PoolContext]
   (let [pool (jruby-internal/get-pool pool-context)
         flush-timeout (jruby-internal/get-flush-timeout pool-context)
@@ -162,6 +438,8 @@
   [pool-context :- jruby-schemas/PoolContext
    old-instances :- [JRubyInstance]
    refill? :- schema/Bool]
+  (when refill?
+    (refresh-load-path! (:config pool-context)))
   (let [pool (jruby-internal/get-pool pool-context)
         pool-size (jruby-internal/get-pool-size pool-context)
         creation-service (jruby-internal/get-creation-service pool-context)
@@ -172,17 +450,22 @@
           (fn [old-instance new-id]
               (try
                 (jruby-internal/cleanup-pool-instance! old-instance cleanup-fn)
-                (when refill?
-                  (jruby-internal/create-pool-instance! pool new-id config
-                                                        (:splay-instance-flush config))
-                  (log/info (i18n/trs "Finished creating JRubyInstance {0} of {1}"
-                                       new-id pool-size)))
                 (catch Exception e
-                  (.clear pool)
-                  (jruby-internal/insert-poison-pill pool e)
-                  (throw (IllegalStateException.
-                          (i18n/trs "There was a problem creating a JRubyInstance for the pool.")
-                          e)))))
+                  (poison-pool! pool e (i18n/trs "There was a problem creating a JRubyInstance for the pool."))))
+              (when refill?
+                (try
+                  (create-instance!
+                   pool-context
+                   #(jruby-internal/create-pool-instance! pool new-id config
+                                                          (:splay-instance-flush config)
+                                                          (jruby-internal/instance-creation-options
+                                                           pool-context
+                                                           (jruby-internal/retirement old-instance :pool-flush))))
+                  (log/info (i18n/trs "Finished creating JRubyInstance {0} of {1}"
+                                       new-id pool-size))
+                  (catch Exception e
+                    (degrade-or-poison! pool-context e
+                                        (i18n/trs "There was a problem creating a JRubyInstance for the pool."))))))
         [[first-old-inst first-new-id] & remaining] (zipmap old-instances new-instance-ids)
         first-task [(fn [] (cleanup-and-refill-instance first-old-inst first-new-id))]
         remaining-tasks (for [[old-instance new-id] remaining]
@@ -190,6 +473,8 @@
     (execute-tasks! first-task creation-service)
     (when remaining-tasks
       (execute-tasks! remaining-tasks creation-service)))
+  (when refill?
+    (restore-degraded-capacity! pool-context))
   (if refill?
     (log/info (i18n/trs "Finished draining and refilling pool."))
     (log/info (i18n/trs "Finished draining pool."))))
@@ -213,6 +498,7 @@
      (log/info (i18n/trs "Draining and refilling JRuby pool."))
      (log/info (i18n/trs "Draining JRuby pool.")))
    (let [old-instances (borrow-all-jrubies pool-context)
+         _ (jruby-internal/invalidate-call-cache! pool-context)
          modify-instance-agent (get-modify-instance-agent pool-context)
          ; Make sure the promise is delivered even if cleanup fails
          try-cleanup-and-refill #(try
@@ -221,9 +507,110 @@
      (log/info (i18n/trs "Borrowed all JRuby instances, proceeding with cleanup."))
      (send-agent modify-instance-agent try-cleanup-and-refill))))
 
+(def shutdown-poll-interval
+  "How often, in milliseconds, a bounded shutdown checks for borrowed
+  instances having been returned to the pool."
+  100)
+
+(defn- millis-since
+  [start]
+  (- (System/currentTimeMillis) start))
+
+(defn- terminator-service
+  "Creates the ExecutorService used to terminate instances during a bounded
+  shutdown. Its threads are daemons, so that any termination which is
+  abandoned at the deadline does not hold up the exit of the JVM."
+  []
+  (Executors/newCachedThreadPool
+   (reify ThreadFactory
+     (newThread [_ runnable]
+       (doto (Thread. ^Runnable runnable "jruby-pool-shutdown")
+         (.setDaemon true))))))
+
+(schema/defn submit-terminations :- [Future]
+  "Starts cleaning up and terminating each of the given instances in parallel."
+  [terminator :- ExecutorService
+   instances :- [JRubyInstance]
+   cleanup-fn :- IFn]
+  (vec
+   (for [instance instances]
+     (.submit terminator ^Callable #(jruby-internal/cleanup-pool-instance! instance cleanup-fn)))))
+
+(schema/defn await-terminations :- schema/Int
+  "Waits until the deadline for the given terminations to finish, returning
+  the number which did not finish in time."
+  [terminations :- [Future]
+   deadline :- schema/Int]
+  (count
+   (remove (fn [^Future termination]
+             (try
+               (.get termination
+                     (max 0 (- deadline (System/currentTimeMillis)))
+                     TimeUnit/MILLISECONDS)
+               true
+               (catch TimeoutException _
+                 false)
+               (catch ExecutionException e
+                 (log/error (.getCause e) (i18n/trs "Error terminating JRubyInstance during shutdown"))
+                 true)))
+           terminations)))
+
 (schema/defn ^:always-validate
-  flush-pool-for-shutdown!
-  "Flush of the current JRuby pool when shutting down during a stop."
+  flush-pool-for-shutdown-with-timeout!
+  "Flush of the current JRuby pool when shutting down during a stop, taking
+  no longer than the configured `:shutdown-timeout`. Rather than waiting to
+  borrow every instance, no further instances are lent out, all of the idle
+  instances are terminated in parallel straight away and the borrowed ones
+  are terminated as they are returned. Instances which are still borrowed or
+  still terminating at the deadline are abandoned."
+  [pool-context :- jruby-schemas/PoolContext]
+  (let [pool (jruby-internal/get-pool pool-context)
+        timeout (jruby-internal/get-shutdown-timeout pool-context)
+        cleanup-fn (get-in pool-context [:config :lifecycle :cleanup])
+        terminator (terminator-service)
+        start (System/currentTimeMillis)
+        deadline (+ start timeout)]
+    (log/info (i18n/trs "Shutting down JRuby pool, allowing at most {0}ms." timeout))
+    (try
+      ;; Insert the pill before clearing the pool, so that an instance
+      ;; returned between the two is cleared too, rather than lent out again
+      (jruby-internal/insert-shutdown-poison-pill pool)
+      (jruby-internal/invalidate-call-cache! pool-context)
+      (let [idle (vec (.clear pool))
+            terminations (atom (submit-terminations terminator idle cleanup-fn))]
+        (log/info (i18n/trs "Stopped lending JRuby instances after {0}ms; terminating {1} idle instance(s)."
+                            (millis-since start) (count idle)))
+        (let [wait-start (System/currentTimeMillis)]
+          (loop []
+            (when-let [returned (seq (.clear pool))]
+              (swap! terminations into (submit-terminations terminator returned cleanup-fn)))
+            (when (and (not (.isEmpty (.getRegisteredElements pool)))
+                       (< (System/currentTimeMillis) deadline))
+              (Thread/sleep (min shutdown-poll-interval
+                                 (max 1 (- deadline (System/currentTimeMillis)))))
+              (recur)))
+          (let [outstanding (map :id (.getRegisteredElements pool))]
+            (if (empty? outstanding)
+              (log/info (i18n/trs "All borrowed JRuby instances were returned after {0}ms."
+                                  (millis-since wait-start)))
+              (log/warn (i18n/trs "Abandoning JRuby instance(s) {0} which were still borrowed after {1}ms."
+                                  (vec outstanding) (millis-since wait-start))))))
+        (let [termination-start (System/currentTimeMillis)
+              abandoned (await-terminations @terminations deadline)]
+          (if (zero? abandoned)
+            (log/info (i18n/trs "Finished terminating {0} JRuby instance(s) after a further {1}ms."
+                                (count @terminations) (millis-since termination-start)))
+            (log/warn (i18n/trs "Abandoning {0} of {1} JRuby instance termination(s) which had not finished after a further {2}ms."
+                                abandoned (count @terminations) (millis-since termination-start))))))
+      (finally
+        ;; Interrupts any terminations which are still running
+        (.shutdownNow terminator)
+        (log/info (i18n/trs "Finished shutting down JRuby pool in {0}ms." (millis-since start)))))))
+
+(schema/defn ^:always-validate
+  flush-pool-for-shutdown-without-timeout!
+  "Flush of the current JRuby pool when shutting down during a stop, waiting
+  for every instance to be returned to the pool."
   ;; Since the drain-pool! function takes the pool lock, we know that if we
   ;; receive multiple flush requests before the first one finishes, they will
   ;; be queued up waiting for the lock, which will never be granted because this
@@ -239,6 +626,16 @@
     @on-complete
     (log/debug (i18n/trs "Finished flush of JRuby pools for shutdown"))))
 
+(schema/defn ^:always-validate
+  flush-pool-for-shutdown!
+  "Flush of the current JRuby pool when shutting down during a stop. Bounded
+  by the `:shutdown-timeout` from the config, if that is positive."
+  [pool-context :- jruby-schemas/PoolContext]
+  (jruby-internal/mark-shutting-down! pool-context)
+  (if (pos? (jruby-internal/get-shutdown-timeout pool-context))
+    (flush-pool-for-shutdown-with-timeout! pool-context)
+    (flush-pool-for-shutdown-without-timeout! pool-context)))
+
 (schema/defn ^:always-validate
   flush-and-repopulate-pool!
   "Flush of the current JRuby pool. Blocks until all the instances have
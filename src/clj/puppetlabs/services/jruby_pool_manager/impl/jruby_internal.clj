@@ -7,15 +7,25 @@
             [clojure.tools.logging :as log]
             [me.raynes.fs :as fs]
             [puppetlabs.i18n.core :as i18n]
+            [puppetlabs.services.jruby-pool-manager.impl.canary :as canary]
+            [puppetlabs.services.jruby-pool-manager.impl.compile-cache :as compile-cache]
+            [puppetlabs.services.jruby-pool-manager.impl.gemspec-index :as gemspec-index]
+            [puppetlabs.services.jruby-pool-manager.impl.require-index :as require-index]
+            [puppetlabs.services.jruby-pool-manager.impl.shared-data :as shared-data]
+            [puppetlabs.services.jruby-pool-manager.impl.warm-up :as warm-up]
             [puppetlabs.services.jruby-pool-manager.jruby-schemas :as jruby-schemas]
             [slingshot.slingshot :as sling]
             [schema.core :as schema])
   (:import (clojure.lang IFn)
-           (com.puppetlabs.jruby_utils.pool JRubyPool ReferencePool)
+           (com.puppetlabs.jruby_utils.pool InstanceStatistics JRubyPool JRubyPoolMonitor
+                                            ReferencePool SharedDataStore SingleFlightCache)
            (com.puppetlabs.jruby_utils.jruby InternalScriptingContainer
                                              ScriptingContainer)
            (java.io File)
+           (javax.management InstanceAlreadyExistsException ObjectName)
            (java.util.concurrent TimeUnit Executors ExecutorService)
+           (java.util.concurrent.atomic AtomicLong LongAccumulator LongAdder)
+           (java.util.function LongBinaryOperator Supplier)
            (org.jruby CompatVersion Main Ruby RubyInstanceConfig RubyInstanceConfig$CompileMode RubyInstanceConfig$ProfilingMode)
            (org.jruby.embed LocalContextScope)
            (org.jruby.runtime.profile.builtin ProfileOutput)
@@ -34,9 +44,13 @@
 
 (defn instantiate-instance-pool
   "Instantiate a new queue object to use as the pool of free JRuby's."
-  [size]
-  {:post [(instance? jruby-schemas/pool-queue-type %)]}
-  (JRubyPool. size))
+  ([size]
+   (instantiate-instance-pool size false))
+  ([size fair?]
+   (instantiate-instance-pool size size fair?))
+  ([capacity size fair?]
+   {:post [(instance? jruby-schemas/pool-queue-type %)]}
+   (JRubyPool. capacity size fair?)))
 
 (defn instantiate-reference-pool
   "Instantiate a new queue object to use as the pool of free JRuby's."
@@ -44,6 +58,14 @@
   {:post [(instance? jruby-schemas/pool-queue-type %)]}
   (ReferencePool. max-concurrent-borrows))
 
+(schema/defn ^:always-validate create-call-cache :- SingleFlightCache
+  "Create the cache used by `jruby-core/cached-call` from the call cache
+  settings in the config."
+  [config :- jruby-schemas/JRubyConfig]
+  (SingleFlightCache. (:call-cache-max-entries config)
+                      (:call-cache-ttl config)
+                      TimeUnit/MILLISECONDS))
+
 (schema/defn ^:always-validate get-compile-mode :- RubyInstanceConfig$CompileMode
   [config-compile-mode :- jruby-schemas/SupportedJRubyCompileModes]
   (case config-compile-mode
@@ -89,43 +111,100 @@
     (set-config-encoding kcode jruby)
     (set-config-encoding kcode (.getRubyInstanceConfig (.getProvider jruby)))))
 
+(schema/defn ^:always-validate set-jit-settings :- jruby-schemas/ConfigurableJRuby
+  "Sets the JIT threshold and maximum given for `profile`, if any; otherwise
+  JRuby's defaults apply."
+  [jruby :- jruby-schemas/ConfigurableJRuby
+   config :- jruby-schemas/JRubyConfig
+   profile :- jruby-schemas/InstanceProfile]
+  (let [threshold (canary/profile-setting config profile :jit-threshold)
+        max-methods (canary/profile-setting config profile :jit-max)]
+    (when (or threshold max-methods)
+      (let [^RubyInstanceConfig ruby-config (if (instance? RubyInstanceConfig jruby)
+                                              jruby
+                                              (.getRubyInstanceConfig (.getProvider jruby)))]
+        (when threshold
+          (.setJitThreshold ruby-config threshold))
+        (when max-methods
+          (.setJitMax ruby-config max-methods))))
+    jruby))
+
 (schema/defn ^:always-validate init-jruby :- jruby-schemas/ConfigurableJRuby
   "Applies configuration to a JRuby... thing.  See comments in `ConfigurableJRuby`
-  schema for more details."
-  [jruby :- jruby-schemas/ConfigurableJRuby
-   config :- jruby-schemas/JRubyConfig]
-  (let [{:keys [ruby-load-path compile-mode lifecycle profiling-mode profiler-output-file]} config
-        initialize-scripting-container-fn (:initialize-scripting-container lifecycle)]
-    (doto jruby
-      (.setLoadPaths ruby-load-path)
-      (.setCompileMode (get-compile-mode compile-mode)))
-    (set-ruby-encoding KCode/UTF8 jruby)
-    (setup-profiling jruby profiler-output-file profiling-mode)
-    (System/setProperty "jruby.invokedynamic.yield" "false")
-    (initialize-scripting-container-fn jruby config)))
+  schema for more details. If a `shared-data` store is given, it is exposed
+  to a container before the `:initialize-scripting-container` lifecycle
+  function is called."
+  ([jruby :- jruby-schemas/ConfigurableJRuby
+    config :- jruby-schemas/JRubyConfig]
+   (init-jruby jruby config :default))
+  ([jruby :- jruby-schemas/ConfigurableJRuby
+    config :- jruby-schemas/JRubyConfig
+    profile :- jruby-schemas/InstanceProfile]
+   (init-jruby jruby config profile nil))
+  ([jruby :- jruby-schemas/ConfigurableJRuby
+    config :- jruby-schemas/JRubyConfig
+    profile :- jruby-schemas/InstanceProfile
+    shared-data :- (schema/maybe SharedDataStore)]
+   (let [{:keys [lifecycle profiling-mode profiler-output-file]} config
+         compile-mode (canary/profile-setting config profile :compile-mode)
+         initialize-scripting-container-fn (:initialize-scripting-container lifecycle)]
+     (doto jruby
+       (.setLoadPaths (compile-cache/load-path config))
+       (.setCompileMode (get-compile-mode compile-mode)))
+     (set-jit-settings jruby config profile)
+     (set-ruby-encoding KCode/UTF8 jruby)
+     (setup-profiling jruby profiler-output-file profiling-mode)
+     (System/setProperty "jruby.invokedynamic.yield" "false")
+     ;; Only containers, not the configs of CLI runs, have a runtime to set
+     ;; the global in
+     (when (and shared-data (instance? InternalScriptingContainer jruby))
+       (shared-data/expose! jruby shared-data))
+     (initialize-scripting-container-fn jruby config))))
 
 (schema/defn ^:always-validate empty-scripting-container :- ScriptingContainer
   "Creates a clean instance of a JRuby `ScriptingContainer` with no code loaded."
-  [config :- jruby-schemas/JRubyConfig]
-  (-> (InternalScriptingContainer. LocalContextScope/SINGLETHREAD)
-      (init-jruby config)))
+  ([config :- jruby-schemas/JRubyConfig]
+   (empty-scripting-container config :default))
+  ([config :- jruby-schemas/JRubyConfig
+    profile :- jruby-schemas/InstanceProfile]
+   (empty-scripting-container config profile nil))
+  ([config :- jruby-schemas/JRubyConfig
+    profile :- jruby-schemas/InstanceProfile
+    shared-data :- (schema/maybe SharedDataStore)]
+   (-> (doto (InternalScriptingContainer. (canary/context-scope config profile))
+         ;; The one container of a multithreaded pool is used by many threads
+         ;; at once, which a parsed scriptlet can't be
+         (.setScriptletCacheMaxEntries (if (:multithreaded config)
+                                         0
+                                         (:scriptlet-cache-max-entries config))))
+       (init-jruby config profile shared-data))))
 
 (schema/defn ^:always-validate create-scripting-container :- ScriptingContainer
-  "Creates an instance of `org.jruby.embed.ScriptingContainer`."
-  [config :- jruby-schemas/JRubyConfig]
-  ;; for information on other legal values for `LocalContextScope`, there
-  ;; is some documentation available in the JRuby source code; e.g.:
-  ;; https://github.com/jruby/jruby/blob/1.7.11/core/src/main/java/org/jruby/embed/LocalContextScope.java#L58
-  ;; I'm convinced that this is the safest and most reasonable value
-  ;; to use here, but we could potentially explore optimizations in the future.
-  (doto (empty-scripting-container config)
-    ;; As of JRuby 1.7.20 (and the associated 'jruby-openssl' it pulls in),
-    ;; we need to explicitly require 'jar-dependencies' so that it is used
-    ;; to manage jar loading.  We do this so that we can instruct
-    ;; 'jar-dependencies' to not actually load any jars.  See the environment
-    ;; variable configuration in 'init-jruby-config' for more
-    ;; information.
-    (.runScriptlet "require 'jar-dependencies'")))
+  "Creates an instance of `org.jruby.embed.ScriptingContainer`, tuned as
+  given by `profile`, which reads from the `shared-data` store, if any."
+  ([config :- jruby-schemas/JRubyConfig]
+   (create-scripting-container config :default))
+  ([config :- jruby-schemas/JRubyConfig
+    profile :- jruby-schemas/InstanceProfile]
+   (create-scripting-container config profile nil))
+  ([config :- jruby-schemas/JRubyConfig
+    profile :- jruby-schemas/InstanceProfile
+    shared-data :- (schema/maybe SharedDataStore)]
+   ;; for information on other legal values for `LocalContextScope`, there
+   ;; is some documentation available in the JRuby source code; e.g.:
+   ;; https://github.com/jruby/jruby/blob/1.7.11/core/src/main/java/org/jruby/embed/LocalContextScope.java#L58
+   ;; I'm convinced that SINGLETHREAD is the safest and most reasonable value
+   ;; to use here, but canary instances may be configured to use another.
+   (doto (empty-scripting-container config profile shared-data)
+     (require-index/install! config)
+     (gemspec-index/install! config)
+     ;; As of JRuby 1.7.20 (and the associated 'jruby-openssl' it pulls in),
+     ;; we need to explicitly require 'jar-dependencies' so that it is used
+     ;; to manage jar loading.  We do this so that we can instruct
+     ;; 'jar-dependencies' to not actually load any jars.  See the environment
+     ;; variable configuration in 'init-jruby-config' for more
+     ;; information.
+     (.runScriptlet "require 'jar-dependencies'"))))
 
 (schema/defn borrow-with-timeout-fn :- jruby-schemas/JRubyInternalBorrowResult
   [timeout :- schema/Int
@@ -180,19 +259,27 @@
 
 (schema/defn ^:always-validate
   create-pool-from-config :- jruby-schemas/PoolState
-  "Create a new PoolState based on the config input."
-  [config :- jruby-schemas/JRubyConfig]
-  (let [multithreaded (:multithreaded config)
-        size (:max-active-instances config)
-        creation-concurrency (:instance-creation-concurrency config)
-        creation-service (Executors/newFixedThreadPool creation-concurrency)]
-    (if multithreaded
-      {:pool (instantiate-reference-pool size)
-       :size 1
-       :creation-service creation-service}
-      {:pool (instantiate-instance-pool size)
-       :size size
-       :creation-service creation-service})))
+  "Create a new PoolState based on the config input. A pool whose instances
+  count against an InstanceBudget starts at its `:min-active-instances`, can
+  grow to its `:max-active-instances`, and creates its instances with the
+  budget's shared creation-service."
+  ([config :- jruby-schemas/JRubyConfig]
+   (let [creation-concurrency (:instance-creation-concurrency config)]
+     (create-pool-from-config config
+                              (Executors/newFixedThreadPool creation-concurrency)
+                              (:max-active-instances config))))
+  ([config :- jruby-schemas/JRubyConfig
+    creation-service :- ExecutorService
+    initial-size :- schema/Int]
+   (let [multithreaded (:multithreaded config)
+         size (:max-active-instances config)]
+     (if multithreaded
+       {:pool (instantiate-reference-pool size)
+        :size 1
+        :creation-service creation-service}
+       {:pool (instantiate-instance-pool size initial-size (:fair-borrows config))
+        :size initial-size
+        :creation-service creation-service}))))
 
 (schema/defn ^:always-validate
   cleanup-pool-instance!
@@ -226,9 +313,34 @@
       (when-not (= 0 step-size)
         (* step-size which-step)))))
 
+(schema/defn ^:always-validate
+  retirement :- jruby-schemas/InstanceRetirement
+  "Describes the retirement of `instance` for `reason`, to be recorded on the
+  JRubyInstance which replaces it."
+  [instance :- JRubyInstance
+   reason :- schema/Keyword]
+  (cond-> {:id (:id instance)
+           :reason reason
+           :borrow-count (:borrow-count @(get-in instance [:internal :state]))
+           :generation (get-in instance [:internal :generation] 0)}
+    (get-in instance [:internal :profile]) (assoc :profile (get-in instance [:internal :profile]))))
+
+(defn- max-accumulator
+  "A LongAccumulator holding the largest value given to it, or -1 if it has
+  not been given any."
+  []
+  (LongAccumulator. (reify LongBinaryOperator
+                      (applyAsLong [_ x y]
+                        (Math/max x y)))
+                    -1))
+
 (schema/defn ^:always-validate
   create-pool-instance! :- JRubyInstance
-  "Creates a new JRubyInstance and adds it to the pool."
+  "Creates a new JRubyInstance and adds it to the pool. If the new instance
+  replaces one which has been retired, the `:previous-retirement` option
+  describes why, and the new instance is created with the same profile, as
+  the next generation. See `jruby-schemas/InstanceCreationOptions`, and
+  `instance-creation-options` for the options of a pool context."
   ([pool :- jruby-schemas/pool-queue-type
     id :- schema/Int
     config :- jruby-schemas/JRubyConfig]
@@ -237,9 +349,17 @@
     id :- schema/Int
     config :- jruby-schemas/JRubyConfig
     initial-jruby? :- schema/Bool]
+   (create-pool-instance! pool id config initial-jruby? {}))
+  ([pool :- jruby-schemas/pool-queue-type
+    id :- schema/Int
+    config :- jruby-schemas/JRubyConfig
+    initial-jruby? :- schema/Bool
+    {:keys [previous-retirement call-recorder shared-data]} :- jruby-schemas/InstanceCreationOptions]
    (let [{:keys [ruby-load-path lifecycle
                  max-active-instances max-borrows-per-instance]} config
          initialize-pool-instance-fn (:initialize-pool-instance lifecycle)
+         profile (or (:profile previous-retirement)
+                     (canary/instance-profile config id))
          initial-borrows (initial-borrows-value id
                                                 max-active-instances
                                                 max-borrows-per-instance
@@ -247,17 +367,42 @@
     (when-not ruby-load-path
       (throw (Exception.
                (i18n/trs "JRuby service missing config value 'ruby-load-path'"))))
-    (log/info (i18n/trs "Creating JRubyInstance with id {0}." id))
-    (let [scripting-container (create-scripting-container
-                                config)]
-      (let [instance (jruby-schemas/map->JRubyInstance
+    (if (= :canary profile)
+      (log/info (i18n/trs "Creating canary JRubyInstance with id {0}, tuned with {1}."
+                          id (pr-str (dissoc (:canary config) :fraction))))
+      (log/info (i18n/trs "Creating JRubyInstance with id {0}." id)))
+    (let [created-at (System/currentTimeMillis)
+          scripting-container (create-scripting-container
+                                config profile shared-data)]
+      (let [state (atom {:borrow-count 0
+                         :created-at created-at
+                         :creation-duration 0
+                         :warm-up-duration 0
+                         :previous-retirement previous-retirement})
+            instance (jruby-schemas/map->JRubyInstance
                        {:scripting-container scripting-container
                         :id id
                         :internal {:pool pool
                                    :max-borrows max-borrows-per-instance
                                    :initial-borrows initial-borrows
-                                   :state (atom {:borrow-count 0})}})
-            modified-instance (initialize-pool-instance-fn instance)]
+                                   :state state
+                                   :busy-time (LongAdder.)
+                                   :last-borrowed-at (max-accumulator)
+                                   :profile profile
+                                   :generation (if previous-retirement
+                                                 (inc (:generation previous-retirement))
+                                                 0)}})
+            ;; A container which never makes it into the pool would otherwise
+            ;; be leaked, once per attempt if creations are retried
+            modified-instance (try
+                                (let [modified-instance (initialize-pool-instance-fn instance)]
+                                  (swap! state assoc :creation-duration (- (System/currentTimeMillis) created-at))
+                                  (swap! state assoc :warm-up-duration
+                                         (warm-up/warm-up! modified-instance config call-recorder))
+                                  modified-instance)
+                                (catch Exception e
+                                  (.terminate scripting-container)
+                                  (throw e)))]
         (.register pool modified-instance)
         modified-instance)))))
 
@@ -285,6 +430,35 @@
   [context :- jruby-schemas/PoolContext]
   (:size (get-pool-state context)))
 
+(schema/defn mark-shutting-down!
+  "Records that the pool has started to shut down, so that instances retired
+  from then on are not replaced."
+  [context :- jruby-schemas/PoolContext]
+  (swap! (get-pool-state-container context) assoc :shutting-down true))
+
+(schema/defn shutting-down? :- schema/Bool
+  "Whether the pool has started to shut down."
+  [context :- jruby-schemas/PoolContext]
+  (true? (:shutting-down (get-pool-state context))))
+
+(schema/defn reserve-budget! :- schema/Bool
+  "Allocates `n` more instances to the pool from the InstanceBudget it
+  shares, if any, before its size is increased by that many. Returns false if
+  the budget can't spare them."
+  [context :- jruby-schemas/PoolContext
+   n :- schema/Int]
+  (if-let [resize-budget (get-in context [:internal :resize-budget])]
+    (resize-budget n)
+    true))
+
+(schema/defn release-budget!
+  "Returns `n` of the pool's instances to the InstanceBudget it shares, if
+  any, once its size has been reduced by that many."
+  [context :- jruby-schemas/PoolContext
+   n :- schema/Int]
+  (when-let [resize-budget (get-in context [:internal :resize-budget])]
+    (resize-budget (- n))))
+
 (schema/defn
   get-creation-service :- ExecutorService
   "Gets the ExecutorService that will execute instance creation and termination."
@@ -297,16 +471,193 @@
   [context :- jruby-schemas/PoolContext]
   (get-in context [:config :flush-timeout]))
 
+(schema/defn ^:always-validate
+  get-shutdown-timeout :- schema/Int
+  "Gets the total time in milliseconds that shutting down the pool may take,
+  or 0 if shutdown should wait for every instance to be returned."
+  [context :- jruby-schemas/PoolContext]
+  (get-in context [:config :shutdown-timeout]))
+
+(schema/defn ^:always-validate
+  get-call-cache :- SingleFlightCache
+  "Gets the cache used for `jruby-core/cached-call` from the pool context."
+  [context :- jruby-schemas/PoolContext]
+  (get-in context [:internal :call-cache]))
+
+(schema/defn ^:always-validate
+  get-borrow-tracker :- jruby-schemas/BorrowTracker
+  "Gets the record of outstanding borrows from the pool context."
+  [context :- jruby-schemas/PoolContext]
+  (get-in context [:internal :borrow-tracker]))
+
+(schema/defn ^:always-validate
+  get-call-recorder :- (schema/maybe jruby-schemas/CallRecorder)
+  "Gets the recorder of calls to replay against new instances, if any, from
+  the pool context."
+  [context :- jruby-schemas/PoolContext]
+  (get-in context [:internal :call-recorder]))
+
+(schema/defn ^:always-validate
+  get-shared-data :- SharedDataStore
+  "Gets the store of the pool's `:shared-data-files`, which every instance in
+  the pool reads from, from the pool context."
+  [context :- jruby-schemas/PoolContext]
+  (get-in context [:internal :shared-data]))
+
+(schema/defn ^:always-validate
+  instance-creation-options :- jruby-schemas/InstanceCreationOptions
+  "The options for `create-pool-instance!` with which the pool creates an
+  instance, as the replacement of the one whose retirement is
+  `previous-retirement`, if given."
+  ([context :- jruby-schemas/PoolContext]
+   (instance-creation-options context nil))
+  ([context :- jruby-schemas/PoolContext
+    previous-retirement :- (schema/maybe jruby-schemas/InstanceRetirement)]
+   {:previous-retirement previous-retirement
+    :call-recorder (get-call-recorder context)
+    :shared-data (get-shared-data context)}))
+
+(schema/defn ^:always-validate
+  get-profile-counters :- jruby-schemas/ProfileCounters
+  "Gets the counters of borrows by instance profile from the pool context."
+  [context :- jruby-schemas/PoolContext]
+  (get-in context [:internal :profile-counters]))
+
+(schema/defn invalidate-call-cache!
+  "Discards all memoized `jruby-core/cached-call` results. Called whenever
+  instances are flushed, since results may depend upon the state of the
+  instance which produced them."
+  [context :- jruby-schemas/PoolContext]
+  (.invalidate (get-call-cache context)))
+
 (schema/defn ^:always-validate
   get-instance-state-container :- jruby-schemas/JRubyInstanceStateContainer
   "Gets the InstanceStateContainer (atom) from the instance."
   [instance :- JRubyInstance]
   (get-in instance [:internal :state]))
 
+(schema/defn record-borrow!
+  "Notes that `instance` has just been borrowed."
+  [instance :- JRubyInstance]
+  (when-let [^LongAccumulator last-borrowed-at (get-in instance [:internal :last-borrowed-at])]
+    (.accumulate last-borrowed-at (System/currentTimeMillis))))
+
+(schema/defn record-return!
+  "Adds the time for which `instance` was held by a borrow which started at
+  `borrowed-at` to its busy time."
+  [instance :- JRubyInstance
+   borrowed-at :- schema/Int]
+  (when-let [^LongAdder busy-time (get-in instance [:internal :busy-time])]
+    (.add busy-time (- (System/currentTimeMillis) borrowed-at))))
+
+(schema/defn ^:always-validate
+  instance-statistics :- jruby-schemas/InstanceStatistics
+  [context :- jruby-schemas/PoolContext
+   instance :- JRubyInstance]
+  (let [{:keys [borrow-count created-at creation-duration warm-up-duration]
+         :as state} @(get-instance-state-container instance)
+        {:keys [busy-time last-borrowed-at profile]} (:internal instance)]
+    (cond-> {:id (:id instance)
+             ;; A multithreaded pool counts the borrows of its one instance on
+             ;; the pool context rather than in the instance state; the count
+             ;; is reset whenever that instance is replaced.
+             :borrow-count (if-let [^LongAdder pool-borrows (:borrow-count context)]
+                             (.sum pool-borrows)
+                             borrow-count)}
+      created-at (assoc :created-at created-at
+                        :age (- (System/currentTimeMillis) created-at))
+      creation-duration (assoc :creation-duration creation-duration)
+      warm-up-duration (assoc :warm-up-duration warm-up-duration)
+      busy-time (assoc :busy-time (.sum ^LongAdder busy-time))
+      last-borrowed-at (assoc :last-borrowed-at
+                              (let [at (.get ^LongAccumulator last-borrowed-at)]
+                                (when (not= -1 at) at)))
+      profile (assoc :profile profile)
+      (contains? state :previous-retirement) (assoc :previous-retirement
+                                                    (:previous-retirement state)))))
+
+(schema/defn jmx-instance-statistics :- InstanceStatistics
+  "Converts the statistics of an instance into their JMX form."
+  [{:keys [id borrow-count created-at creation-duration warm-up-duration busy-time
+           last-borrowed-at previous-retirement]} :- jruby-schemas/InstanceStatistics]
+  (InstanceStatistics. id borrow-count (or created-at -1) (or creation-duration 0)
+                       (or warm-up-duration 0) (or busy-time 0)
+                       (or last-borrowed-at -1)
+                       (some-> previous-retirement :reason name)))
+
+(def ^:private mbean-name-counter
+  "Numbers the MXBeans of pools which were configured with an object name
+  already in use."
+  (AtomicLong.))
+
+(schema/defn register-pool-mbean!
+  "Publishes the statistics of the pool and its instances over JMX, if the
+  config has a `:jmx-object-name`. If that name is already taken, e.g. by
+  another pool created from the same config, a `pool` key with a number
+  unique to the process is added to it, such as
+  `puppetlabs.jruby:type=JRubyPool,pool=1`. The name used is recorded on the
+  pool context."
+  [context :- jruby-schemas/PoolContext]
+  (when-let [object-name (get-in context [:config :jmx-object-name])]
+    (let [pool (get-pool context)
+          monitor (JRubyPoolMonitor. pool
+                                     (reify Supplier
+                                       (get [_]
+                                         (mapv #(jmx-instance-statistics (instance-statistics context %))
+                                               (.getRegisteredElements pool)))))]
+      (loop [candidate (ObjectName. ^String object-name)]
+        (if (try
+              (jmx/register-mbean monitor candidate)
+              true
+              (catch InstanceAlreadyExistsException _
+                false))
+          (do
+            (when-not (= object-name (str candidate))
+              (log/warn (i18n/trs "JMX object name {0} is already in use; publishing the JRuby pool statistics as {1} instead."
+                                  object-name candidate)))
+            (reset! (get-in context [:internal :mbean-name]) candidate))
+          (recur (ObjectName. (str object-name ",pool=" (.incrementAndGet ^AtomicLong mbean-name-counter)))))))))
+
+(schema/defn unregister-pool-mbean!
+  "Removes the MXBean published by `register-pool-mbean!`, if any."
+  [context :- jruby-schemas/PoolContext]
+  (let [mbean-name (get-in context [:internal :mbean-name])]
+    (when-let [name @mbean-name]
+      (jmx/unregister-mbean name)
+      (reset! mbean-name nil))))
+
 (schema/defn borrow-without-timeout-fn :- jruby-schemas/JRubyInternalBorrowResult
   [pool :- jruby-schemas/pool-queue-type]
   (.borrowItem pool))
 
+(schema/defn checked-borrow-result :- jruby-schemas/JRubyBorrowResult
+  "Checks an object borrowed from the pool, returning it if it is a
+  JRubyInstance, a ShutdownPoisonPill or nil. Throws an exception if it is a
+  PoisonPill, after releasing the pill back to the pool, or if it is not
+  recognized."
+  [pool :- jruby-schemas/pool-queue-type
+   instance]
+  (cond (instance? PoisonPill instance)
+        (do
+          (.releaseItem pool instance)
+          (throw (IllegalStateException.
+                  (i18n/tru "Unable to borrow JRubyInstance from pool")
+                  (:err instance))))
+
+        (jruby-schemas/jruby-instance? instance)
+        instance
+
+        (jruby-schemas/shutdown-poison-pill? instance)
+        instance
+
+        (nil? instance)
+        instance
+
+        :else
+        (throw (IllegalStateException.
+                (i18n/tru "Borrowed unrecognized object from pool!: {0}"
+                          instance)))))
+
 (schema/defn borrow-from-pool!* :- jruby-schemas/JRubyBorrowResult
   "Given a borrow function and a pool, attempts to borrow a JRubyInstance from a pool.
   If successful, updates the state information and returns the JRubyInstance.
@@ -314,27 +665,7 @@
   the borrow function's return value indicates an error condition."
   [borrow-fn :- (schema/pred ifn?)
    pool :- jruby-schemas/pool-queue-type]
-  (let [instance (borrow-fn pool)]
-    (cond (instance? PoisonPill instance)
-          (do
-            (.releaseItem pool instance)
-            (throw (IllegalStateException.
-                    (i18n/tru "Unable to borrow JRubyInstance from pool")
-                    (:err instance))))
-
-          (jruby-schemas/jruby-instance? instance)
-          instance
-
-          (jruby-schemas/shutdown-poison-pill? instance)
-          instance
-
-          (nil? instance)
-          instance
-
-          :else
-          (throw (IllegalStateException.
-                  (i18n/tru "Borrowed unrecognized object from pool!: {0}"
-                            instance))))))
+  (checked-borrow-result pool (borrow-fn pool)))
 
 (schema/defn ^:always-validate
   borrow-from-pool :- jruby-schemas/JRubyInstanceOrPill
@@ -358,6 +689,20 @@
   (borrow-from-pool!* (partial borrow-with-timeout-fn timeout)
                       (get-pool pool-context)))
 
+(schema/defn ^:always-validate
+  borrow-many-from-pool :- [jruby-schemas/JRubyInstanceOrPill]
+  "Borrows `num-instances` JRuby interpreters from the pool at once. All of
+  the instances which are free are taken together, under a single acquisition
+  of the pool's internal lock, and this function only blocks for as many more
+  as are still needed. If a ShutdownPoisonPill is found, it is the last
+  element of the result, which may then hold fewer than `num-instances`
+  elements. Throws an exception if a PoisonPill is found, as for
+  `borrow-from-pool`."
+  [pool-context :- jruby-schemas/PoolContext
+   num-instances :- schema/Int]
+  (let [pool (get-pool pool-context)]
+    (mapv #(checked-borrow-result pool %) (.borrowItems pool num-instances))))
+
 (defn throw-jruby-lock-timeout
   [exception]
   (sling/throw+ {:kind ::jruby-lock-timeout
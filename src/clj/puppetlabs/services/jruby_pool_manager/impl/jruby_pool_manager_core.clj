@@ -2,28 +2,80 @@
   (:require [schema.core :as schema]
             [puppetlabs.services.jruby-pool-manager.jruby-schemas :as jruby-schemas]
             [puppetlabs.services.jruby-pool-manager.impl.jruby-agents :as jruby-agents]
+            [puppetlabs.services.jruby-pool-manager.impl.borrow-tracker :as borrow-tracker]
+            [puppetlabs.services.jruby-pool-manager.impl.warm-up :as warm-up]
+            [puppetlabs.services.jruby-pool-manager.impl.canary :as canary]
+            [puppetlabs.services.jruby-pool-manager.impl.shared-data :as shared-data]
+            [puppetlabs.services.jruby-pool-manager.impl.instance-budget :as instance-budget]
             [puppetlabs.services.protocols.jruby-pool :as pool-protocol]
             [puppetlabs.services.jruby-pool-manager.impl.reference-pool]
             [puppetlabs.services.jruby-pool-manager.impl.instance-pool]
             [puppetlabs.services.jruby-pool-manager.impl.jruby-internal :as jruby-internal])
-  (:import (puppetlabs.services.jruby_pool_manager.jruby_schemas ReferencePool InstancePool)))
+  (:import (puppetlabs.services.jruby_pool_manager.jruby_schemas ReferencePool InstancePool)
+           (java.util.concurrent.atomic AtomicBoolean LongAdder)))
 
 (schema/defn ^:always-validate
   create-pool-context :- jruby-schemas/PoolContext
   "Creates a new JRuby pool context with an empty pool. Once the JRuby
-  pool object has been created, it will need to be filled using `prime-pool!`."
-  [config :- jruby-schemas/JRubyConfig]
-  (let [shutdown-on-error-fn (get-in config [:lifecycle :shutdown-on-error])
-        internal {:modify-instance-agent (jruby-agents/pool-agent shutdown-on-error-fn)
-                  :pool-state            (atom (jruby-internal/create-pool-from-config config))
-                  :event-callbacks       (atom [])}]
-    (if (:multithreaded config)
-      (ReferencePool. config internal (atom 0))
-      (InstancePool. config internal))))
+  pool object has been created, it will need to be filled using `prime-pool!`.
+  If an InstanceBudget is given, the pool's instances count against it."
+  ([config :- jruby-schemas/JRubyConfig]
+   (create-pool-context config nil))
+  ([config :- jruby-schemas/JRubyConfig
+    budget :- (schema/maybe jruby-schemas/InstanceBudget)]
+   (let [shutdown-on-error-fn (get-in config [:lifecycle :shutdown-on-error])
+         tracker (borrow-tracker/create-borrow-tracker config)
+         pool-state (if budget
+                      (jruby-internal/create-pool-from-config
+                       config
+                       (:creation-service budget)
+                       (instance-budget/initial-pool-size budget config))
+                      (jruby-internal/create-pool-from-config config))
+         pool-context-promise (promise)
+         internal (cond-> {:modify-instance-agent (jruby-agents/pool-agent shutdown-on-error-fn)
+                           :pool-state            (atom pool-state)
+                           :event-callbacks       (atom [])
+                           :call-cache            (jruby-internal/create-call-cache config)
+                           :borrow-tracker        tracker
+                           :call-recorder         (warm-up/create-call-recorder config)
+                           :profile-counters      (canary/create-profile-counters)
+                           :tracer                (atom nil)
+                           :mbean-name            (atom nil)
+                           :shared-data           (shared-data/create-store (:shared-data-files config))}
+                    budget (assoc :release-budget
+                                  #(instance-budget/remove-pool! budget @pool-context-promise)
+                                  :resize-budget
+                                  #(if (neg? %)
+                                     (do (instance-budget/release! budget (- %)) true)
+                                     (instance-budget/reserve! budget %))))
+         pool-context (if (:multithreaded config)
+                        (ReferencePool. config internal (LongAdder.) (AtomicBoolean. false))
+                        (InstancePool. config internal))]
+     (deliver pool-context-promise pool-context)
+     (borrow-tracker/start-watchdog! tracker (:long-borrow-threshold config))
+     (jruby-internal/register-pool-mbean! pool-context)
+     (try
+       (when budget
+         (instance-budget/add-pool! budget pool-context))
+       pool-context
+       (catch Throwable e
+         (borrow-tracker/stop-watchdog! tracker)
+         (jruby-internal/unregister-pool-mbean! pool-context)
+         (throw e))))))
 
 (schema/defn ^:always-validate
   create-pool :- jruby-schemas/PoolContext
-  [config :- jruby-schemas/JRubyConfig]
-  (let [pool-context (create-pool-context config)]
-     (pool-protocol/fill pool-context)
-     pool-context))
+  ([config :- jruby-schemas/JRubyConfig]
+   (create-pool config nil))
+  ([config :- jruby-schemas/JRubyConfig
+    budget :- (schema/maybe jruby-schemas/InstanceBudget)]
+   (let [pool-context (create-pool-context config budget)]
+     (try
+       (pool-protocol/fill pool-context)
+       pool-context
+       (catch Throwable e
+         (borrow-tracker/stop-watchdog! (jruby-internal/get-borrow-tracker pool-context))
+         (jruby-internal/unregister-pool-mbean! pool-context)
+         (when-let [release-budget (get-in pool-context [:internal :release-budget])]
+           (release-budget))
+         (throw e))))))
@@ -8,7 +8,8 @@
             [schema.core :as schema])
   (:import (puppetlabs.services.jruby_pool_manager.jruby_schemas ReferencePool
                                                                  JRubyInstance)
-           (java.util.concurrent TimeUnit TimeoutException)))
+           (java.util.concurrent TimeUnit TimeoutException)
+           (java.util.concurrent.atomic AtomicBoolean LongAdder)))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 ;; Private
@@ -16,19 +17,33 @@
 (schema/defn flush-pool*
   "Flushes the pool, assuming it has already been locked by the calling function.
   Do not call this without first locking the pool, or the flush may never complete,
-  since it requires that all references be returned to proceed."
-  [pool-context :- jruby-schemas/PoolContext]
+  since it requires that all references be returned to proceed. `reason` is
+  recorded on the replacement instance as the reason the old one was retired."
+  [pool-context :- jruby-schemas/PoolContext
+   reason :- schema/Keyword]
   (let [pool (jruby-internal/get-pool pool-context)
         borrow-count (:borrow-count pool-context)
         cleanup-fn (get-in pool-context [:config :lifecycle :cleanup])
         old-instance (.borrowItem pool)
         id (inc (:id old-instance))
         _ (.releaseItem pool old-instance)]
+    (jruby-internal/invalidate-call-cache! pool-context)
+    (when (= :pool-flush reason)
+      (jruby-agents/refresh-load-path! (:config pool-context)))
     ;; This will block waiting for all borrows to be returned
     (jruby-internal/cleanup-pool-instance! old-instance cleanup-fn)
-    (jruby-agents/add-instance pool-context id)
+    (jruby-agents/add-instance pool-context id
+                               ;; Borrows of the shared instance are counted on
+                               ;; the pool context, not in the instance state
+                               (assoc (jruby-internal/retirement old-instance reason)
+                                      :borrow-count (.sum ^LongAdder borrow-count)))
     (log/info (i18n/trs "Finished creating JRuby instance with id {0}" id))
-    (reset! borrow-count 0)))
+    ;; Returns count the borrow before releasing it, and the lock was only
+    ;; granted once every borrow had been released, so every increment for
+    ;; the old instance has been made. The new instance can't be borrowed by
+    ;; anyone else until the pool is unlocked, so nothing can be counted
+    ;; against it before the reset either.
+    (.reset ^LongAdder borrow-count)))
 
 (schema/defn max-borrows-exceeded :- schema/Bool
   "Returns true if max-borrows is set and the current borrow count has
@@ -44,19 +59,52 @@
   (let [borrow-count (:borrow-count pool-context)
         max-borrows (get-in instance [:internal :max-borrows])
         flush-timeout (jruby-internal/get-flush-timeout pool-context)]
-    (try
-      ;; Lock will block until all references have been returned to the pool or
-      ;; until flush-timeout is reached
-      (pool-protocol/lock-with-timeout pool-context flush-timeout TimeUnit/MILLISECONDS)
+    (when-not (jruby-internal/shutting-down? pool-context)
       (try
-        ;; Now that we've successfully acquired the lock, check the borrows again
-        ;; to make sure the pool wasn't flushed while we were waiting.
-        (when (max-borrows-exceeded @borrow-count max-borrows)
-          (flush-pool* pool-context))
-        (finally
-          (pool-protocol/unlock pool-context)))
-      (catch TimeoutException e
-        (log/warn (i18n/trs "Max borrows reached, but JRubyPool could not be flushed because lock could not be acquired. Will try again later."))))))
+        ;; Lock will block until all references have been returned to the pool or
+        ;; until flush-timeout is reached
+        (pool-protocol/lock-with-timeout pool-context flush-timeout TimeUnit/MILLISECONDS)
+        (try
+          ;; Now that we've successfully acquired the lock, check the borrows again
+          ;; to make sure the pool wasn't flushed while we were waiting, and
+          ;; that it hasn't started to shut down, in which case the instance
+          ;; is not replaced.
+          (when (and (not (jruby-internal/shutting-down? pool-context))
+                     (max-borrows-exceeded (.sum ^LongAdder borrow-count) max-borrows))
+            (flush-pool* pool-context :max-borrows))
+          (finally
+            (pool-protocol/unlock pool-context)))
+        (catch TimeoutException e
+          (log/warn (i18n/trs "Max borrows reached, but JRubyPool could not be flushed because lock could not be acquired. Will try again later.")))
+        (catch InterruptedException e
+          ;; The lock is refused once the shutdown pill has been inserted
+          (when-not (jruby-internal/shutting-down? pool-context)
+            (throw e)))))))
+
+(schema/defn schedule-flush-if-at-max-borrows
+  "Sends a `flush-if-at-max-borrows` to the modify-instance-agent if
+  max-borrows has been exceeded, unless one is already pending. Every return
+  past max-borrows would otherwise queue its own flush on the agent, each of
+  which would wait up to the full flush timeout for the pool lock. Once the
+  pending flush has run, whether or not it managed to flush the pool, the next
+  return past max-borrows may schedule another."
+  [pool-context :- jruby-schemas/PoolContext
+   instance :- JRubyInstance]
+  (let [max-borrows (get-in instance [:internal :max-borrows])
+        ^LongAdder borrow-count (:borrow-count pool-context)
+        ^AtomicBoolean flush-scheduled (:flush-scheduled pool-context)]
+    ;; The plain read of `flush-scheduled` keeps returns from contending on
+    ;; the compare-and-set while a flush is already pending.
+    (when (and (pos? max-borrows)
+               (not (.get flush-scheduled))
+               (not (jruby-internal/shutting-down? pool-context))
+               (max-borrows-exceeded (.sum borrow-count) max-borrows)
+               (.compareAndSet flush-scheduled false true))
+      (jruby-agents/send-agent (jruby-agents/get-modify-instance-agent pool-context)
+                               #(try
+                                  (flush-if-at-max-borrows pool-context instance)
+                                  (finally
+                                    (.set flush-scheduled false)))))))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 ;; ReferencePool definition
@@ -68,13 +116,16 @@
     [pool-context]
     (let [modify-instance-agent (jruby-agents/get-modify-instance-agent pool-context)]
       (jruby-agents/send-agent modify-instance-agent
-                               #(jruby-agents/add-instance pool-context 1))))
+                               (fn []
+                                 (jruby-agents/refresh-load-path! (:config pool-context))
+                                 (jruby-agents/add-instance pool-context 1)))))
 
   (shutdown
     [pool-context]
     (let [pool (jruby-internal/get-pool pool-context)
           cleanup-fn (get-in pool-context [:config :lifecycle :cleanup])
           flush-timeout (jruby-internal/get-flush-timeout pool-context)]
+      (jruby-internal/mark-shutting-down! pool-context)
       ;; Lock the pool so no borrows or flushes can occur while we're shutting down
       (try
         (pool-protocol/lock-with-timeout pool-context flush-timeout TimeUnit/MILLISECONDS)
@@ -124,14 +175,14 @@
     [pool-context instance]
     (when (jruby-schemas/jruby-instance? instance)
       (let [pool (jruby-internal/get-pool pool-context)
-            borrow-count (:borrow-count pool-context)
-            max-borrows (get-in instance [:internal :max-borrows])
-            modify-instance-agent (jruby-agents/get-modify-instance-agent pool-context)]
+            ^LongAdder borrow-count (:borrow-count pool-context)]
+        ;; A LongAdder rather than an atom, since every thread returning the
+        ;; shared instance updates the count. Counted before the release, so
+        ;; that a flush, which can only lock the pool once every borrow has
+        ;; been released, sees it before resetting the count.
+        (.increment borrow-count)
         (.releaseItem pool instance)
-        (swap! borrow-count inc)
-        (when (max-borrows-exceeded @borrow-count max-borrows)
-          (jruby-agents/send-agent modify-instance-agent
-                                   #(flush-if-at-max-borrows pool-context instance)))
+        (schedule-flush-if-at-max-borrows pool-context instance)
         ;; Return the worker-id, to be used in metrics and event logging
         (pool-protocol/worker-id pool-context instance))))
 
@@ -145,6 +196,6 @@
         (catch TimeoutException e
           (jruby-internal/throw-jruby-lock-timeout e)))
       (try
-        (flush-pool* pool-context)
+        (flush-pool* pool-context :pool-flush)
         (finally
           (pool-protocol/unlock pool-context))))))
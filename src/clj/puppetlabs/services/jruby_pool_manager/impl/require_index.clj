@@ -0,0 +1,145 @@
+(ns puppetlabs.services.jruby-pool-manager.impl.require-index
+  (:require [clojure.java.io :as io]
+            [clojure.string :as str]
+            [clojure.tools.logging :as log]
+            [schema.core :as schema]
+            [puppetlabs.services.jruby-pool-manager.impl.compile-cache :as compile-cache]
+            [puppetlabs.services.jruby-pool-manager.jruby-schemas :as jruby-schemas]
+            [puppetlabs.i18n.core :as i18n])
+  (:import (com.puppetlabs.jruby_utils.jruby ScriptingContainer)
+           (java.io File)
+           (java.util Collections HashMap Map)))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+;;; Private
+
+;; The index maps each feature which `require` could resolve from the load
+;; path, e.g. `puppet/util`, to the path of the file it would load.  Looking a
+;; feature up in the index replaces the search of every load path entry, with
+;; a `stat` per entry and suffix, which `require` would otherwise make.
+
+(def suffixes
+  "The suffixes of the files which are indexed, in the order in which
+  `require` prefers them within a single load path entry."
+  [".rb" ".class"])
+
+;; Indexes are shared by every pool with the same load path, and are dropped
+;; when one of those pools starts a new generation of instances.  Each is
+;; keyed by the load path it indexes and the generation of the compile cache
+;; it saw, so that classes compiled after it was built are picked up by the
+;; next container created.
+(defonce ^:private indexes (atom {}))
+
+(def ^:private require-hook
+  "Ruby code which prepends a `require` to Kernel that looks the feature up in
+  the index, and evaluates to the module so that the index can be installed.
+  The index is only used while the indexed entries are still the first on the
+  `$LOAD_PATH`, and features which aren't indexed, or whose indexed file has
+  since been removed, are resolved by the original `require`."
+  "module JRubyUtils
+     module RequireIndex
+       def self.install(index, load_path)
+         @index = index
+         @load_path = load_path.to_a.map(&:to_s).freeze
+         Kernel.prepend(self)
+       end
+
+       def self.resolve(feature)
+         return nil unless feature.is_a?(String) && !feature.start_with?('/', '.', '~')
+         return nil unless $LOAD_PATH.first(@load_path.size) == @load_path
+         @index.get(feature.end_with?('.rb') ? feature[0...-3] : feature)
+       end
+
+       private
+
+       def require(feature)
+         path = RequireIndex.resolve(feature)
+         return super unless path
+         begin
+           super(path)
+         rescue LoadError
+           super(feature)
+         end
+       end
+     end
+   end
+   JRubyUtils::RequireIndex")
+
+(defn- feature-name
+  "The feature under which `f` in `entry` is required: its path relative to
+  the entry, with `/` separators and without its suffix."
+  [^File entry ^File f suffix]
+  (let [relative (-> (str (.relativize (.toPath entry) (.toPath f)))
+                     (str/replace File/separator "/"))]
+    (subs relative 0 (- (count relative) (count suffix)))))
+
+(defn- indexed-path
+  "The path `require` is given for an indexed file.  Compiled classes are
+  given without their suffix, which `require` resolves with a single lookup
+  in the class's own directory."
+  [^File f suffix]
+  (let [path (.getAbsolutePath f)]
+    (if (= ".class" suffix)
+      (subs path 0 (- (count path) (count suffix)))
+      path)))
+
+(schema/defn build-index :- Map
+  "Indexes the files under `load-path`. Where a feature could be resolved
+  from more than one entry the first entry wins, as it would for `require`."
+  [load-path :- [schema/Str]]
+  (let [index (HashMap.)]
+    (doseq [load-path-entry load-path
+            :let [entry (io/file load-path-entry)]
+            :when (.isDirectory entry)
+            :let [files (filter #(.isFile ^File %) (file-seq entry))]
+            suffix suffixes
+            ^File f files
+            :when (str/ends-with? (.getName f) suffix)]
+      (.putIfAbsent index (feature-name entry f suffix) (indexed-path f suffix)))
+    (Collections/unmodifiableMap index)))
+
+(defn- index-for
+  [load-path]
+  (let [k [load-path (compile-cache/generation)]
+        indexed (delay
+                 (let [start (System/currentTimeMillis)
+                       index (build-index load-path)]
+                   (log/info (i18n/trs "Indexed {0} Ruby features on the load path in {1}ms"
+                                       (.size ^Map index) (- (System/currentTimeMillis) start)))
+                   index))]
+    @(get (swap! indexes
+                 (fn [indexes]
+                   (if (contains? indexes k)
+                     indexes
+                     (-> (into {} (remove (fn [[[indexed-load-path _] _]]
+                                            (= load-path indexed-load-path))
+                                          indexes))
+                         (assoc k indexed)))))
+          k)))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+;;; Public
+
+(schema/defn install!
+  "Installs the index of the load path into `scripting-container`, building it
+  if this is the first container created for the load path since the index
+  was last invalidated. Does nothing unless `:require-index` is enabled."
+  [scripting-container :- ScriptingContainer
+   config :- jruby-schemas/JRubyConfig]
+  (when (:require-index config)
+    (let [load-path (compile-cache/load-path config)
+          hook (.runScriptlet scripting-container require-hook)]
+      (.callMethodWithArgArray scripting-container hook "install"
+                               (into-array Object [(index-for load-path) load-path])
+                               Object))))
+
+(schema/defn invalidate!
+  "Drops the index of the load path, so that it is rebuilt for the next
+  container created. Should be called whenever files may have been added to
+  or removed from the load path, i.e. before each new generation of
+  instances."
+  [config :- jruby-schemas/JRubyConfig]
+  (let [load-path (compile-cache/load-path config)]
+    (swap! indexes #(into {} (remove (fn [[[indexed-load-path _] _]]
+                                       (= load-path indexed-load-path))
+                                     %)))))
@@ -0,0 +1,69 @@
+(ns puppetlabs.services.jruby-pool-manager.impl.shared-data
+  (:require [clojure.tools.logging :as log]
+            [schema.core :as schema]
+            [puppetlabs.services.jruby-pool-manager.jruby-schemas :as jruby-schemas]
+            [puppetlabs.i18n.core :as i18n])
+  (:import (com.puppetlabs.jruby_utils.jruby InternalScriptingContainer)
+           (com.puppetlabs.jruby_utils.pool SharedDataStore SharedDataStore$Generation)
+           (java.nio.file Paths)
+           (org.jruby.javasupport JavaUtil)))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+;;; Private
+
+;; Every container of a pool refers to the pool's one SharedDataStore, through
+;; a Ruby global, so the data in it is mapped once per pool rather than
+;; loaded once per instance.  Ruby code reads an entry with e.g.
+;; `$jruby_shared_data.get('nodes')`, which returns a read-only
+;; java.nio.ByteBuffer over the mapped file, or takes a consistent view of
+;; several entries with `$jruby_shared_data.current`.
+
+(def global-name
+  "The Ruby global through which the store is exposed to each container."
+  "$jruby_shared_data")
+
+(defn- entry-name
+  [k]
+  (if (keyword? k) (name k) (str k)))
+
+(defn- megabytes
+  [bytes]
+  (quot bytes (* 1024 1024)))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+;;; Public
+
+(schema/defn refresh! :- schema/Int
+  "Replaces the entries of `store` with the contents of `files`, a map of
+  entry names to file paths, mapping each file into memory. Instances see the
+  new entries as soon as this returns. If any file can't be mapped, the store
+  keeps its current entries and this throws. Returns the number of the new
+  generation."
+  [store :- SharedDataStore
+   files :- jruby-schemas/SharedDataFiles]
+  (let [paths (into {} (for [[k path] files]
+                         [(entry-name k) (Paths/get path (into-array String []))]))
+        ^SharedDataStore$Generation generation (.refresh store paths)]
+    (log/info (i18n/trs "Mapped {0} shared data file(s), {1}MB in all, as generation {2}"
+                        (count paths) (megabytes (.getTotalBytes generation))
+                        (.getNumber generation)))
+    (.getNumber generation)))
+
+(schema/defn create-store :- SharedDataStore
+  "Creates the SharedDataStore for a pool, with the contents of `files`, if
+  any."
+  [files :- (schema/maybe jruby-schemas/SharedDataFiles)]
+  (let [store (SharedDataStore.)]
+    (when (seq files)
+      (refresh! store files))
+    store))
+
+(schema/defn expose!
+  "Sets the Ruby global named by `global-name` in `scripting-container` to
+  `store`."
+  [scripting-container :- InternalScriptingContainer
+   store :- SharedDataStore]
+  (let [runtime (.getRuntime (.getProvider scripting-container))]
+    (.set (.getGlobalVariables runtime)
+          ^String global-name
+          (JavaUtil/convertJavaToUsableRubyObject runtime store))))
@@ -0,0 +1,161 @@
+(ns puppetlabs.services.jruby-pool-manager.impl.tracing
+  (:require [clojure.edn :as edn]
+            [clojure.java.io :as io]
+            [clojure.tools.logging :as log]
+            [clojure.walk :as walk]
+            [schema.core :as schema]
+            [puppetlabs.services.jruby-pool-manager.jruby-schemas :as jruby-schemas]
+            [puppetlabs.services.protocols.span-tracer :as tracer-protocol]
+            [puppetlabs.i18n.core :as i18n])
+  (:import (com.puppetlabs.jruby_utils.pool LockablePool)
+           (java.io Closeable Writer)
+           (java.util.concurrent.atomic AtomicLong)
+           (puppetlabs.services.jruby_pool_manager.jruby_schemas JRubyInstance)))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+;;; Private
+
+;; The span open on each thread, so that spans started within it, e.g. the
+;; borrow within `with-jruby-instance`, become its children without it being
+;; passed through the borrow functions.  A ThreadLocal rather than a dynamic
+;; var, so that nothing is bound while no tracer is registered.
+(def ^:private ^ThreadLocal current-span (ThreadLocal.))
+
+(defrecord OpenSpan [tracer span parent])
+
+(defrecord FileSpan [id parent-id span-name attributes start-millis start-nanos])
+
+(defn- edn-value
+  "Replaces anything in `value` which can't be read back as EDN, e.g. a
+  reason which is a Java object, with its string form."
+  [value]
+  (walk/postwalk #(if (or (nil? %) (string? %) (number? %) (keyword? %)
+                          (symbol? %) (boolean? %) (coll? %))
+                    %
+                    (str %))
+                 value))
+
+(deftype FileTracer [^Writer writer ^AtomicLong next-id]
+  tracer-protocol/SpanTracer
+  (start-span [_ span-name parent attributes]
+    (->FileSpan (.incrementAndGet next-id) (:id parent) span-name attributes
+                (System/currentTimeMillis) (System/nanoTime)))
+  (end-span [_ span attributes]
+    (let [{:keys [id parent-id span-name start-millis start-nanos]} span
+          line (pr-str (edn-value {:id id
+                                   :parent-id parent-id
+                                   :name span-name
+                                   :start start-millis
+                                   :duration-nanos (- (System/nanoTime) start-nanos)
+                                   :attributes (merge (:attributes span) attributes)}))]
+      (locking writer
+        (.write writer ^String line)
+        (.write writer "\n")
+        (.flush writer))))
+
+  Closeable
+  (close [_]
+    (locking writer
+      (.close writer))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+;;; Public
+
+(def SpanTracer
+  (schema/protocol tracer-protocol/SpanTracer))
+
+(schema/defn get-tracer :- (schema/maybe SpanTracer)
+  "Gets the tracer registered with the pool, if any."
+  [pool-context :- jruby-schemas/PoolContext]
+  @(get-in pool-context [:internal :tracer]))
+
+(defn open-span!
+  "Starts a span on `tracer` as a child of the span open on this thread, and
+  makes it the span open on this thread until it is ended. Use `start-span!`
+  rather than calling this directly."
+  [tracer span-name attributes]
+  (let [^OpenSpan parent (.get current-span)
+        span (try
+               (tracer-protocol/start-span tracer span-name (when parent (.span parent)) attributes)
+               (catch Exception e
+                 (log/warn e (i18n/trs "Failed to start tracing span {0}" span-name))
+                 nil))
+        open (->OpenSpan tracer span parent)]
+    (.set current-span open)
+    open))
+
+(defn close-span!
+  "Ends the span `open`, and makes its parent the span open on this thread
+  again. Use `end-span!` rather than calling this directly."
+  [^OpenSpan open attributes]
+  (.set current-span (.parent open))
+  (when-let [span (.span open)]
+    (try
+      (tracer-protocol/end-span (.tracer open) span attributes)
+      (catch Exception e
+        (log/warn e (i18n/trs "Failed to end tracing span"))))))
+
+(defmacro start-span!
+  "Starts a span named `span-name` on the pool's tracer, as a child of the
+  span open on this thread, if any. Returns the span, to be passed to
+  `end-span!`, or nil if no tracer is registered, in which case `attributes`
+  isn't evaluated; the only cost of tracing while no tracer is registered is
+  then the lookup of the tracer."
+  [pool-context span-name attributes]
+  `(when-let [tracer# (get-tracer ~pool-context)]
+     (open-span! tracer# ~span-name ~attributes)))
+
+(defmacro end-span!
+  "Ends a span returned by `start-span!`, if it isn't nil, adding
+  `attributes`, which are only evaluated if it isn't."
+  [span attributes]
+  `(when-let [span# ~span]
+     (close-span! span# ~attributes)))
+
+(schema/defn instance-generation :- schema/Int
+  "Which generation of its slot in the pool `instance` is: 0 for an instance
+  which was created to fill or grow the pool, and one more for each time an
+  instance has replaced the one before it."
+  [instance :- JRubyInstance]
+  (get-in instance [:internal :generation] 0))
+
+(schema/defn borrow-attributes :- {schema/Keyword schema/Any}
+  "The attributes of a span for a borrow for `reason`, as it starts:
+  including how many borrowers are already waiting for an instance."
+  [pool :- jruby-schemas/pool-queue-type
+   reason :- schema/Any]
+  {:reason reason
+   :queue-position (.getWaiterCount (.getStatistics ^LockablePool pool))})
+
+(schema/defn borrowed-attributes :- {schema/Keyword schema/Any}
+  "The attributes of a span for a borrow, once it has ended with `result`."
+  [result :- schema/Any
+   worker-id :- schema/Any]
+  (cond
+    (instance? JRubyInstance result) {:worker-id worker-id
+                                      :instance-id (:id result)
+                                      :instance-generation (instance-generation result)}
+    (nil? result) {:timed-out true}
+    :else {:poisoned true}))
+
+(schema/defn error-attributes :- {schema/Keyword schema/Any}
+  "The attributes of a span which ended by throwing `e`."
+  [e :- Throwable]
+  {:error (str (.getName (class e)) ": " (.getMessage e))})
+
+(schema/defn file-tracer :- SpanTracer
+  "A tracer which appends each span, once it has ended, to the file at
+  `path` as a line of EDN, with its id, the id of its parent, its name, its
+  start time in milliseconds since the epoch, its duration in nanoseconds and
+  its attributes. Meant for tests and for looking at the spans of a single
+  process without setting up a tracing system. Close it with `.close` once
+  it is no longer registered."
+  [path :- schema/Str]
+  (FileTracer. (io/writer path :append true) (AtomicLong.)))
+
+(schema/defn read-spans :- [{schema/Keyword schema/Any}]
+  "Reads the spans written by a `file-tracer` to the file at `path`, in the
+  order in which they ended."
+  [path :- schema/Str]
+  (with-open [reader (io/reader path)]
+    (mapv edn/read-string (line-seq reader))))
@@ -0,0 +1,132 @@
+(ns puppetlabs.services.jruby-pool-manager.impl.warm-up
+  (:require [clojure.string :as str]
+            [clojure.tools.logging :as log]
+            [schema.core :as schema]
+            [puppetlabs.services.jruby-pool-manager.jruby-schemas :as jruby-schemas]
+            [puppetlabs.i18n.core :as i18n])
+  (:import (clojure.lang IFn)
+           (java.util.concurrent ConcurrentHashMap)
+           (java.util.concurrent.atomic AtomicLong)
+           (puppetlabs.services.jruby_pool_manager.jruby_schemas JRubyInstance)))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+;;; Private
+
+(def max-replay-rounds
+  "The most times each recorded call is replayed against a new instance. The
+  default JRuby JIT threshold is 50 calls, so this is enough for the methods
+  the calls exercise to be compiled."
+  100)
+
+(defn- ruby-string
+  [s]
+  (str "'" (-> s (str/replace "\\" "\\\\") (str/replace "'" "\\'")) "'"))
+
+(defn- recorded-calls
+  "The calls in `recorder`, least recently made first."
+  [recorder]
+  (when recorder
+    (->> (:calls recorder)
+         (sort-by (fn [[_ [_ ^AtomicLong made-at]]] (.get made-at)))
+         (mapv (fn [[call [f _]]] [call f])))))
+
+(defn- evict-least-recent!
+  "Removes the least recently made calls from `calls` until there are at most
+  `max-calls`."
+  [^ConcurrentHashMap calls max-calls]
+  (while (> (.size calls) max-calls)
+    (let [[call _] (apply min-key (fn [[_ [_ ^AtomicLong made-at]]] (.get made-at))
+                          (seq calls))]
+      (.remove calls call))))
+
+(defn- run-warm-up-script!
+  [{:keys [scripting-container id]} script]
+  (try
+    (.runScriptlet scripting-container (str "load " (ruby-string script)))
+    true
+    (catch Exception e
+      (log/warn e (i18n/trs "Error running warm-up script ''{0}'' on JRubyInstance {1}" script id))
+      false)))
+
+(defn- replay-calls!
+  "Replays `calls` against `instance` in rounds until each has been replayed
+  `max-replay-rounds` times or `deadline` has passed. A call which throws is
+  not replayed again. Returns the number of calls replayed."
+  [instance calls deadline]
+  (loop [round 0
+         calls calls
+         replayed 0]
+    (if (or (empty? calls)
+            (= round max-replay-rounds)
+            (>= (System/currentTimeMillis) deadline))
+      replayed
+      (let [succeeded (filterv (fn [[call f]]
+                                 (and (< (System/currentTimeMillis) deadline)
+                                      (try
+                                        (f instance)
+                                        true
+                                        (catch Exception e
+                                          (log/debug e (i18n/trs "Replaying {0} to warm up JRubyInstance {1} failed"
+                                                                 (pr-str call) (:id instance)))
+                                          false))))
+                               calls)]
+        (recur (inc round) succeeded (+ replayed (count succeeded)))))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+;;; Public
+
+(schema/defn ^:always-validate
+  create-call-recorder :- (schema/maybe jruby-schemas/CallRecorder)
+  "Creates the recorder of `cached-call`s to replay, or nil if the config
+  doesn't ask for calls to be replayed."
+  [config :- jruby-schemas/JRubyConfig]
+  (let [max-calls (:warm-up-calls config)]
+    (when (pos? max-calls)
+      {:calls (ConcurrentHashMap.)
+       :max-calls max-calls})))
+
+(schema/defn record-call!
+  "Records that `f` was called with a JRubyInstance to make the call
+  identified by `call`, so that the call can be replayed against new
+  instances. Does nothing if `recorder` is nil.
+
+  This is called for every `cached-call`, so a call which has already been
+  recorded only has the time it was made updated, without locking. Only a new
+  call, which may push out the least recent, takes the recorder's lock."
+  [recorder :- (schema/maybe jruby-schemas/CallRecorder)
+   call :- schema/Any
+   f :- IFn]
+  (when recorder
+    (let [^ConcurrentHashMap calls (:calls recorder)
+          now (System/nanoTime)]
+      (if-let [[_ ^AtomicLong made-at] (.get calls call)]
+        (.lazySet made-at now)
+        (locking recorder
+          (when-not (.putIfAbsent calls call [f (AtomicLong. now)])
+            (evict-least-recent! calls (:max-calls recorder))))))))
+
+(schema/defn warm-up! :- schema/Int
+  "Warms up a new instance before it is registered with the pool, by running
+  the `:warm-up-script` and then replaying the calls recorded by `recorder`,
+  within the `:warm-up-budget`. The budget is checked between calls, so a
+  script which overruns it is allowed to finish. Returns how many
+  milliseconds the warm-up took."
+  [instance :- JRubyInstance
+   config :- jruby-schemas/JRubyConfig
+   recorder :- (schema/maybe jruby-schemas/CallRecorder)]
+  (let [{:keys [warm-up-script warm-up-budget]} config
+        calls (recorded-calls recorder)]
+    (if-not (or warm-up-script (seq calls))
+      0
+      (let [start (System/currentTimeMillis)
+            deadline (+ start warm-up-budget)
+            script-ok? (when warm-up-script
+                         (run-warm-up-script! instance warm-up-script))
+            replayed (replay-calls! instance calls deadline)
+            duration (- (System/currentTimeMillis) start)]
+        (when (> duration warm-up-budget)
+          (log/warn (i18n/trs "Warming up JRubyInstance {0} took {1}ms, exceeding the budget of {2}ms"
+                              (:id instance) duration warm-up-budget)))
+        (log/info (i18n/trs "Warmed up JRubyInstance {0} in {1}ms; warm-up script run: {2}; recorded calls replayed: {3}"
+                            (:id instance) duration (boolean script-ok?) replayed))
+        duration))))
@@ -7,6 +7,12 @@
             [puppetlabs.services.jruby-pool-manager.impl.jruby-internal :as jruby-internal]
             [puppetlabs.services.jruby-pool-manager.impl.jruby-agents :as jruby-agents]
             [puppetlabs.services.jruby-pool-manager.impl.jruby-events :as jruby-events]
+            [puppetlabs.services.jruby-pool-manager.impl.borrow-tracker :as borrow-tracker]
+            [puppetlabs.services.jruby-pool-manager.impl.canary :as canary]
+            [puppetlabs.services.jruby-pool-manager.impl.heap-sizing :as heap-sizing]
+            [puppetlabs.services.jruby-pool-manager.impl.shared-data :as shared-data]
+            [puppetlabs.services.jruby-pool-manager.impl.tracing :as tracing]
+            [puppetlabs.services.jruby-pool-manager.impl.warm-up :as warm-up]
             [clojure.java.io :as io]
             [clojure.tools.logging :as log]
             [slingshot.slingshot :as sling]
@@ -14,8 +20,11 @@
             [me.raynes.fs :as fs]
             [puppetlabs.services.protocols.jruby-pool :as pool-protocol])
   (:import (puppetlabs.services.jruby_pool_manager.jruby_schemas JRubyInstance)
+           (com.puppetlabs.jruby_utils.jruby InternalScriptingContainer)
+           (com.puppetlabs.jruby_utils.pool SharedDataStore)
            (clojure.lang IFn)
-           (java.util.concurrent TimeUnit)
+           (java.util.concurrent CompletableFuture TimeUnit)
+           (java.util.function Consumer)
            (org.jruby CompatVersion)
            (org.jruby.util.cli OutputStrings)))
 
@@ -74,12 +83,55 @@
   {:post [(>= % 0)]}
   (.currentSize pool))
 
+(schema/defn ^:always-validate
+  pool-statistics :- jruby-schemas/PoolStatistics
+  "Returns a snapshot of the number of free, borrowed and registered
+  JRubyInstances, the number of borrowers waiting for one, whether, and
+  since when, the pool is locked, and how degraded the pool is by failures to
+  create instances. Does not lock the pool or wait for any
+  in-flight borrows, so it may be called as often as needed for status
+  reporting. The values are not guaranteed to be consistent with one another."
+  [pool-context :- jruby-schemas/PoolContext]
+  (let [stats (.getStatistics (get-pool pool-context))
+        locked-since (.getLockedSince stats)
+        pool-state (get-pool-state pool-context)]
+    {:free-instances (.getFreeCount stats)
+     :borrowed-instances (.getBorrowedCount stats)
+     :registered-instances (.getRegisteredCount stats)
+     :waiting-borrowers (.getWaiterCount stats)
+     :locked? (.isLocked stats)
+     :locked-since (when (not= -1 locked-since) locked-since)
+     :degraded-instances (get pool-state :degraded 0)
+     :creation-failures (get pool-state :creation-failures 0)}))
+
 (schema/defn ^:always-validate
   get-instance-state :- jruby-schemas/JRubyInstanceState
   "Get the state metadata for a JRubyInstance."
   [jruby-instance :- JRubyInstance]
   @(jruby-internal/get-instance-state-container jruby-instance))
 
+(schema/defn ^:always-validate
+  instance-stats :- [jruby-schemas/InstanceStatistics]
+  "Lifecycle statistics for each JRubyInstance registered with the pool: when
+  it was created and how long that took, how many times it has been borrowed,
+  how long it has spent borrowed in total, when it was last borrowed, and why
+  the instance it replaced was retired. Useful for spotting instances which
+  are used much more or less than others, and for tuning
+  `max-borrows-per-instance` and the pool size."
+  [pool-context :- jruby-schemas/PoolContext]
+  (mapv #(jruby-internal/instance-statistics pool-context %)
+        (registered-instances pool-context)))
+
+(schema/defn ^:always-validate
+  profile-stats :- {jruby-schemas/InstanceProfile jruby-schemas/ProfileStatistics}
+  "Latency and throughput of the borrows of the JRubyInstances created with
+  each tuning, so that the `:canary` tuning can be compared with the default
+  one. Only includes the `:canary` profile if the config has one."
+  [pool-context :- jruby-schemas/PoolContext]
+  (canary/profile-statistics (jruby-internal/get-profile-counters pool-context)
+                             (map #(get-in % [:internal :profile] :default)
+                                  (registered-instances pool-context))))
+
 (schema/defn get-event-callbacks :- [IFn]
   "Gets the vector of event callbacks from the pool context."
   [pool-context :- jruby-schemas/PoolContext]
@@ -168,13 +220,32 @@
       (update-in [:profiler-output-file] #(or % (str (fs/absolute (fs/temp-name "jruby-profiler")))))
       (update-in [:borrow-timeout] #(or % default-borrow-timeout))
       (update-in [:flush-timeout] #(or % default-flush-timeout))
-      (update-in [:max-active-instances] #(or % (default-pool-size (ks/num-cpus))))
+      (as-> c (update-in c [:max-active-instances]
+                         #(or % (if (:heap-budget c)
+                                  (heap-sizing/default-max-active-instances (ks/num-cpus))
+                                  (default-pool-size (ks/num-cpus))))))
+      (as-> c (update-in c [:min-active-instances]
+                         #(min (or % 1) (:max-active-instances c))))
       (update-in [:max-borrows-per-instance] #(or % 0))
       (update-in [:splay-instance-flush] #(if (nil? %) true %))
       (update-in [:environment-vars] #(or % {}))
       (update-in [:lifecycle] initialize-lifecycle-fns)
       (update-in [:multithreaded] #(if (nil? %) false %))
+      (update-in [:fair-borrows] #(if (nil? %) false %))
       (update-in [:instance-creation-concurrency] #(if (nil? %) 3 %))
+      (update-in [:call-cache-max-entries] #(or % 0))
+      (update-in [:call-cache-ttl] #(or % 0))
+      (update-in [:shutdown-timeout] #(or % 0))
+      (update-in [:long-borrow-threshold] #(or % 0))
+      (update-in [:capture-borrow-stacks] #(if (nil? %) false %))
+      (update-in [:require-index] #(if (nil? %) false %))
+      (update-in [:gemspec-index] #(if (nil? %) false %))
+      (update-in [:warm-up-calls] #(or % 0))
+      (update-in [:warm-up-budget] #(or % 10000))
+      (update-in [:canary] canary/initialize-canary-config)
+      (update-in [:creation-retries] #(or % 0))
+      (update-in [:creation-retry-backoff] #(or % 1000))
+      (update-in [:scriptlet-cache-max-entries] #(or % InternalScriptingContainer/DEFAULT_SCRIPTLET_CACHE_MAX_ENTRIES))
       jruby-internal/initialize-gem-path))
 
 (schema/defn register-event-handler
@@ -183,6 +254,36 @@
    callback-fn :- IFn]
   (swap! (get-in pool-context [:internal :event-callbacks]) conj callback-fn))
 
+(schema/defn register-tracer
+  "Registers `tracer` to be given spans for the borrows and locks of the pool:
+  `jruby.instance`, from the start of the borrow in `with-jruby-instance` to
+  the return of the instance, with `jruby.borrow`, the wait for the instance,
+  and `jruby.execute`, the body, as its children; and `jruby.lock`, from the
+  start of `with-lock` until the lock is released, with `jruby.lock-wait` and
+  `jruby.locked` as its children. Borrows and locks outside of those macros
+  have a `jruby.borrow` or `jruby.lock-wait` span of their own. Replaces any
+  tracer registered before; pass nil to stop tracing."
+  [pool-context :- jruby-schemas/PoolContext
+   tracer :- (schema/maybe tracing/SpanTracer)]
+  (reset! (get-in pool-context [:internal :tracer]) tracer))
+
+(schema/defn ^:always-validate
+  shared-data :- SharedDataStore
+  "Gets the store of the pool's `:shared-data-files`, which every instance in
+  the pool reads from."
+  [pool-context :- jruby-schemas/PoolContext]
+  (jruby-internal/get-shared-data pool-context))
+
+(schema/defn ^:always-validate
+  refresh-shared-data! :- schema/Int
+  "Replaces the pool's shared data with the contents of `files`, a map of
+  entry names to file paths, as the `:shared-data-files` setting. Instances
+  see the new data from their next read of `$jruby_shared_data`, without
+  being flushed. Returns the number of the new generation of the data."
+  [pool-context :- jruby-schemas/PoolContext
+   files :- jruby-schemas/SharedDataFiles]
+  (shared-data/refresh! (shared-data pool-context) files))
+
 (schema/defn ^:always-validate
   get-jruby-thread-dump
   "Get thread dumps from JRuby instances in the pool."
@@ -193,6 +294,44 @@
           {}
           (registered-instances pool-context)))
 
+(schema/defn ^:always-validate
+  broadcast! :- CompletableFuture
+  "Applies `f` to every JRubyInstance registered with the pool, without
+  locking the pool. Instances which are idle have `f` applied immediately, on
+  the calling thread; instances which are borrowed have `f` applied by the
+  thread which returns them, before they can be borrowed again. Returns a
+  CompletableFuture which completes once `f` has been applied to every
+  instance, or completes exceptionally if `f` threw for any instance.
+
+  Borrows from the pool can proceed while the broadcast is in progress, so
+  this should be preferred over `with-lock` for actions, such as clearing
+  caches, which do not need every instance to be idle at the same time. While
+  another thread holds the pool lock, this waits for it to be released, as a
+  borrow would."
+  [pool-context :- jruby-schemas/PoolContext
+   f :- IFn]
+  (.broadcast (get-pool pool-context)
+              (reify Consumer
+                (accept [_ instance]
+                  (f instance)))))
+
+(schema/defn ^:always-validate
+  outstanding-borrows :- [jruby-schemas/OutstandingBorrow]
+  "Lists the JRubyInstances which are currently borrowed from the pool, oldest
+  borrow first, with the thread that borrowed each one, the reason given for
+  the borrow and how long it has been held. Useful for finding the callers
+  that are holding on to instances, for example when a flush is blocked."
+  [pool-context :- jruby-schemas/PoolContext]
+  (borrow-tracker/outstanding-borrows (jruby-internal/get-borrow-tracker pool-context)))
+
+(defn- track-borrow
+  [pool-context instance reason]
+  (when (jruby-schemas/jruby-instance? instance)
+    (jruby-internal/record-borrow! instance)
+    (borrow-tracker/borrow-started! (jruby-internal/get-borrow-tracker pool-context)
+                                    instance
+                                    reason)))
+
 (schema/defn ^:always-validate
   borrow-from-pool :- jruby-schemas/JRubyInstanceOrPill
   "Borrows a JRuby interpreter from the pool. If there are no instances
@@ -200,8 +339,16 @@
   [pool-context :- jruby-schemas/PoolContext
    reason :- schema/Any
    event-callbacks :- [IFn]]
-  (let [requested-event (jruby-events/instance-requested event-callbacks reason)
-        [instance worker-id] (pool-protocol/borrow pool-context)]
+  (let [span (tracing/start-span! pool-context "jruby.borrow"
+                                 (tracing/borrow-attributes (get-pool pool-context) reason))
+        requested-event (jruby-events/instance-requested event-callbacks reason)
+        [instance worker-id] (try
+                               (pool-protocol/borrow pool-context)
+                               (catch Exception e
+                                 (tracing/end-span! span (tracing/error-attributes e))
+                                 (throw e)))]
+    (tracing/end-span! span (tracing/borrowed-attributes instance worker-id))
+    (track-borrow pool-context instance reason)
     (jruby-events/instance-borrowed event-callbacks requested-event instance worker-id)
     instance))
 
@@ -219,10 +366,18 @@
    reason :- schema/Any
    event-callbacks :- [IFn]]
   (let [timeout (get-in pool-context [:config :borrow-timeout])
+        span (tracing/start-span! pool-context "jruby.borrow"
+                                  (tracing/borrow-attributes (get-pool pool-context) reason))
         requested-event (jruby-events/instance-requested event-callbacks reason)
-        [instance worker-id] (pool-protocol/borrow-with-timeout
-                               pool-context
-                               timeout)]
+        [instance worker-id] (try
+                               (pool-protocol/borrow-with-timeout
+                                pool-context
+                                timeout)
+                               (catch Exception e
+                                 (tracing/end-span! span (tracing/error-attributes e))
+                                 (throw e)))]
+    (tracing/end-span! span (tracing/borrowed-attributes instance worker-id))
+    (track-borrow pool-context instance reason)
     (jruby-events/instance-borrowed event-callbacks requested-event instance worker-id)
     instance))
 
@@ -234,6 +389,14 @@
    reason :- schema/Any
    event-callbacks :- [IFn]]
   (let [worker-id (pool-protocol/worker-id pool-context instance)]
+    (when (jruby-schemas/jruby-instance? instance)
+      (when-let [{:keys [borrowed-at]} (borrow-tracker/borrow-ended!
+                                        (jruby-internal/get-borrow-tracker pool-context)
+                                        instance)]
+        (jruby-internal/record-return! instance borrowed-at)
+        (canary/record-borrow-time! (jruby-internal/get-profile-counters pool-context)
+                                    instance
+                                    (- (System/currentTimeMillis) borrowed-at))))
     (jruby-events/instance-returned event-callbacks instance reason worker-id)
     (pool-protocol/return pool-context instance)))
 
@@ -248,7 +411,13 @@
   "Flush all the current JRubyInstances so that the pool can be shutdown
   without any instances being active."
   [pool-context]
-  (pool-protocol/shutdown pool-context))
+  (try
+    (pool-protocol/shutdown pool-context)
+    (finally
+      (borrow-tracker/stop-watchdog! (jruby-internal/get-borrow-tracker pool-context))
+      (jruby-internal/unregister-pool-mbean! pool-context)
+      (when-let [release-budget (get-in pool-context [:internal :release-budget])]
+        (release-budget)))))
 
 (schema/defn ^:always-validate
   lock-pool
@@ -258,7 +427,13 @@
    event-callbacks :- [IFn]]
   (log/info (i18n/trs "Acquiring lock on JRubyPool..."))
   (jruby-events/lock-requested event-callbacks reason)
-  (pool-protocol/lock pool-context)
+  (let [span (tracing/start-span! pool-context "jruby.lock-wait" {:reason reason})]
+    (try
+      (pool-protocol/lock pool-context)
+      (catch Exception e
+        (tracing/end-span! span (tracing/error-attributes e))
+        (throw e)))
+    (tracing/end-span! span nil))
   (jruby-events/lock-acquired event-callbacks reason)
   (log/info (i18n/trs "Lock acquired")))
 
@@ -273,7 +448,14 @@
    event-callbacks :- [IFn]]
   (log/info (i18n/trs "Acquiring lock on JRubyPool..."))
   (jruby-events/lock-requested event-callbacks reason)
-  (pool-protocol/lock-with-timeout pool-context timeout-ms TimeUnit/MILLISECONDS)
+  (let [span (tracing/start-span! pool-context "jruby.lock-wait" {:reason reason
+                                                                  :timeout timeout-ms})]
+    (try
+      (pool-protocol/lock-with-timeout pool-context timeout-ms TimeUnit/MILLISECONDS)
+      (catch Exception e
+        (tracing/end-span! span (tracing/error-attributes e))
+        (throw e)))
+    (tracing/end-span! span nil))
   (jruby-events/lock-acquired event-callbacks reason)
   (log/info (i18n/trs "Lock acquired")))
 
@@ -324,45 +506,91 @@
 
   Will throw an IllegalStateException if borrowing a JRubyInstance times out."
   [jruby-instance pool-context reason & body]
-  `(let [event-callbacks# (get-event-callbacks ~pool-context)]
-     (loop [pool-instance# (borrow-from-pool-with-timeout ~pool-context ~reason event-callbacks#)]
-       (if (nil? pool-instance#)
-         (sling/throw+
-          {:kind ::jruby-timeout
-           :msg (i18n/tru "Attempt to borrow a JRubyInstance from the pool timed out.")}))
-       (when (jruby-schemas/shutdown-poison-pill? pool-instance#)
-         (return-to-pool ~pool-context pool-instance# ~reason event-callbacks#)
-         (ringutils/throw-service-unavailable!
-          (format "%s %s"
-                  (i18n/tru "Attempted to borrow a JRubyInstance from the pool during a shutdown.")
-                  (i18n/tru "Please try again."))))
-       (let [~jruby-instance pool-instance#]
-         (try
-           ~@body
-           (finally
-             (return-to-pool ~pool-context pool-instance# ~reason event-callbacks#)))))))
+  `(let [event-callbacks# (get-event-callbacks ~pool-context)
+         span# (tracing/start-span! ~pool-context "jruby.instance" {:reason ~reason})]
+     (try
+       (loop [pool-instance# (borrow-from-pool-with-timeout ~pool-context ~reason event-callbacks#)]
+         (if (nil? pool-instance#)
+           (sling/throw+
+            {:kind ::jruby-timeout
+             :msg (i18n/tru "Attempt to borrow a JRubyInstance from the pool timed out.")}))
+         (when (jruby-schemas/shutdown-poison-pill? pool-instance#)
+           (return-to-pool ~pool-context pool-instance# ~reason event-callbacks#)
+           (ringutils/throw-service-unavailable!
+            (format "%s %s"
+                    (i18n/tru "Attempted to borrow a JRubyInstance from the pool during a shutdown.")
+                    (i18n/tru "Please try again."))))
+         (let [~jruby-instance pool-instance#
+               execute-span# (tracing/start-span! ~pool-context "jruby.execute"
+                                                  {:instance-id (:id pool-instance#)})]
+           (try
+             ~@body
+             (finally
+               (tracing/end-span! execute-span# nil)
+               (return-to-pool ~pool-context pool-instance# ~reason event-callbacks#)))))
+       (finally
+         (tracing/end-span! span# nil)))))
 
 (defmacro with-lock
   "Acquires a lock on the pool, executes the body, and releases the lock."
   [pool-context reason & body]
-  `(let [event-callbacks# (get-event-callbacks ~pool-context)]
-     (lock-pool ~pool-context ~reason event-callbacks#)
+  `(let [event-callbacks# (get-event-callbacks ~pool-context)
+         span# (tracing/start-span! ~pool-context "jruby.lock" {:reason ~reason})]
      (try
-       ~@body
+       (lock-pool ~pool-context ~reason event-callbacks#)
+       (let [locked-span# (tracing/start-span! ~pool-context "jruby.locked" nil)]
+         (try
+           ~@body
+           (finally
+             (tracing/end-span! locked-span# nil)
+             (unlock-pool ~pool-context ~reason event-callbacks#))))
        (finally
-         (unlock-pool ~pool-context ~reason event-callbacks#)))))
+         (tracing/end-span! span# nil)))))
 
 (defmacro with-lock-with-timeout
   "Acquires a lock on the pool with a timeout in milliseconds,
   executes the body, and releases the lock. If the timeout is exceeded,
   a TimeoutException will be thrown"
   [pool-context timeout-ms reason & body]
-  `(let [event-callbacks# (get-event-callbacks ~pool-context)]
-     (lock-pool-with-timeout ~pool-context ~timeout-ms ~reason event-callbacks#)
+  `(let [event-callbacks# (get-event-callbacks ~pool-context)
+         span# (tracing/start-span! ~pool-context "jruby.lock" {:reason ~reason})]
      (try
-       ~@body
+       (lock-pool-with-timeout ~pool-context ~timeout-ms ~reason event-callbacks#)
+       (let [locked-span# (tracing/start-span! ~pool-context "jruby.locked" nil)]
+         (try
+           ~@body
+           (finally
+             (tracing/end-span! locked-span# nil)
+             (unlock-pool ~pool-context ~reason event-callbacks#))))
        (finally
-         (unlock-pool ~pool-context ~reason event-callbacks#)))))
+         (tracing/end-span! span# nil)))))
+
+(schema/defn ^:always-validate
+  cached-call
+  "Calls `f` with a JRubyInstance borrowed from the pool, sharing the result
+  with any concurrent calls made with the same `method-name` and `args`, so
+  that identical calls which arrive while one is in progress do not each tie
+  up an instance. If `:call-cache-max-entries` is configured, results are also
+  memoized, subject to `:call-cache-ttl`. Memoized results are discarded
+  whenever the pool or an instance in it is flushed. If `:warm-up-calls` is
+  configured, the most recent distinct calls are replayed, by calling their
+  `f` again, to warm up new instances before they are added to the pool.
+
+  Only use this for calls whose results depend solely upon their arguments.
+  The `args` must be values with meaningful equality, e.g. strings, numbers or
+  Clojure data structures, rather than Ruby objects or Java arrays."
+  [pool-context :- jruby-schemas/PoolContext
+   reason :- schema/Any
+   method-name :- schema/Str
+   args :- [schema/Any]
+   f :- IFn]
+  (let [call [method-name (vec args)]]
+    (warm-up/record-call! (jruby-internal/get-call-recorder pool-context) call f)
+    (.get (jruby-internal/get-call-cache pool-context)
+          call
+          (fn []
+            (with-jruby-instance jruby-instance pool-context reason
+              (f jruby-instance))))))
 
 (def jruby-version-info
   "Default version info string for jruby"
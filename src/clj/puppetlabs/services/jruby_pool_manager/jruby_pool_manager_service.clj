@@ -1,14 +1,35 @@
 (ns puppetlabs.services.jruby-pool-manager.jruby-pool-manager-service
   (:require [puppetlabs.trapperkeeper.core :as trapperkeeper]
+            [puppetlabs.trapperkeeper.services :as services]
             [puppetlabs.services.protocols.pool-manager :as pool-manager-protocol]
             [puppetlabs.services.jruby-pool-manager.impl.jruby-pool-manager-core :as jruby-pool-manager-core]
+            [puppetlabs.services.jruby-pool-manager.impl.instance-budget :as instance-budget]
             [clojure.tools.logging :as log]
             [puppetlabs.i18n.core :as i18n]))
 
 (trapperkeeper/defservice jruby-pool-manager-service
                           pool-manager-protocol/PoolManagerService
-                          []
+                          [[:ConfigService get-in-config]]
+  (init
+   [this context]
+   ;; Pools only share an instance budget if one is configured; otherwise
+   ;; each is sized independently, as given by its own config
+   (if-let [budget-config (get-in-config [:jruby-pool-manager])]
+     (let [budget (instance-budget/create-budget budget-config)]
+       (log/info (i18n/trs "Limiting JRuby pools to {0} instances in total"
+                           (:max-instances budget)))
+       (instance-budget/start-rebalancer! budget (:rebalance-interval budget-config))
+       (assoc context :instance-budget budget))
+     context))
+
+  (stop
+   [this context]
+   (when-let [budget (:instance-budget context)]
+     (instance-budget/stop! budget))
+   context)
+
   (create-pool
    [this config]
    (log/info (i18n/trs "Initializing the JRuby service"))
-   (jruby-pool-manager-core/create-pool config)))
+   (jruby-pool-manager-core/create-pool config
+                                        (:instance-budget (services/service-context this)))))
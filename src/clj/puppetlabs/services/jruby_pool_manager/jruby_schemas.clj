@@ -2,8 +2,9 @@
   (:require [schema.core :as schema])
   (:import (clojure.lang Atom Agent IFn PersistentArrayMap PersistentHashMap)
            (com.puppetlabs.jruby_utils.jruby ScriptingContainer)
-           (com.puppetlabs.jruby_utils.pool LockablePool)
-           (java.util.concurrent ExecutorService)
+           (com.puppetlabs.jruby_utils.pool LockablePool SharedDataStore SingleFlightCache)
+           (java.util.concurrent ConcurrentHashMap ExecutorService)
+           (java.util.concurrent.atomic AtomicBoolean LongAccumulator LongAdder)
            (org.jruby Main Main$Status RubyInstanceConfig)))
 
 
@@ -35,6 +36,32 @@
   "Schema defining the supported values for the JRuby CompileMode setting."
   (apply schema/enum supported-jruby-compile-modes))
 
+(def SupportedJRubyContextScopes
+  "Schema defining the supported values for the `LocalContextScope` of a
+  JRubyInstance's ScriptingContainer."
+  (schema/enum :singlethread :threadsafe :concurrent))
+
+(def InstanceProfile
+  "Which tuning a JRubyInstance was created with: the `:default` one given by
+  the JRubyConfig, or the alternate one given by its `:canary` settings."
+  (schema/enum :default :canary))
+
+(def SharedDataFiles
+  "The files of a pool's shared data, as `:shared-data-files` in
+  `JRubyConfig`: the path of the file holding each entry, by the name of the
+  entry."
+  {(schema/cond-pre schema/Keyword schema/Str) schema/Str})
+
+(def CanaryConfig
+  "Settings for creating a fraction of a pool's JRubyInstances with an
+  alternate tuning, so that it can be compared with the default one. See
+  `:canary` in `JRubyConfig`."
+  {:fraction (schema/pred #(and (number? %) (< 0 %) (<= % 1)) 'fraction-of-instances)
+   (schema/optional-key :compile-mode) SupportedJRubyCompileModes
+   (schema/optional-key :jit-threshold) schema/Int
+   (schema/optional-key :jit-max) schema/Int
+   (schema/optional-key :context-scope) SupportedJRubyContextScopes})
+
 (def SupportedJRubyProfilingModes
   "Schema defining the supported values for the JRuby ProfilingMode setting."
   (schema/enum :api :flat :graph :html :json :off :service))
@@ -62,6 +89,14 @@
     * :max-active-instances - The maximum number of JRubyInstances that
         will be pooled.
 
+    * :min-active-instances - The number of JRubyInstances guaranteed to the
+        pool when it shares an instance budget with other pools (see
+        `InstanceBudgetConfig`). The pool starts with this many instances and
+        borrows capacity from the budget, up to `:max-active-instances`, when
+        it has borrowers waiting. Defaults to 1, and is never more than
+        `:max-active-instances`. Has no effect when the pool manager has no
+        instance budget.
+
     * :splay-instance-flush - Whether or not to splay flushing of instances
 
     * :environment-vars - A map of environment variables and their values to be
@@ -80,7 +115,131 @@
 
     * :instance-creation-concurrency - How many instances to create at once. This
         will improve start up and potentially reload times, but if too high may
-        create unaceptable load on the system during startup or reload."
+        create unaceptable load on the system during startup or reload.
+
+    * :fair-borrows - Whether returned JRubyInstances are handed directly to the
+        borrower that has been waiting longest, rather than to whichever thread
+        asks for one first. Reduces tail latency of borrows when the pool is
+        saturated. Defaults to false. Has no effect when `:multithreaded` is
+        true.
+
+    * :call-cache-max-entries - The maximum number of results of `cached-call`
+        invocations to memoize. Defaults to 0, in which case results are not
+        memoized, but concurrent identical calls still share one execution.
+
+    * :call-cache-ttl - How long, in milliseconds, a memoized `cached-call`
+        result may be served. Defaults to 0, meaning that results are only
+        evicted because of size limits or when the pool is flushed.
+
+    * :shutdown-timeout - The total time, in milliseconds, that shutting down
+        the pool may take. When positive, idle JRubyInstances are terminated
+        in parallel straight away, borrowed ones are terminated as they are
+        returned, and any which are still borrowed or terminating once the
+        timeout has elapsed are abandoned. Defaults to 0, in which case
+        shutdown waits for every instance to be returned, however long that
+        takes. Has no effect when `:multithreaded` is true.
+
+    * :long-borrow-threshold - How long, in milliseconds, a JRubyInstance may
+        be borrowed before a warning about the borrow is logged. Defaults to 0,
+        which disables the warnings; `jruby-core/outstanding-borrows` lists
+        current borrows regardless.
+
+    * :capture-borrow-stacks - Whether to record the stack of the borrowing
+        thread for each borrow, so that it can be included in long borrow
+        warnings and in `jruby-core/outstanding-borrows`. Defaults to false.
+
+    * :jmx-object-name - If set, the pool's statistics and the lifecycle
+        statistics of its JRubyInstances are published as a JMX MXBean under
+        this object name, e.g. `puppetlabs.jruby:type=JRubyPool`. Defaults to
+        nil, meaning that nothing is published.
+
+    * :compile-cache-dir - If set, a directory in which the Ruby sources under
+        `:ruby-load-path` are stored compiled to JVM bytecode, so that new
+        JRubyInstances load the compiled forms rather than parsing and
+        interpreting the sources again. Entries are keyed by source path,
+        content hash and JRuby version, and are evicted when their source
+        changes. Defaults to nil, which disables the cache.
+
+    * :require-index - Whether `require` looks features up in an index of the
+        files under `:ruby-load-path`, rather than searching each of its
+        directories. The index is built once for each generation of
+        JRubyInstances and shared by all of them, and is rebuilt when the
+        pool is flushed. Features which aren't in the index are searched for
+        as usual. Defaults to false.
+
+    * :gemspec-index - Whether the gem specifications under `:gem-home` and
+        `:gem-path` are loaded once, into an index shared by every
+        JRubyInstance, rather than by evaluating the gemspecs in each
+        instance. The index is rebuilt when the gemspecs change. Defaults to
+        false.
+
+    * :warm-up-script - The path of a Ruby script to run against each new
+        JRubyInstance before it is added to the pool, e.g. to exercise the
+        code paths which serve requests so that JRuby compiles them. Defaults
+        to nil.
+
+    * :warm-up-calls - How many of the most recent distinct `cached-call`s to
+        remember and replay against each new JRubyInstance, after any
+        `:warm-up-script`, before it is added to the pool. Defaults to 0,
+        which disables recording and replay.
+
+    * :warm-up-budget - How long, in milliseconds, warming up each new
+        JRubyInstance may take. Recorded calls stop being replayed once it has
+        been spent, but a `:warm-up-script` is always allowed to finish.
+        Defaults to 10000.
+
+    * :canary - If set, a fraction of the JRubyInstances are created with an
+        alternate tuning, so that its latency and throughput can be compared
+        with the default tuning's using `jruby-core/profile-stats`. A map of
+        the `:fraction` of instances, between 0 and 1, to create with the
+        alternate tuning, and any of: the `:compile-mode` to use instead of
+        the pool's; the `:jit-threshold`, how many times a method is called
+        before it is compiled; the `:jit-max`, how many methods may be
+        compiled; and the `:context-scope` of the ScriptingContainer, one of
+        `:singlethread` (the default tuning's), `:threadsafe` or
+        `:concurrent`. The same instances, by id, are canaries in each
+        generation of the pool. Defaults to nil. Has no effect when
+        `:multithreaded` is true.
+
+    * :heap-budget - If set, the heap, in megabytes, which the pool's
+        JRubyInstances may retain between them. The heap retained by the
+        first instance is measured once it has been created, and the pool is
+        then filled with as many instances as fit within the budget, up to
+        `:max-active-instances` and one fewer than the number of cores; the
+        pool never grows beyond that. When set, `:max-active-instances`
+        defaults to one fewer than the number of cores rather than to at most
+        4. Defaults to nil, in which case the size of the pool is not limited
+        by memory. Has no effect when `:multithreaded` is true.
+
+    * :creation-retries - How many more times to try creating a JRubyInstance
+        when creating it fails. The pool gives up the instance at once and
+        keeps serving with the rest, while the creation is retried in the
+        background. If every retry fails, it is tried again the next time the
+        pool is flushed; the pool is only poisoned if it has no instance left.
+        Defaults to 0, in which case the pool is poisoned as soon as any
+        instance fails to be created. Has no effect on a multithreaded pool,
+        which is always poisoned.
+
+    * :creation-retry-backoff - How long, in milliseconds, to wait before the
+        first retry of a failed instance creation. The wait doubles with each
+        retry after that. Defaults to 1000.
+
+    * :scriptlet-cache-max-entries - How many parsed scriptlets each
+        instance's ScriptingContainer keeps for `runCachedScriptlet`, so that
+        a scriptlet run over and over is only parsed once. The least recently
+        used are discarded beyond that. Defaults to 256; 0 disables the
+        cache. Scriptlets are never cached by a multithreaded pool, or by
+        instances whose `:context-scope` isn't `:singlethread`, since a parsed
+        scriptlet can only be run by one thread at a time.
+
+    * :shared-data-files - A map of names to the paths of files holding
+        read-only data for the pool's JRubyInstances to share, e.g. lookup
+        tables. Each file is mapped into memory once for the pool, rather than
+        loaded by each instance, and is read from Ruby through the
+        `$jruby_shared_data` global, which is set before the
+        `:initialize-scripting-container` lifecycle function is called. The
+        files can be replaced with `jruby-core/refresh-shared-data!`.
+        Defaults to nil."
   {:ruby-load-path [schema/Str]
    :gem-home schema/Str
    :gem-path (schema/maybe schema/Str)
@@ -88,6 +247,7 @@
    :borrow-timeout schema/Int
    :flush-timeout schema/Int
    :max-active-instances schema/Int
+   :min-active-instances schema/Int
    :max-borrows-per-instance schema/Int
    :splay-instance-flush schema/Bool
    :lifecycle LifecycleFns
@@ -95,7 +255,26 @@
    :profiling-mode SupportedJRubyProfilingModes
    :profiler-output-file schema/Str
    :multithreaded schema/Bool
-   :instance-creation-concurrency schema/Int})
+   :instance-creation-concurrency schema/Int
+   :fair-borrows schema/Bool
+   :call-cache-max-entries schema/Int
+   :call-cache-ttl schema/Int
+   :shutdown-timeout schema/Int
+   :long-borrow-threshold schema/Int
+   :capture-borrow-stacks schema/Bool
+   (schema/optional-key :jmx-object-name) (schema/maybe schema/Str)
+   (schema/optional-key :compile-cache-dir) (schema/maybe schema/Str)
+   :require-index schema/Bool
+   :gemspec-index schema/Bool
+   (schema/optional-key :warm-up-script) (schema/maybe schema/Str)
+   :warm-up-calls schema/Int
+   :warm-up-budget schema/Int
+   :canary (schema/maybe CanaryConfig)
+   (schema/optional-key :heap-budget) (schema/maybe schema/Int)
+   :creation-retries schema/Int
+   :creation-retry-backoff schema/Int
+   :scriptlet-cache-max-entries schema/Int
+   (schema/optional-key :shared-data-files) (schema/maybe SharedDataFiles)})
 
 (def JRubyPoolAgent
   "An agent configured for use in managing JRuby pools"
@@ -108,10 +287,22 @@
                        (ifn? (:shutdown-on-error state))))))))
 
 (def PoolState
-  "A map that describes all attributes of a particular JRuby pool."
+  "A map that describes all attributes of a particular JRuby pool.
+  `:heap-limit` is the most instances the pool may grow to within its
+  `:heap-budget`, once that has been measured. `:degraded` is how many
+  instances the pool has given up on after failing to create them, and
+  `:creation-failures` how many attempts to create an instance have failed.
+  `:restore-scheduled` is set while a retry of the instances given up on is
+  scheduled. `:shutting-down` is set once the pool has started to shut down,
+  after which retired instances are no longer replaced."
   {:pool             pool-queue-type
    :size             schema/Int
-   :creation-service ExecutorService})
+   :creation-service ExecutorService
+   (schema/optional-key :heap-limit) schema/Int
+   (schema/optional-key :degraded) schema/Int
+   (schema/optional-key :creation-failures) schema/Int
+   (schema/optional-key :restore-scheduled) schema/Bool
+   (schema/optional-key :shutting-down) schema/Bool})
 
 (def PoolStateContainer
   "An atom containing the current state of all of the JRuby pool."
@@ -119,16 +310,106 @@
                      (nil? (schema/check PoolState @%)))
                'PoolStateContainer))
 
+(def BorrowTracker
+  "Records the JRubyInstances which are currently borrowed from a pool, keyed
+  by the borrowing thread and instance, along with the watchdog (if any) which
+  reports borrows held for longer than the `:long-borrow-threshold`."
+  {:borrows ConcurrentHashMap
+   :capture-stacks? schema/Bool
+   :watchdog Atom})
+
+(def InstanceBudgetConfig
+  "Schema defining the `jruby-pool-manager` section of the Trapperkeeper
+  config, which caps the JRubyInstances of all of the pools created by the
+  pool manager service.
+
+    * :max-total-instances - The most JRubyInstances that may exist across
+        all pools at once. Must be at least the sum of the pools'
+        `:min-active-instances`.
+
+    * :instance-creation-concurrency - How many instances may be created at
+        once across all pools, replacing the per-pool setting. Defaults to 3.
+
+    * :rebalance-interval - How often, in milliseconds, capacity is moved
+        between pools according to their demand. Defaults to 1000."
+  {:max-total-instances schema/Int
+   (schema/optional-key :instance-creation-concurrency) schema/Int
+   (schema/optional-key :rebalance-interval) schema/Int})
+
+(def InstanceBudget
+  "A limit on the total number of JRubyInstances across a set of pools.
+  `:pools` is an atom containing the contexts of the pools sharing the budget,
+  and `:allocated` an atom containing the number of instances they have been
+  allowed."
+  {:max-instances schema/Int
+   :creation-service ExecutorService
+   :pools Atom
+   :allocated Atom
+   :rebalancer Atom})
+
+(def CallRecorder
+  "Remembers the most recent distinct `cached-call`s made against a pool, so
+  that they can be replayed to warm up new instances. `:calls` maps each
+  call's `[method-name args]` to the function which made it and the
+  `System/nanoTime` at which it was last made, and holds at most
+  `:max-calls` of them."
+  {:calls ConcurrentHashMap
+   :max-calls schema/Int})
+
+(def ProfileCounters
+  "Counts the borrows of a pool's JRubyInstances, and how long they were
+  held for in milliseconds, separately for each InstanceProfile. `:since` is
+  when counting started, in milliseconds since the epoch."
+  {:since schema/Int
+   :counters {InstanceProfile {:borrows LongAdder
+                               :busy-time LongAdder
+                               :max-borrow-time LongAccumulator}}})
+
+(def ProfileStatistics
+  "How the JRubyInstances created with an InstanceProfile have performed, as
+  returned by `jruby-core/profile-stats`. Times are in milliseconds, and rates
+  are averaged over the time since the pool was created. Borrows are only
+  counted once they have been returned. `:instances` is the number currently
+  registered; since the profiles may have different numbers of instances,
+  `:borrows-per-instance-second` is the rate to compare."
+  {:instances schema/Int
+   :borrows schema/Int
+   :busy-time schema/Int
+   :mean-borrow-time schema/Num
+   :max-borrow-time schema/Int
+   :borrows-per-second schema/Num
+   :borrows-per-instance-second schema/Num})
+
 (def PoolContextInternal
   "The data structure that stores all JRuby pools"
   {:modify-instance-agent JRubyPoolAgent
    :pool-state PoolStateContainer
-   :event-callbacks Atom})
+   :event-callbacks Atom
+   :call-cache SingleFlightCache
+   :borrow-tracker BorrowTracker
+   :call-recorder (schema/maybe CallRecorder)
+   :profile-counters ProfileCounters
+   ;; The SpanTracer given spans for borrows and locks, if any
+   :tracer Atom
+   ;; The ObjectName under which the pool's MXBean is registered, if any
+   :mbean-name Atom
+   ;; Holds the contents of the pool's `:shared-data-files`
+   :shared-data SharedDataStore
+   ;; Returns the pool's instances to the InstanceBudget it shares, if any.
+   ;; A function rather than the budget itself, since the budget refers back
+   ;; to the pool context.
+   (schema/optional-key :release-budget) IFn
+   ;; Allocates the given number of instances from that budget, returning
+   ;; whether it could, or returns them to it if the number is negative. The
+   ;; budget's allocation for the pool is kept equal to its size, so this is
+   ;; called whenever the size changes other than by the budget itself.
+   (schema/optional-key :resize-budget) IFn})
 
 (schema/defrecord ReferencePool
   [config :- JRubyConfig
    internal :- PoolContextInternal
-   borrow-count :- Atom])
+   borrow-count :- LongAdder
+   flush-scheduled :- AtomicBoolean])
 
 (schema/defrecord InstancePool
   [config :- JRubyConfig
@@ -138,9 +419,83 @@
   (schema/pred #(or (instance? ReferencePool %)
                     (instance? InstancePool %))))
 
+(def PoolStatistics
+  "A snapshot of the state of the pool, as returned by
+  `jruby-core/pool-statistics`. `:locked-since` is the time, in milliseconds
+  since the epoch, at which the pool lock was acquired, or nil if the pool is
+  not locked. `:degraded-instances` is how many instances the pool is short
+  of because they could not be created, and `:creation-failures` how many
+  attempts to create an instance have failed since the pool was created."
+  {:free-instances schema/Int
+   :borrowed-instances schema/Int
+   :registered-instances schema/Int
+   :waiting-borrowers schema/Int
+   :locked? schema/Bool
+   :locked-since (schema/maybe schema/Int)
+   :degraded-instances schema/Int
+   :creation-failures schema/Int})
+
+(def OutstandingBorrow
+  "A JRubyInstance which is currently borrowed, as returned by
+  `jruby-core/outstanding-borrows`. `:borrowed-at` is in milliseconds since
+  the epoch, and `:stack` is only present if `:capture-borrow-stacks` is
+  enabled."
+  {:instance-id schema/Int
+   :thread schema/Str
+   :reason schema/Any
+   :borrowed-at schema/Int
+   :held-ms schema/Int
+   (schema/optional-key :stack) [schema/Str]})
+
+(def InstanceRetirement
+  "Why, and after how many borrows, a JRubyInstance was retired. Recorded on
+  the JRubyInstance which replaces it, which is created with the same
+  `:profile`, as the generation after the retired instance's `:generation`."
+  {:id schema/Int
+   :reason (schema/enum :max-borrows :pool-flush)
+   :borrow-count schema/Int
+   :generation schema/Int
+   (schema/optional-key :profile) InstanceProfile})
+
+(def InstanceCreationOptions
+  "What `jruby-internal/create-pool-instance!` needs from the pool beyond its
+  config: the retirement of the instance being replaced, if any, the recorder
+  of calls to warm the new instance up with, and the store of shared data for
+  it to read from."
+  {(schema/optional-key :previous-retirement) (schema/maybe InstanceRetirement)
+   (schema/optional-key :call-recorder) (schema/maybe CallRecorder)
+   (schema/optional-key :shared-data) (schema/maybe SharedDataStore)})
+
 (def JRubyInstanceState
-  "State metadata for an individual JRubyInstance"
-  {:borrow-count schema/Int})
+  "State metadata for an individual JRubyInstance. `:created-at` is in
+  milliseconds since the epoch, and `:creation-duration` is how many
+  milliseconds it took to create and initialize the instance, not counting
+  the `:warm-up-duration` spent warming it up afterwards. The lifecycle keys
+  are optional, since not every instance is created by this library."
+  {:borrow-count schema/Int
+   (schema/optional-key :created-at) schema/Int
+   (schema/optional-key :creation-duration) schema/Int
+   (schema/optional-key :warm-up-duration) schema/Int
+   (schema/optional-key :previous-retirement) (schema/maybe InstanceRetirement)})
+
+(def InstanceStatistics
+  "Lifecycle statistics for a JRubyInstance, as returned by
+  `jruby-core/instance-stats`. Times are in milliseconds since the epoch and
+  durations in milliseconds. `:busy-time` only counts borrows which have been
+  returned, `:last-borrowed-at` is nil if the instance has never been
+  borrowed, and `:profile` is which tuning the instance was created with.
+  Only `:id` and `:borrow-count` are always present; the rest are left out
+  for an instance whose state doesn't record them."
+  {:id schema/Int
+   :borrow-count schema/Int
+   (schema/optional-key :created-at) schema/Int
+   (schema/optional-key :age) schema/Int
+   (schema/optional-key :creation-duration) schema/Int
+   (schema/optional-key :warm-up-duration) schema/Int
+   (schema/optional-key :busy-time) schema/Int
+   (schema/optional-key :last-borrowed-at) (schema/maybe schema/Int)
+   (schema/optional-key :profile) InstanceProfile
+   (schema/optional-key :previous-retirement) (schema/maybe InstanceRetirement)})
 
 (def JRubyInstanceStateContainer
   "An atom containing the current state of a given JRubyInstance."
@@ -149,10 +504,22 @@
                'JRubyInstanceState))
 
 (def JRubyPuppetInstanceInternal
+  "The internals of a JRubyInstance. The lifecycle keys are optional, like
+  those of JRubyInstanceState, since not every instance is created by this
+  library; an instance without a `:profile` counts as a `:default` one."
   {:pool pool-queue-type
    :initial-borrows (schema/maybe schema/Int)
    :max-borrows schema/Int
-   :state JRubyInstanceStateContainer})
+   :state JRubyInstanceStateContainer
+   ;; Updated on every borrow, so kept out of the state atom to avoid
+   ;; contention when a multithreaded pool lends the instance to many
+   ;; threads at once
+   (schema/optional-key :busy-time) LongAdder
+   (schema/optional-key :last-borrowed-at) LongAccumulator
+   (schema/optional-key :profile) InstanceProfile
+   ;; 0 for an instance which doesn't replace another, and one more than the
+   ;; instance it replaces otherwise
+   (schema/optional-key :generation) schema/Int})
 
 (schema/defrecord JRubyInstance
   [internal :- JRubyPuppetInstanceInternal
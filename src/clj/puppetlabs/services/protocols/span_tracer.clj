@@ -0,0 +1,15 @@
+(ns puppetlabs.services.protocols.span-tracer)
+
+(defprotocol SpanTracer
+  (start-span
+    [tracer span-name parent attributes]
+    "Starts a span named `span-name`, as a child of the span `parent`, which
+    was returned by an earlier `start-span`, or nil if it has none.
+    `attributes` is a map of what is known about the span when it starts.
+    Returns an object representing the span, which is only ever passed back to
+    this tracer.")
+
+  (end-span
+    [tracer span attributes]
+    "Ends `span`, adding the `attributes` which were only known once it ended,
+    e.g. which instance a borrow was given."))
@@ -1,7 +1,22 @@
 package com.puppetlabs.jruby_utils.jruby;
 
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.jruby.Ruby;
+import org.jruby.RubyIO;
+import org.jruby.RubyString;
+import org.jruby.embed.EmbedEvalUnit;
 import org.jruby.embed.LocalContextScope;
 import org.jruby.embed.LocalVariableBehavior;
+import org.jruby.javasupport.JavaEmbedUtils;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.util.ByteList;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -17,13 +32,292 @@ public class InternalScriptingContainer
     private static final Logger LOGGER = LoggerFactory.getLogger(
             InternalScriptingContainer.class);
 
+    /**
+     * How many parsed scriptlets are cached by default; see
+     * {@link #setScriptletCacheMaxEntries(int)}.
+     */
+    public static final int DEFAULT_SCRIPTLET_CACHE_MAX_ENTRIES = 256;
+
+    // Whether parsed scriptlets are cached.  A parsed scriptlet holds the
+    // scope its local variables are kept in, so it can only be run by one
+    // thread at a time.  Only a SINGLETHREAD container is meant to be used by
+    // one thread at a time; with THREADSAFE each thread has a runtime of its
+    // own, and with CONCURRENT threads share a runtime, so nothing is cached.
+    // A SINGLETHREAD container which several threads use at once, as in a
+    // multithreaded pool, must disable the cache with
+    // setScriptletCacheMaxEntries(0).
+    private final boolean scriptletsCacheable;
+
+    private volatile int scriptletCacheMaxEntries =
+            DEFAULT_SCRIPTLET_CACHE_MAX_ENTRIES;
+
+    // Parsed scriptlets by their source, least recently used first.  Guarded
+    // by its own monitor, which is never held while parsing.
+    private final Map<String, EmbedEvalUnit> scriptletCache =
+            new LinkedHashMap<String, EmbedEvalUnit>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<String, EmbedEvalUnit> eldest) {
+                    return size() > scriptletCacheMaxEntries;
+                }
+            };
+
     public InternalScriptingContainer(LocalContextScope scope) {
         super(scope);
+        this.scriptletsCacheable = scope == LocalContextScope.SINGLETHREAD;
     }
 
     public InternalScriptingContainer(LocalContextScope scope,
                                       LocalVariableBehavior behavior) {
         super(scope, behavior);
+        this.scriptletsCacheable = scope == LocalContextScope.SINGLETHREAD;
+    }
+
+    /**
+     * Sets how many parsed scriptlets {@link #parseScriptlet(String)} keeps,
+     * discarding the least recently used ones beyond that.  0 disables the
+     * cache, as must be done if the container is used by several threads at
+     * once, since a parsed scriptlet can't be run by two threads at once.
+     *
+     * @param maxEntries - the most scriptlets to keep
+     */
+    public void setScriptletCacheMaxEntries(int maxEntries) {
+        scriptletCacheMaxEntries = maxEntries;
+        if (maxEntries <= 0) {
+            clearScriptletCache();
+        }
+    }
+
+    /**
+     * @return - how many parsed scriptlets are currently cached
+     */
+    public int getScriptletCacheSize() {
+        synchronized (scriptletCache) {
+            return scriptletCache.size();
+        }
+    }
+
+    /**
+     * Discards every cached scriptlet.
+     */
+    public void clearScriptletCache() {
+        synchronized (scriptletCache) {
+            scriptletCache.clear();
+        }
+    }
+
+    /**
+     * Parses a scriptlet once, returning the unit parsed earlier for the same
+     * source if there is one, so that a scriptlet which is run over and over
+     * is only parsed the first time.  The unit may be run any number of
+     * times, but only by one thread at a time, so scriptlets are only cached
+     * by a SINGLETHREAD container whose cache hasn't been disabled; any
+     * other container parses the scriptlet afresh each time.  Since it is
+     * only parsed once, the scriptlet must not depend on which local
+     * variables are set in the container when it is run, beyond what the
+     * container's LocalVariableBehavior allows for.
+     *
+     * @param script - the source of the scriptlet
+     * @return - the parsed scriptlet
+     */
+    public EmbedEvalUnit parseScriptlet(String script) {
+        if (!scriptletsCacheable || scriptletCacheMaxEntries <= 0) {
+            return parse(script);
+        }
+        EmbedEvalUnit unit;
+        synchronized (scriptletCache) {
+            unit = scriptletCache.get(script);
+        }
+        if (unit == null) {
+            EmbedEvalUnit parsed = parse(script);
+            synchronized (scriptletCache) {
+                // Another thread may have parsed the same scriptlet meanwhile
+                unit = scriptletCache.putIfAbsent(script, parsed);
+            }
+            if (unit == null) {
+                unit = parsed;
+            }
+        }
+        return unit;
+    }
+
+    /**
+     * Like {@link #runScriptlet(String)}, but parses the scriptlet with
+     * {@link #parseScriptlet(String)}, so that it is only parsed the first
+     * time it is run.
+     *
+     * @param script - the source of the scriptlet
+     * @return - the result of the scriptlet, converted to a Java object
+     */
+    public Object runCachedScriptlet(String script) {
+        EmbedEvalUnit unit = parseScriptlet(script);
+        return unit == null ? null : JavaEmbedUtils.rubyToJava(unit.run());
+    }
+
+    /**
+     * Wraps {@code bytes} as a binary Ruby String backed by the same array,
+     * rather than a copy of it, to pass large payloads to Ruby methods.  The
+     * String is marked as shared, so Ruby copies it before modifying it, and
+     * the array is never written to; but the caller must not modify the array
+     * while Ruby may still be using the String.
+     *
+     * @param bytes - the bytes of the String
+     * @return - a Ruby String, to pass as an argument to a Ruby method
+     */
+    public IRubyObject wrapBytes(byte[] bytes) {
+        return wrapBytes(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Like {@link #wrapBytes(byte[])}, for {@code length} bytes of
+     * {@code bytes} starting at {@code offset}.
+     *
+     * @param bytes  - the array holding the bytes of the String
+     * @param offset - the index of the first byte of the String
+     * @param length - the length of the String
+     * @return - a Ruby String, to pass as an argument to a Ruby method
+     */
+    public IRubyObject wrapBytes(byte[] bytes, int offset, int length) {
+        return RubyString.newStringShared(getProvider().getRuntime(),
+                new ByteList(bytes, offset, length, false));
+    }
+
+    /**
+     * Like {@link #wrapBytes(byte[])}, for the remaining bytes of
+     * {@code buffer}.  Only a buffer backed by an accessible array can be
+     * wrapped without copying; the bytes of any other buffer, e.g. a direct
+     * one, are copied, since a Ruby String must be backed by an array.  The
+     * position of the buffer is left unchanged.
+     *
+     * @param buffer - the bytes of the String
+     * @return - a Ruby String, to pass as an argument to a Ruby method
+     */
+    public IRubyObject wrapBytes(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            return wrapBytes(buffer.array(),
+                    buffer.arrayOffset() + buffer.position(),
+                    buffer.remaining());
+        }
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return wrapBytes(bytes);
+    }
+
+    /**
+     * Returns a read-only view of the bytes of a Ruby String, backed by the
+     * String's own storage rather than a copy of it.  The String is marked as
+     * shared, so that Ruby copies it before modifying it, and the view keeps
+     * the bytes it was given.
+     *
+     * @param rubyString - a Ruby String, e.g. as returned by
+     *                     {@link #callMethodForBytes}
+     * @return - the bytes of the String
+     */
+    public ByteBuffer unwrapBytes(Object rubyString) {
+        if (!(rubyString instanceof RubyString)) {
+            throw new IllegalArgumentException(
+                    "Expected a Ruby String, got " +
+                    (rubyString == null ? "nil" : rubyString.getClass().getName()));
+        }
+        RubyString string = (RubyString) rubyString;
+        string.setByteListShared();
+        ByteList bytes = string.getByteList();
+        return ByteBuffer.wrap(bytes.unsafeBytes(), bytes.begin(), bytes.realSize())
+                .slice()
+                .asReadOnlyBuffer();
+    }
+
+    /**
+     * Calls a Ruby method which returns a String, returning its bytes as by
+     * {@link #unwrapBytes(Object)} rather than converting the String to a
+     * Java String, which would copy and decode it.
+     *
+     * @param receiver   - the Ruby object to call a method on
+     * @param methodName - the name of the method to call
+     * @param args       - an array of args to call the method with, which
+     *                     may include Strings from {@link #wrapBytes}
+     * @return - the bytes of the String returned by the method
+     */
+    public ByteBuffer callMethodForBytes(Object receiver, String methodName,
+                                         Object[] args) {
+        // Asking for a RubyString stops the result from being converted
+        return unwrapBytes(callMethod(receiver, methodName, args, RubyString.class));
+    }
+
+    /**
+     * Calls a Ruby method with a Ruby IO writing to {@code out} appended to
+     * its arguments, so that the method can stream a large result, e.g. with
+     * {@code io.write} or {@code io << chunk}, rather than building it up as
+     * one String.  The IO is in binary mode and unbuffered, so each write
+     * reaches {@code out} before it returns; {@code out} is flushed once the
+     * method returns, but isn't closed.
+     *
+     * @param receiver   - the Ruby object to call a method on
+     * @param methodName - the name of the method to call
+     * @param args       - an array of args to call the method with, before
+     *                     the IO
+     * @param out        - where the method's output is written
+     * @return - the result of calling the method
+     */
+    public Object callMethodWithOutputStream(Object receiver, String methodName,
+                                             Object[] args, OutputStream out) {
+        Ruby runtime = getProvider().getRuntime();
+        ThreadContext context = runtime.getCurrentContext();
+        // Not autoclosed, since the stream belongs to the caller
+        RubyIO io = new RubyIO(runtime, out, false);
+        io.callMethod(context, "binmode");
+        io.callMethod(context, "sync=", runtime.getTrue());
+        Object[] argsWithIO = Arrays.copyOf(args, args.length + 1);
+        argsWithIO[args.length] = io;
+        Object result = callMethod(receiver, methodName, argsWithIO, Object.class);
+        io.callMethod(context, "flush");
+        return result;
+    }
+
+    /**
+     * Like {@link #callMethodWithOutputStream}, but hands each write the
+     * method makes to {@code chunks} as it is made.  A chunk is only valid
+     * until {@code chunks} returns, so it must be consumed, e.g. written to a
+     * response, or copied, before then.
+     *
+     * @param receiver   - the Ruby object to call a method on
+     * @param methodName - the name of the method to call
+     * @param args       - an array of args to call the method with, before
+     *                     the IO
+     * @param chunks     - given the bytes of each write, read-only
+     * @return - the result of calling the method
+     */
+    public Object callMethodWithChunks(Object receiver, String methodName,
+                                       Object[] args,
+                                       Consumer<ByteBuffer> chunks) {
+        return callMethodWithOutputStream(receiver, methodName, args,
+                new ChunkOutputStream(chunks));
+    }
+
+    private static final class ChunkOutputStream extends OutputStream {
+        private final Consumer<ByteBuffer> chunks;
+
+        ChunkOutputStream(Consumer<ByteBuffer> chunks) {
+            this.chunks = chunks;
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            if (len > 0) {
+                chunks.accept(ByteBuffer.wrap(b, off, len).slice().asReadOnlyBuffer());
+            }
+        }
+    }
+
+    @Override
+    public void terminate() {
+        clearScriptletCache();
+        super.terminate();
     }
 
     /**
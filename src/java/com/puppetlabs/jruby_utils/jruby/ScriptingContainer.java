@@ -1,8 +1,13 @@
 package com.puppetlabs.jruby_utils.jruby;
 
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
 import org.jruby.embed.EmbedEvalUnit;
 import org.jruby.embed.EmbedRubyInstanceConfigAdapter;
 import org.jruby.runtime.Block;
+import org.jruby.runtime.builtin.IRubyObject;
 
 /**
  */
@@ -12,5 +17,22 @@ public interface ScriptingContainer extends EmbedRubyInstanceConfigAdapter {
                               Object[] args,
                               Class<? extends Object> returnType);
     Object runScriptlet(String script);
+    EmbedEvalUnit parseScriptlet(String script);
+    Object runCachedScriptlet(String script);
+    IRubyObject wrapBytes(byte[] bytes);
+    IRubyObject wrapBytes(byte[] bytes, int offset, int length);
+    IRubyObject wrapBytes(ByteBuffer buffer);
+    ByteBuffer unwrapBytes(Object rubyString);
+    ByteBuffer callMethodForBytes(Object receiver,
+                                  String methodName,
+                                  Object[] args);
+    Object callMethodWithOutputStream(Object receiver,
+                                      String methodName,
+                                      Object[] args,
+                                      OutputStream out);
+    Object callMethodWithChunks(Object receiver,
+                                String methodName,
+                                Object[] args,
+                                Consumer<ByteBuffer> chunks);
     void terminate();
 }
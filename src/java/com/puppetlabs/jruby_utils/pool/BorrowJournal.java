@@ -0,0 +1,288 @@
+package com.puppetlabs.jruby_utils.pool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A fixed-size, memory-mapped journal of the borrows, returns and locks of a
+ * pool, for replaying its traffic offline with {@link BorrowReplay}.
+ *
+ * Each event is a 32 byte record, written without locking: a writer
+ * reserves its slot with a single atomic increment and then fills it in
+ * place, so appending costs little more than the clock read.  Once the
+ * journal is full further events are counted and dropped.
+ *
+ * The file starts with a header holding a magic number, the format version,
+ * the wall clock time at which the journal was created and, once the journal
+ * has been closed, the number of records written.  Each record holds, in
+ * order: the time of the event in nanoseconds since the journal was created
+ * (long), the event type (byte, padded to an int), the id of the instance
+ * concerned or -1 (int), the id of the reason given for the event (int), the
+ * id of the thread which raised it (int), and two durations in microseconds
+ * (ints): how long the event waited, and how long the instance or lock was
+ * held.  The reasons, which are strings, are written one per line, in id
+ * order, to a file alongside the journal when it is closed.
+ */
+public final class BorrowJournal implements AutoCloseable {
+
+    /** An instance was borrowed; the wait is how long the borrow blocked. */
+    public static final byte BORROWED = 1;
+
+    /** An instance was returned; the wait is how long its borrow blocked and
+     * the hold is how long it was borrowed for. */
+    public static final byte RETURNED = 2;
+
+    /** The pool lock was acquired; the wait is how long acquiring it took. */
+    public static final byte LOCK_ACQUIRED = 3;
+
+    /** The pool lock was released; the wait is how long acquiring it took
+     * and the hold is how long it was held for. */
+    public static final byte LOCK_RELEASED = 4;
+
+    public static final int HEADER_SIZE = 32;
+    public static final int RECORD_SIZE = 32;
+
+    // "JRBJ"
+    private static final int MAGIC = 0x4A52424A;
+    private static final int VERSION = 1;
+    private static final int COUNT_OFFSET = 16;
+
+    /** The most distinct reasons a journal records; the id of any further
+     * reason is -1. */
+    public static final int MAX_REASONS = 4096;
+
+    // A single mapping is limited to Integer.MAX_VALUE bytes
+    public static final long MAX_RECORDS =
+            (Integer.MAX_VALUE - HEADER_SIZE) / RECORD_SIZE;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final long maxRecords;
+    private final long startNanos;
+    private final AtomicLong reserved = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+    private final ConcurrentHashMap<String, Integer> reasonIds =
+            new ConcurrentHashMap<>();
+    private final List<String> reasons =
+            Collections.synchronizedList(new ArrayList<>());
+    private volatile boolean closed;
+
+    /**
+     * Create a BorrowJournal, replacing any existing file at <tt>path</tt>.
+     *
+     * @param path       the file to write the journal to
+     * @param maxRecords the number of records the journal can hold; at most
+     *                   {@link #MAX_RECORDS}
+     * @throws IOException if the file cannot be created and mapped
+     */
+    public BorrowJournal(Path path, long maxRecords) throws IOException {
+        if (maxRecords < 1 || maxRecords > MAX_RECORDS) {
+            throw new IllegalArgumentException(
+                    "maxRecords must be between 1 and " + MAX_RECORDS);
+        }
+        this.path = path;
+        this.maxRecords = maxRecords;
+        this.channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                HEADER_SIZE + maxRecords * RECORD_SIZE);
+        this.startNanos = System.nanoTime();
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putLong(8, System.currentTimeMillis());
+        buffer.putLong(COUNT_OFFSET, -1);
+    }
+
+    /**
+     * Returns the id under which <tt>reason</tt> is recorded, assigning it
+     * the next free id if it has not been seen before, or -1 if
+     * {@link #MAX_REASONS} reasons have already been recorded.  Reasons are
+     * written one per line, so must not contain line breaks.
+     */
+    public int reasonId(String reason) {
+        Integer id = reasonIds.get(reason);
+        if (id != null) {
+            return id;
+        }
+        synchronized (reasons) {
+            id = reasonIds.get(reason);
+            if (id != null) {
+                return id;
+            }
+            if (reasons.size() >= MAX_REASONS) {
+                return -1;
+            }
+            reasons.add(reason);
+            reasonIds.put(reason, reasons.size() - 1);
+            return reasons.size() - 1;
+        }
+    }
+
+    /**
+     * Returns the number of distinct reasons recorded so far.
+     */
+    public int getReasonCount() {
+        return reasons.size();
+    }
+
+    /**
+     * Appends an event to the journal, or drops it if the journal is full or
+     * has been closed.
+     *
+     * @param type       one of the event type constants
+     * @param instanceId the id of the instance, or -1
+     * @param reasonId   an id returned by {@link #reasonId(String)}
+     * @param waitNanos  how long the event waited, or 0
+     * @param holdNanos  how long the instance or lock was held, or 0
+     */
+    public void append(byte type, int instanceId, int reasonId,
+                       long waitNanos, long holdNanos) {
+        final long now = System.nanoTime();
+        final long slot = reserved.getAndIncrement();
+        if (closed || slot >= maxRecords) {
+            dropped.increment();
+            return;
+        }
+        final int offset = (int) (HEADER_SIZE + slot * RECORD_SIZE);
+        buffer.putLong(offset, now - startNanos);
+        buffer.putInt(offset + 8, type);
+        buffer.putInt(offset + 12, instanceId);
+        buffer.putInt(offset + 16, reasonId);
+        buffer.putInt(offset + 20, (int) Thread.currentThread().getId());
+        buffer.putInt(offset + 24, toMicros(waitNanos));
+        buffer.putInt(offset + 28, toMicros(holdNanos));
+    }
+
+    /**
+     * Returns the number of records written to the journal.
+     */
+    public long getRecordCount() {
+        return Math.min(reserved.get(), maxRecords);
+    }
+
+    /**
+     * Returns the number of events dropped because the journal was full.
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * Returns the file holding the reasons of the journal at <tt>path</tt>.
+     */
+    public static Path reasonsPath(Path path) {
+        return Paths.get(path.toString() + ".reasons");
+    }
+
+    /**
+     * Stops recording, writes the record count and the reasons, and flushes
+     * the journal to disk.  Events appended concurrently with closing may be
+     * lost.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        buffer.putLong(COUNT_OFFSET, getRecordCount());
+        buffer.force();
+        channel.close();
+        synchronized (reasons) {
+            Files.write(reasonsPath(path), reasons, StandardCharsets.UTF_8);
+        }
+    }
+
+    private static int toMicros(long nanos) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        return (int) Math.min(micros, Integer.MAX_VALUE);
+    }
+
+    /**
+     * A single event read back from a journal.
+     */
+    public static final class Record {
+        public final long timeNanos;
+        public final byte type;
+        public final int instanceId;
+        public final int reasonId;
+        public final int threadId;
+        public final long waitNanos;
+        public final long holdNanos;
+
+        Record(long timeNanos, byte type, int instanceId, int reasonId,
+               int threadId, long waitNanos, long holdNanos) {
+            this.timeNanos = timeNanos;
+            this.type = type;
+            this.instanceId = instanceId;
+            this.reasonId = reasonId;
+            this.threadId = threadId;
+            this.waitNanos = waitNanos;
+            this.holdNanos = holdNanos;
+        }
+    }
+
+    /**
+     * Reads the records of the journal at <tt>path</tt>.  A journal which
+     * was not closed, e.g. because the process died, is read up to its
+     * first unwritten record.
+     *
+     * @throws IOException if the file cannot be read or is not a journal
+     */
+    public static List<Record> read(Path path) throws IOException {
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buf = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+            if (buf.limit() < HEADER_SIZE || buf.getInt(0) != MAGIC) {
+                throw new IOException(path + " is not a borrow journal");
+            }
+            if (buf.getInt(4) != VERSION) {
+                throw new IOException("Unsupported borrow journal version " +
+                        buf.getInt(4) + " in " + path);
+            }
+            long slots = (buf.limit() - HEADER_SIZE) / RECORD_SIZE;
+            long count = buf.getLong(COUNT_OFFSET);
+            long limit = count < 0 ? slots : Math.min(count, slots);
+            List<Record> records = new ArrayList<>();
+            for (long i = 0; i < limit; i++) {
+                int offset = (int) (HEADER_SIZE + i * RECORD_SIZE);
+                byte type = (byte) buf.getInt(offset + 8);
+                if (type == 0) {
+                    break;
+                }
+                records.add(new Record(buf.getLong(offset), type,
+                        buf.getInt(offset + 12), buf.getInt(offset + 16),
+                        buf.getInt(offset + 20),
+                        TimeUnit.MICROSECONDS.toNanos(buf.getInt(offset + 24)),
+                        TimeUnit.MICROSECONDS.toNanos(buf.getInt(offset + 28))));
+            }
+            return records;
+        }
+    }
+
+    /**
+     * Reads the reasons of the journal at <tt>path</tt>, indexed by id.
+     */
+    public static List<String> readReasons(Path path) throws IOException {
+        Path reasonsPath = reasonsPath(path);
+        if (!Files.exists(reasonsPath)) {
+            return Collections.emptyList();
+        }
+        return Files.readAllLines(reasonsPath, StandardCharsets.UTF_8);
+    }
+}
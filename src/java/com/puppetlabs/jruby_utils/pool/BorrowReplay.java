@@ -0,0 +1,317 @@
+package com.puppetlabs.jruby_utils.pool;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays the traffic recorded in a {@link BorrowJournal} against a
+ * LockablePool, so that a pool implementation or configuration can be
+ * load-tested with the borrows and locks of a real workload.
+ *
+ * Each recorded return becomes a borrow which arrives when the original was
+ * requested and, once it has been granted, holds its element for as long as
+ * the original did; each recorded lock release likewise becomes a lock which
+ * is held for as long as the original was.  Operations are started at their
+ * recorded arrival times, on threads of their own, so the replay reproduces
+ * the arrival and hold distribution of the recording regardless of how long
+ * the pool under test makes them wait.  Borrows which never returned, e.g.
+ * because the journal filled up, are not replayed.
+ */
+public final class BorrowReplay {
+
+    private static final byte BORROW = 1;
+    private static final byte LOCK = 2;
+
+    private final long[] arrivals;
+    private final long[] holds;
+    private final byte[] kinds;
+
+    /**
+     * Create a BorrowReplay of the given journal records.
+     *
+     * @param records the records, as read by {@link BorrowJournal#read}
+     * @param speed   how many times faster than recorded to replay, e.g. 2.0
+     *                to replay at twice the rate with half the hold times
+     */
+    public BorrowReplay(List<BorrowJournal.Record> records, double speed) {
+        if (!(speed > 0)) {
+            throw new IllegalArgumentException("speed must be positive");
+        }
+        List<long[]> ops = new ArrayList<>();
+        for (BorrowJournal.Record r : records) {
+            byte kind;
+            if (r.type == BorrowJournal.RETURNED) {
+                kind = BORROW;
+            } else if (r.type == BorrowJournal.LOCK_RELEASED) {
+                kind = LOCK;
+            } else {
+                continue;
+            }
+            long arrival = r.timeNanos - r.holdNanos - r.waitNanos;
+            ops.add(new long[] {(long) (arrival / speed),
+                                (long) (r.holdNanos / speed),
+                                kind});
+        }
+        ops.sort((a, b) -> Long.compare(a[0], b[0]));
+        long origin = ops.isEmpty() ? 0 : ops.get(0)[0];
+        arrivals = new long[ops.size()];
+        holds = new long[ops.size()];
+        kinds = new byte[ops.size()];
+        for (int i = 0; i < ops.size(); i++) {
+            long[] op = ops.get(i);
+            arrivals[i] = op[0] - origin;
+            holds[i] = op[1];
+            kinds[i] = (byte) op[2];
+        }
+    }
+
+    /**
+     * Returns the number of borrows and locks to be replayed.
+     */
+    public int getOperationCount() {
+        return arrivals.length;
+    }
+
+    /**
+     * Replays the recorded traffic against <tt>pool</tt>, which must already
+     * have its elements registered, and blocks until every operation has
+     * completed.
+     *
+     * @return a report of how the pool performed
+     * @throws InterruptedException if interrupted while waiting for the
+     *                              operations to complete
+     */
+    public Report run(LockablePool<Object> pool) throws InterruptedException {
+        final int count = arrivals.length;
+        final long[] waits = new long[count];
+        final AtomicInteger failures = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(count);
+        final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "jruby-borrow-replay");
+            t.setDaemon(true);
+            return t;
+        });
+        final long start = System.nanoTime();
+        try {
+            for (int i = 0; i < count; i++) {
+                long delay = arrivals[i] - (System.nanoTime() - start);
+                if (delay > 0) {
+                    LockSupport.parkNanos(delay);
+                }
+                final int op = i;
+                executor.execute(() -> {
+                    try {
+                        waits[op] = kinds[op] == BORROW
+                                ? replayBorrow(pool, holds[op])
+                                : replayLock(pool, holds[op]);
+                    } catch (InterruptedException e) {
+                        waits[op] = -1;
+                        failures.incrementAndGet();
+                        Thread.currentThread().interrupt();
+                    } catch (RuntimeException e) {
+                        waits[op] = -1;
+                        failures.incrementAndGet();
+                    } finally {
+                        done.countDown();
+                    }
+                });
+            }
+            done.await();
+        } finally {
+            executor.shutdownNow();
+        }
+        return new Report(kinds, waits, System.nanoTime() - start,
+                failures.get());
+    }
+
+    private static long replayBorrow(LockablePool<Object> pool, long hold)
+            throws InterruptedException {
+        long requested = System.nanoTime();
+        Object element = pool.borrowItem();
+        long wait = System.nanoTime() - requested;
+        try {
+            LockSupport.parkNanos(hold);
+        } finally {
+            pool.releaseItem(element);
+        }
+        return wait;
+    }
+
+    private static long replayLock(LockablePool<Object> pool, long hold)
+            throws InterruptedException {
+        long requested = System.nanoTime();
+        pool.lock();
+        long stall = System.nanoTime() - requested;
+        try {
+            LockSupport.parkNanos(hold);
+        } finally {
+            pool.unlock();
+        }
+        return stall;
+    }
+
+    /**
+     * The result of a replay: throughput, borrow wait times and lock
+     * stalls.  Percentiles are nearest-rank, in nanoseconds.
+     */
+    public static final class Report {
+        private final int borrowCount;
+        private final int lockCount;
+        private final long elapsedNanos;
+        private final int failureCount;
+        private final long[] borrowWaits;
+        private final long[] lockStalls;
+
+        Report(byte[] kinds, long[] waits, long elapsedNanos, int failureCount) {
+            long[] borrows = new long[waits.length];
+            long[] locks = new long[waits.length];
+            int b = 0;
+            int l = 0;
+            for (int i = 0; i < waits.length; i++) {
+                if (waits[i] < 0) {
+                    continue;
+                } else if (kinds[i] == BORROW) {
+                    borrows[b++] = waits[i];
+                } else {
+                    locks[l++] = waits[i];
+                }
+            }
+            this.borrowWaits = Arrays.copyOf(borrows, b);
+            this.lockStalls = Arrays.copyOf(locks, l);
+            Arrays.sort(borrowWaits);
+            Arrays.sort(lockStalls);
+            this.borrowCount = b;
+            this.lockCount = l;
+            this.elapsedNanos = elapsedNanos;
+            this.failureCount = failureCount;
+        }
+
+        public int getBorrowCount() {
+            return borrowCount;
+        }
+
+        public int getLockCount() {
+            return lockCount;
+        }
+
+        /**
+         * Returns the number of operations which failed, e.g. because the
+         * pool was shut down during the replay.
+         */
+        public int getFailureCount() {
+            return failureCount;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /**
+         * Returns the number of borrows completed per second.
+         */
+        public double getThroughput() {
+            if (elapsedNanos == 0) {
+                return 0;
+            }
+            return borrowCount * 1e9 / elapsedNanos;
+        }
+
+        /**
+         * Returns the given percentile, between 0 and 100, of the time
+         * borrows waited for an element.
+         */
+        public long getWaitPercentile(double percentile) {
+            return percentile(borrowWaits, percentile);
+        }
+
+        public long getMaxWait() {
+            return percentile(borrowWaits, 100);
+        }
+
+        /**
+         * Returns the given percentile, between 0 and 100, of the time
+         * locks waited to be acquired.
+         */
+        public long getLockStallPercentile(double percentile) {
+            return percentile(lockStalls, percentile);
+        }
+
+        public long getMaxLockStall() {
+            return percentile(lockStalls, 100);
+        }
+
+        /**
+         * Returns the total time locks waited to be acquired, during which
+         * no new borrows are granted.
+         */
+        public long getTotalLockStall() {
+            long total = 0;
+            for (long stall : lockStalls) {
+                total += stall;
+            }
+            return total;
+        }
+
+        private static long percentile(long[] sorted, double percentile) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+            return sorted[Math.max(0, Math.min(rank, sorted.length) - 1)];
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "%d borrows, %d locks in %.3fs (%.1f borrows/s, %d failed)%n" +
+                    "borrow wait (ms): p50 %.3f, p90 %.3f, p99 %.3f, max %.3f%n" +
+                    "lock stall (ms): p50 %.3f, max %.3f, total %.3f",
+                    borrowCount, lockCount, elapsedNanos / 1e9,
+                    getThroughput(), failureCount,
+                    millis(getWaitPercentile(50)), millis(getWaitPercentile(90)),
+                    millis(getWaitPercentile(99)), millis(getMaxWait()),
+                    millis(getLockStallPercentile(50)), millis(getMaxLockStall()),
+                    millis(getTotalLockStall()));
+        }
+
+        private static double millis(long nanos) {
+            return nanos / 1e6;
+        }
+    }
+
+    /**
+     * Replays a journal against a new pool of plain objects and prints the
+     * report.
+     *
+     * Usage: BorrowReplay JOURNAL (jruby|reference) SIZE [SPEED]
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println(
+                    "Usage: BorrowReplay JOURNAL (jruby|reference) SIZE [SPEED]");
+            System.exit(2);
+        }
+        int size = Integer.parseInt(args[2]);
+        double speed = args.length > 3 ? Double.parseDouble(args[3]) : 1.0;
+        LockablePool<Object> pool;
+        if ("reference".equals(args[1])) {
+            pool = new ReferencePool<>(size);
+            pool.register(new Object());
+        } else {
+            pool = new JRubyPool<>(size);
+            for (int i = 0; i < size; i++) {
+                pool.register(new Object());
+            }
+        }
+        BorrowReplay replay = new BorrowReplay(
+                BorrowJournal.read(Paths.get(args[0])), speed);
+        System.out.println(replay.run(pool));
+    }
+}
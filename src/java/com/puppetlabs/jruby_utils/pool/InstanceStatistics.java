@@ -0,0 +1,97 @@
+package com.puppetlabs.jruby_utils.pool;
+
+/**
+ * A point-in-time snapshot of the lifecycle statistics of a single JRuby
+ * instance, as published by {@link JRubyPoolMXBean}.
+ *
+ * Times are in milliseconds since the epoch and durations in milliseconds.
+ */
+public final class InstanceStatistics {
+    private final int id;
+    private final long borrowCount;
+    private final long createdAt;
+    private final long creationDuration;
+    private final long warmUpDuration;
+    private final long busyTime;
+    private final long lastBorrowedAt;
+    private final String previousRetirementReason;
+
+    public InstanceStatistics(int id,
+                              long borrowCount,
+                              long createdAt,
+                              long creationDuration,
+                              long warmUpDuration,
+                              long busyTime,
+                              long lastBorrowedAt,
+                              String previousRetirementReason) {
+        this.id = id;
+        this.borrowCount = borrowCount;
+        this.createdAt = createdAt;
+        this.creationDuration = creationDuration;
+        this.warmUpDuration = warmUpDuration;
+        this.busyTime = busyTime;
+        this.lastBorrowedAt = lastBorrowedAt;
+        this.previousRetirementReason = previousRetirementReason;
+    }
+
+    /**
+     * Returns the id of the instance.
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Returns the number of times the instance has been returned to the
+     * pool since it was created.
+     */
+    public long getBorrowCount() {
+        return borrowCount;
+    }
+
+    /**
+     * Returns the time at which the instance was created.
+     */
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    /**
+     * Returns how long it took to create and initialize the instance.
+     */
+    public long getCreationDuration() {
+        return creationDuration;
+    }
+
+    /**
+     * Returns how long it took to warm up the instance once it had been
+     * initialized, or 0 if it was not warmed up.
+     */
+    public long getWarmUpDuration() {
+        return warmUpDuration;
+    }
+
+    /**
+     * Returns the total time the instance has spent borrowed, counting
+     * only borrows which have been returned.
+     */
+    public long getBusyTime() {
+        return busyTime;
+    }
+
+    /**
+     * Returns the time at which the instance was most recently borrowed,
+     * or -1 if it has not been borrowed.
+     */
+    public long getLastBorrowedAt() {
+        return lastBorrowedAt;
+    }
+
+    /**
+     * Returns why the instance this one replaced was retired, e.g.
+     * "max-borrows" or "pool-flush", or null if it did not replace one.
+     */
+    public String getPreviousRetirementReason() {
+        return previousRetirementReason;
+    }
+}
@@ -1,13 +1,21 @@
 package com.puppetlabs.jruby_utils.pool;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 /**
  * An implementation of LockablePool for managing a pool of JRubyInstances.
@@ -58,19 +66,56 @@ public final class JRubyPool<E> implements LockablePool<E> {
 
     // Condition signaled when the pool has been unlocked.  Awaited when a
     // request has been made to borrow an item or lock the pool but the pool
-    // is currently locked.
+    // is currently locked.  In fair mode, only requests to lock the pool
+    // await this condition.
     private final Condition poolNotLocked = queueLock.newCondition();
 
-    // Holds a reference to all of the elements that have been registered.
-    // Newly registered elements are also added into the `liveQueue`.
-    // Elements only exist in the `liveQueue` when not currently
+    // Whether borrowers are served in the order that they arrived.  When
+    // false, a returned element is put back into the `liveQueue` and one
+    // borrower waiting on `queueNotEmpty` is woken up, but any other thread
+    // which calls `borrowItem` in the meantime may take the element first.
+    // When true, a returned element is handed directly to the borrower
+    // which has been waiting the longest, see `waiters`.
+    private final boolean fair;
+
+    // Borrowers waiting for an element in fair mode, longest waiting first.
+    // Each waiter has its own condition so that exactly one thread is woken
+    // up per element handed off.  Whenever the pool is not locked and this
+    // queue is not empty, the `liveQueue` is empty.
+    private final Deque<Waiter<E>> waiters = new ArrayDeque<>();
+
+    // Holds a reference to all of the elements that have been registered,
+    // each in the slot it was assigned at registration.  A null entry is a
+    // free slot.  Newly registered elements are also added into the
+    // `liveQueue`.  Elements only exist in the `liveQueue` when not currently
     // borrowed whereas elements that have been registered (but not
-    // yet unregistered) will be accessible via `registeredElements`
-    // even while they are borrowed.
-    private final Set<E> registeredElements = new CopyOnWriteArraySet<>();
+    // yet unregistered) will be held in `slots` even while they are borrowed.
+    private final Object[] slots;
+
+    // Maps each registered element to its index in `slots`.  Elements are
+    // compared by identity rather than `equals`, since the elements are
+    // typically Clojure records for which `equals` is a deep comparison of
+    // all of their fields.  This makes the membership check done on every
+    // `releaseItem` a constant time reference comparison.
+    private final Map<E, Integer> slotIndex = new IdentityHashMap<>();
+
+    // Actions queued by `broadcast` for elements which were borrowed at the
+    // time of the broadcast, indexed by the slot of the element.  The actions
+    // are applied by the thread which releases the element, before the
+    // element is put back into the `liveQueue`.
+    private final Object[] pendingActions;
 
-    // Maximum size that the underlying queue can grow to.
-    private int maxSize;
+    // Unmodifiable snapshot of the registered elements, as returned from
+    // `getRegisteredElements`.  Reset to null whenever an element is
+    // registered or unregistered and lazily rebuilt on the next request, so
+    // that repeated calls between registry changes share one snapshot.
+    private volatile Set<E> registeredSnapshot;
+
+    // Maximum size that the underlying queue can grow to.  Only changed with
+    // the `queueLock` held, via `setMaxSize`, but volatile so that
+    // `remainingCapacity` can read it without the lock.  Can never exceed
+    // the length of `slots`, which is fixed at construction.
+    private volatile int maxSize;
 
     // Thread which currently holds the pool lock.  null indicates that
     // there is no current pool lock holder.  Using the current Thread
@@ -94,14 +139,98 @@ public final class JRubyPool<E> implements LockablePool<E> {
     // released item is the poison pill already stored here
     private volatile E pill;
 
+    // Statistics about the pool, only updated with the `queueLock` held but
+    // volatile so that `currentSize`, `remainingCapacity`, `isLocked` and
+    // `getStatistics` can read them without taking the lock.  Status and
+    // metrics requests can be made frequently and would otherwise contend
+    // with borrows for the lock.
+    //
+    // `liveCount` mirrors `liveQueue.size()`, `registeredCount` the number of
+    // registered elements, `waiterCount` the number of borrowers waiting for
+    // an element and `lockedSince` the time at which the pool lock was last
+    // acquired, or -1 if it is not held.
+    private volatile int liveCount = 0;
+    private volatile int registeredCount = 0;
+    private volatile int waiterCount = 0;
+    private volatile long lockedSince = -1;
+
     /**
      * Create a JRubyPool
      *
      * @param size maximum capacity for the pool.
      */
     public JRubyPool(int size) {
+        this(size, false);
+    }
+
+    /**
+     * Create a JRubyPool
+     *
+     * @param size maximum capacity for the pool.
+     * @param fair if true, elements are handed to waiting borrowers in the
+     *             order that they started waiting, rather than to whichever
+     *             thread happens to ask first.
+     */
+    public JRubyPool(int size, boolean fair) {
+        this(size, size, fair);
+    }
+
+    /**
+     * Create a JRubyPool whose size can later be changed, up to
+     * <tt>capacity</tt>, with {@link #setMaxSize(int)}.
+     *
+     * @param capacity the largest size that the pool can ever have.
+     * @param size     initial maximum capacity for the pool.
+     * @param fair     as for {@link #JRubyPool(int, boolean)}.
+     */
+    public JRubyPool(int capacity, int size, boolean fair) {
+        if (size > capacity) {
+            throw new IllegalArgumentException(
+                    "Pool size " + size + " exceeds its capacity " + capacity);
+        }
         liveQueue = new LinkedList<>();
         maxSize = size;
+        slots = new Object[capacity];
+        pendingActions = new Object[capacity];
+        this.fair = fair;
+    }
+
+    /**
+     * Changes the maximum number of elements which can be registered with
+     * the pool.  To grow the pool, call this before registering the new
+     * elements; to shrink it, borrow and unregister the surplus elements
+     * first, since the size can never be less than the number of elements
+     * currently registered.
+     *
+     * @param size the new maximum size of the pool, no greater than the
+     *             capacity it was created with.
+     * @throws IllegalArgumentException if <tt>size</tt> exceeds the capacity
+     *         of the pool or is less than the number of registered elements.
+     */
+    public void setMaxSize(int size) {
+        final ReentrantLock lock = this.queueLock;
+        lock.lock();
+        try {
+            if (size > slots.length || size < slotIndex.size()) {
+                throw new IllegalArgumentException(
+                        "Pool size must be between " + slotIndex.size() +
+                        " and " + slots.length + ", not " + size);
+            }
+            maxSize = size;
+            // A lock() call waiting for the pool to fill up may be able to
+            // proceed now that the pool has shrunk
+            signalIfLockCanProceed();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the largest size that the pool can be given with
+     * {@link #setMaxSize(int)}.
+     */
+    public int getCapacity() {
+        return slots.length;
     }
 
     @Override
@@ -109,12 +238,17 @@ public final class JRubyPool<E> implements LockablePool<E> {
         final ReentrantLock lock = this.queueLock;
         lock.lock();
         try {
-            if (registeredElements.size() == maxSize)
-                throw new IllegalStateException(
-                        "Unable to register additional instance, pool full");
-            registeredElements.add(e);
-            liveQueue.addLast(e);
-            signalPoolNotEmpty();
+            if (!isRegistered(e)) {
+                if (slotIndex.size() == maxSize)
+                    throw new IllegalStateException(
+                            "Unable to register additional instance, pool full");
+                addToRegistry(e);
+            }
+            if (!handOff(e)) {
+                liveQueue.addLast(e);
+                liveCount = liveQueue.size();
+                signalPoolNotEmpty();
+            }
         } finally {
             lock.unlock();
         }
@@ -125,7 +259,7 @@ public final class JRubyPool<E> implements LockablePool<E> {
         final ReentrantLock lock = this.queueLock;
         lock.lock();
         try {
-            registeredElements.remove(e);
+            removeFromRegistry(e);
             signalIfLockCanProceed();
         } finally {
             lock.unlock();
@@ -135,23 +269,32 @@ public final class JRubyPool<E> implements LockablePool<E> {
     @Override
     public E borrowItem() throws InterruptedException {
         E item = null;
+        boolean waiting = false;
         final ReentrantLock lock = this.queueLock;
         lock.lock();
         try {
             final Thread currentThread = Thread.currentThread();
+            if (fair) {
+                return fairBorrow(currentThread, false, 0);
+            }
             do {
                 if (this.pill != null) {
                     // Return the pill immediately if there is one
                     item = pill;
                 } else if (isPoolLockHeldByAnotherThread(currentThread)) {
+                    waiting = startWaiting(waiting);
                     poolNotLocked.await();
                 } else if (liveQueue.size() < 1) {
+                    waiting = startWaiting(waiting);
                     queueNotEmpty.await();
                 } else {
-                    item = liveQueue.removeFirst();
+                    item = removeFirst();
                 }
             } while (item == null);
         } finally {
+            if (waiting) {
+                waiterCount--;
+            }
             lock.unlock();
         }
 
@@ -162,6 +305,7 @@ public final class JRubyPool<E> implements LockablePool<E> {
     public E borrowItemWithTimeout(long timeout, TimeUnit unit) throws
             InterruptedException {
         E item = null;
+        boolean waiting = false;
         final ReentrantLock lock = this.queueLock;
         long remainingMaxTimeToWait = unit.toNanos(timeout);
 
@@ -172,6 +316,9 @@ public final class JRubyPool<E> implements LockablePool<E> {
         lock.lockInterruptibly();
         try {
             final Thread currentThread = Thread.currentThread();
+            if (fair) {
+                return fairBorrow(currentThread, true, remainingMaxTimeToWait);
+            }
             // This pattern of using timed `awaitNanos` on a condition
             // variable to track the total time spent waiting for an item to
             // be available to be borrowed follows the logic that the JDK's
@@ -185,25 +332,95 @@ public final class JRubyPool<E> implements LockablePool<E> {
                     if (remainingMaxTimeToWait <= 0) {
                         break;
                     }
+                    waiting = startWaiting(waiting);
                     remainingMaxTimeToWait =
                             poolNotLocked.awaitNanos(remainingMaxTimeToWait);
                 } else if (liveQueue.size() < 1) {
                     if (remainingMaxTimeToWait <= 0) {
                         break;
                     }
+                    waiting = startWaiting(waiting);
                     remainingMaxTimeToWait =
                             queueNotEmpty.awaitNanos(remainingMaxTimeToWait);
                 } else {
-                    item = liveQueue.removeFirst();
+                    item = removeFirst();
                 }
             } while (item == null);
         } finally {
+            if (waiting) {
+                waiterCount--;
+            }
             lock.unlock();
         }
 
         return item;
     }
 
+    @Override
+    public List<E> borrowItems(int count) throws InterruptedException {
+        final List<E> items = new ArrayList<>(count);
+        boolean waiting = false;
+        final ReentrantLock lock = this.queueLock;
+        lock.lock();
+        try {
+            final Thread currentThread = Thread.currentThread();
+            while (items.size() < count) {
+                if (this.pill != null) {
+                    items.add(pill);
+                    break;
+                } else if (canTakeFromLiveQueue(currentThread)) {
+                    // Take everything that is available in one go
+                    while (!liveQueue.isEmpty() && items.size() < count) {
+                        items.add(removeFirst());
+                    }
+                } else if (fair) {
+                    // Wait in line with the other borrowers for the next one
+                    items.add(fairBorrow(currentThread, false, 0));
+                    if (items.get(items.size() - 1) == this.pill) {
+                        break;
+                    }
+                } else if (isPoolLockHeldByAnotherThread(currentThread)) {
+                    waiting = startWaiting(waiting);
+                    poolNotLocked.await();
+                } else {
+                    waiting = startWaiting(waiting);
+                    queueNotEmpty.await();
+                }
+            }
+        } catch (InterruptedException e) {
+            for (E item : items) {
+                if (item != this.pill) {
+                    addFirst(item);
+                }
+            }
+            throw e;
+        } finally {
+            if (waiting) {
+                waiterCount--;
+            }
+            lock.unlock();
+        }
+
+        return items;
+    }
+
+    /**
+     * Whether the calling thread may take an element straight from the
+     * `liveQueue`, rather than having to wait for one.  Must be called with
+     * the `queueLock` held.
+     */
+    private boolean canTakeFromLiveQueue(Thread currentThread) {
+        if (liveQueue.isEmpty()) {
+            return false;
+        }
+        if (isPoolLockHeldByCurrentThread(currentThread)) {
+            return true;
+        }
+        // In fair mode, elements are only left in the `liveQueue` with
+        // borrowers waiting while the pool is locked.
+        return !isPoolLockHeld() && (!fair || waiters.isEmpty());
+    }
+
     /**
      * Release an item and return it to the pool. Does nothing if the item
      * being released is the pill.
@@ -213,6 +430,7 @@ public final class JRubyPool<E> implements LockablePool<E> {
      */
     @Override
     public void releaseItem(E e) {
+        Deque<BroadcastAction<E>> actions = null;
         final ReentrantLock lock = this.queueLock;
         lock.lock();
         try {
@@ -222,15 +440,43 @@ public final class JRubyPool<E> implements LockablePool<E> {
                     throw new IllegalArgumentException(errorMsg);
                 }
 
-                addFirst(e);
+                actions = takePendingActions(slotIndex.get(e));
+                if (actions == null) {
+                    addFirst(e);
+                }
             }
         } finally {
             lock.unlock();
         }
+
+        if (actions != null) {
+            applyBroadcastActionsAndReturn(e, actions);
+        }
     }
 
     private boolean isRegistered(E e) {
-        return this.registeredElements.contains(e);
+        return this.slotIndex.containsKey(e);
+    }
+
+    private void addToRegistry(E e) {
+        int slot = 0;
+        while (slots[slot] != null) {
+            slot++;
+        }
+        slots[slot] = e;
+        slotIndex.put(e, slot);
+        registeredCount = slotIndex.size();
+        registeredSnapshot = null;
+    }
+
+    private void removeFromRegistry(E e) {
+        Integer slot = slotIndex.remove(e);
+        if (slot != null) {
+            slots[slot] = null;
+            registeredCount = slotIndex.size();
+            skipBroadcastActions(takePendingActions(slot));
+            registeredSnapshot = null;
+        }
     }
 
     /**
@@ -246,6 +492,10 @@ public final class JRubyPool<E> implements LockablePool<E> {
             if (this.pill == null) {
                 this.pill = e;
                 signalPoolNotEmpty();
+                // Every waiter gets the pill, so all of them are woken up.
+                for (Waiter<E> waiter : waiters) {
+                    waiter.ready.signal();
+                }
             }
         } finally {
             lock.unlock();
@@ -253,30 +503,34 @@ public final class JRubyPool<E> implements LockablePool<E> {
     }
 
     @Override
-    public void clear() {
+    public List<E> clear() {
         final ReentrantLock lock = this.queueLock;
         lock.lock();
         try {
             // It would be simpler to just call .clear() on both the liveQueue
-            // and registeredElements here.  It is possible, however, that this
+            // and the registry here.  It is possible, however, that this
             // method might be called while one or more elements are being
             // borrowed from the liveQueue.  If the associated element from
-            // registeredElements were removed, it would then be possible for
+            // the registry were removed, it would then be possible for
             // the borrowed elements to be returned to the pool, making them
-            // appear in liveQueue but not in registeredElements.  This would
+            // appear in liveQueue but not in the registry.  This would
             // be bad because any subsequent actions that need to be done to
             // all members of the pool - for example, marking environments in
             // the pool instance as expired - might inadvertently skip over
-            // any of the elements that are no longer in registeredElements
-            // but can appear in liveQueue.
+            // any of the elements that are no longer in the registry but can
+            // appear in liveQueue.
             //
             // To avoid this problem, the implementation only removes elements
-            // from registeredElements which have a corresponding entry which
-            // is being removed from the liveQueue.
+            // from the registry which have a corresponding entry which is
+            // being removed from the liveQueue.
             int queueSize = liveQueue.size();
+            List<E> cleared = new ArrayList<>(queueSize);
             for (int i=0; i<queueSize; i++) {
-                registeredElements.remove(liveQueue.removeFirst());
+                E element = removeFirst();
+                removeFromRegistry(element);
+                cleared.add(element);
             }
+            return cleared;
         } finally {
             lock.unlock();
         }
@@ -284,28 +538,25 @@ public final class JRubyPool<E> implements LockablePool<E> {
 
     @Override
     public int remainingCapacity() {
-        int remainingCapacity;
-        final ReentrantLock lock = this.queueLock;
-        lock.lock();
-        try {
-            remainingCapacity = maxSize - liveQueue.size();
-        } finally {
-            lock.unlock();
-        }
-        return remainingCapacity;
+        return maxSize - liveCount;
     }
 
     @Override
     public int currentSize() {
-        int size;
-        final ReentrantLock lock = this.queueLock;
-        lock.lock();
-        try {
-            size = liveQueue.size();
-        } finally {
-            lock.unlock();
-        }
-        return size;
+        return liveCount;
+    }
+
+    @Override
+    public PoolStatistics getStatistics() {
+        final int live = liveCount;
+        final int registered = registeredCount;
+        final long since = lockedSince;
+        return new PoolStatistics(live,
+                                  Math.max(0, registered - live),
+                                  registered,
+                                  waiterCount,
+                                  since != -1,
+                                  since);
     }
 
     /**
@@ -326,7 +577,7 @@ public final class JRubyPool<E> implements LockablePool<E> {
                     throw new InterruptedException(pillErrorMsg);
                 }
                 if (!isPoolLockHeld()) {
-                    poolLockThread = currentThread;
+                    acquirePoolLock(currentThread);
                 } else {
                     poolNotLocked.await();
                 }
@@ -369,7 +620,7 @@ public final class JRubyPool<E> implements LockablePool<E> {
                 }
 
                 if (!isPoolLockHeld()) {
-                    poolLockThread = currentThread;
+                    acquirePoolLock(currentThread);
                 } else {
                     if (remainingMaxTimeToWait <= 0) {
                         throw new TimeoutException(timeoutErrorMsg);
@@ -401,15 +652,7 @@ public final class JRubyPool<E> implements LockablePool<E> {
 
     @Override
     public boolean isLocked() {
-        boolean locked;
-        final ReentrantLock lock = this.queueLock;
-        lock.lock();
-        try {
-            locked = isPoolLockHeld();
-        } finally {
-            lock.unlock();
-        }
-        return locked;
+        return isPoolLockHeld();
     }
 
     @Override
@@ -439,17 +682,302 @@ public final class JRubyPool<E> implements LockablePool<E> {
         }
     }
 
+    /**
+     * Returns an unmodifiable snapshot of the registered elements, in slot
+     * order.  Membership in the returned set is determined by identity.  The
+     * snapshot is not updated by later registrations or unregistrations;
+     * call this method again to observe those.
+     */
     public Set<E> getRegisteredElements() {
-        return registeredElements;
+        Set<E> snapshot = registeredSnapshot;
+        if (snapshot == null) {
+            final ReentrantLock lock = this.queueLock;
+            lock.lock();
+            try {
+                snapshot = registeredSnapshot;
+                if (snapshot == null) {
+                    Set<E> elements = Collections.newSetFromMap(
+                            new IdentityHashMap<>(slotIndex.size()));
+                    for (Object slot : slots) {
+                        if (slot != null) {
+                            elements.add(elementAt(slot));
+                        }
+                    }
+                    snapshot = Collections.unmodifiableSet(elements);
+                    registeredSnapshot = snapshot;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Apply an action to every registered element.  Idle elements are taken
+     * out of the `liveQueue` while the action is applied to them on the
+     * calling thread; the action is queued for borrowed elements and applied
+     * when they are released.  Neither path takes the pool lock, so borrows
+     * of other elements may proceed throughout.  Idle elements are not taken
+     * out of the `liveQueue` while another thread holds the pool lock, which
+     * is waited for as in `borrowItem`.
+     */
+    @Override
+    public CompletableFuture<Void> broadcast(Consumer<? super E> action)
+            throws InterruptedException {
+        final List<CompletableFuture<Void>> results = new ArrayList<>();
+        final List<E> idleElements = new ArrayList<>();
+        final List<BroadcastAction<E>> idleActions = new ArrayList<>();
+        final ReentrantLock lock = this.queueLock;
+        lock.lock();
+        try {
+            final Thread currentThread = Thread.currentThread();
+            while (isPoolLockHeldByAnotherThread(currentThread)) {
+                poolNotLocked.await();
+            }
+            for (int slot = 0; slot < slots.length; slot++) {
+                if (slots[slot] == null) {
+                    continue;
+                }
+                E e = elementAt(slots[slot]);
+                BroadcastAction<E> broadcastAction = new BroadcastAction<>(action);
+                results.add(broadcastAction.result);
+                if (removeFromLiveQueue(e)) {
+                    idleElements.add(e);
+                    idleActions.add(broadcastAction);
+                } else {
+                    Deque<BroadcastAction<E>> actions = pendingActionsAt(slot);
+                    if (actions == null) {
+                        actions = new ArrayDeque<>();
+                        pendingActions[slot] = actions;
+                    }
+                    actions.addLast(broadcastAction);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        for (int i = 0; i < idleElements.size(); i++) {
+            Deque<BroadcastAction<E>> actions = new ArrayDeque<>();
+            actions.add(idleActions.get(i));
+            applyBroadcastActionsAndReturn(idleElements.get(i), actions);
+        }
+
+        return CompletableFuture.allOf(
+                results.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /**
+     * Applies the broadcast actions to an element which is held out of the
+     * `liveQueue` by the calling thread and then puts the element back,
+     * first applying any further actions which were queued for it in the
+     * meantime.  Must be called without holding the `queueLock`, since the
+     * actions may run for an arbitrarily long time.
+     */
+    private void applyBroadcastActionsAndReturn(E e,
+                                                Deque<BroadcastAction<E>> actions) {
+        final ReentrantLock lock = this.queueLock;
+        while (actions != null) {
+            for (BroadcastAction<E> action : actions) {
+                action.apply(e);
+            }
+            lock.lock();
+            try {
+                Integer slot = slotIndex.get(e);
+                if (slot == null) {
+                    // Unregistered while the actions were being applied, so
+                    // the element must not go back into the `liveQueue`.
+                    break;
+                }
+                actions = takePendingActions(slot);
+                if (actions == null) {
+                    addFirst(e);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private Deque<BroadcastAction<E>> takePendingActions(int slot) {
+        Deque<BroadcastAction<E>> actions = pendingActionsAt(slot);
+        pendingActions[slot] = null;
+        return actions;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Deque<BroadcastAction<E>> pendingActionsAt(int slot) {
+        return (Deque<BroadcastAction<E>>) pendingActions[slot];
+    }
+
+    @SuppressWarnings("unchecked")
+    private E elementAt(Object slot) {
+        return (E) slot;
+    }
+
+    private void skipBroadcastActions(Deque<BroadcastAction<E>> actions) {
+        // The element is no longer part of the pool, so there is nothing
+        // left for these actions to do.
+        if (actions != null) {
+            for (BroadcastAction<E> action : actions) {
+                action.result.complete(null);
+            }
+        }
+    }
+
+    /**
+     * Removes the element from the `liveQueue` if it is there.  Compares by
+     * identity rather than `equals`, which may be expensive for elements
+     * like Clojure records.
+     */
+    private boolean removeFromLiveQueue(E e) {
+        Iterator<E> iterator = liveQueue.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next() == e) {
+                iterator.remove();
+                liveCount = liveQueue.size();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Borrows an element in fair mode.  Must be called with the `queueLock`
+     * held.  An element is only taken from the `liveQueue` directly if no
+     * other borrower is waiting for one, or by the thread holding the pool
+     * lock; otherwise the calling thread joins the end of the `waiters`
+     * queue until an element is handed to it.
+     *
+     * @return the borrowed element, the pill, or null if `timed` is true and
+     *         the timeout expired before an element was handed off
+     */
+    private E fairBorrow(Thread currentThread, boolean timed, long nanos)
+            throws InterruptedException {
+        if (this.pill != null) {
+            return pill;
+        }
+        if (!liveQueue.isEmpty() &&
+                (isPoolLockHeldByCurrentThread(currentThread) ||
+                        (!isPoolLockHeld() && waiters.isEmpty()))) {
+            return removeFirst();
+        }
+        if (timed && nanos <= 0) {
+            return null;
+        }
+
+        Waiter<E> waiter = new Waiter<>(currentThread, queueLock.newCondition());
+        waiters.addLast(waiter);
+        waiterCount = waiters.size();
+        try {
+            while (waiter.item == null && this.pill == null) {
+                if (!timed) {
+                    waiter.ready.await();
+                } else if (nanos > 0) {
+                    nanos = waiter.ready.awaitNanos(nanos);
+                } else {
+                    break;
+                }
+            }
+        } catch (InterruptedException ie) {
+            waiters.remove(waiter);
+            waiterCount = waiters.size();
+            if (waiter.item != null) {
+                // An element was handed off just before the interrupt was
+                // noticed.  Pass it on rather than leak it.
+                addFirst(waiter.item);
+            }
+            throw ie;
+        }
+        waiters.remove(waiter);
+        waiterCount = waiters.size();
+        if (waiter.item != null) {
+            return waiter.item;
+        }
+        return this.pill;
+    }
+
+    /**
+     * In fair mode, hands an element which has just become available
+     * directly to the longest waiting borrower that may take it.  Must be
+     * called with the `queueLock` held.
+     *
+     * @return true if the element was handed off, false if the caller should
+     *         put it into the `liveQueue`
+     */
+    private boolean handOff(E e) {
+        if (!fair || this.pill != null || waiters.isEmpty()) {
+            return false;
+        }
+        Waiter<E> waiter = null;
+        if (isPoolLockHeld()) {
+            // While the pool is locked, only the lock holder may borrow;
+            // everything else is left in the `liveQueue` so that the lock
+            // can be granted once the pool is full.
+            for (Waiter<E> candidate : waiters) {
+                if (candidate.thread == poolLockThread) {
+                    waiter = candidate;
+                    break;
+                }
+            }
+        } else {
+            waiter = waiters.peekFirst();
+        }
+        if (waiter == null) {
+            return false;
+        }
+        waiters.remove(waiter);
+        waiterCount = waiters.size();
+        waiter.item = e;
+        waiter.ready.signal();
+        return true;
     }
 
     private void addFirst(E e) {
-        liveQueue.addFirst(e);
-        signalPoolNotEmpty();
+        if (!handOff(e)) {
+            liveQueue.addFirst(e);
+            liveCount = liveQueue.size();
+            signalPoolNotEmpty();
+        }
+    }
+
+    private E removeFirst() {
+        E e = liveQueue.removeFirst();
+        liveCount = liveQueue.size();
+        return e;
+    }
+
+    /**
+     * Counts the calling borrower as waiting, unless it already has been.
+     * Must be called with the `queueLock` held.
+     */
+    private boolean startWaiting(boolean waiting) {
+        if (!waiting) {
+            waiterCount++;
+        }
+        return true;
+    }
+
+    private void acquirePoolLock(Thread currentThread) {
+        poolLockThread = currentThread;
+        lockedSince = System.currentTimeMillis();
     }
 
     private void freePoolLock() {
         poolLockThread = null;
+        lockedSince = -1;
+        if (fair) {
+            // Borrowers don't wait on 'poolNotLocked' in fair mode, so only
+            // threads trying to lock the pool need to be woken up.  Each of
+            // the elements that were returned while the pool was locked is
+            // handed to one waiting borrower, in arrival order.
+            poolNotLocked.signalAll();
+            while (!liveQueue.isEmpty() && !waiters.isEmpty()) {
+                handOff(removeFirst());
+            }
+            return;
+        }
         // Need to use 'signalAll' here because there might be multiple
         // waiters (e.g., multiple borrowers) queued up, waiting for the
         // pool to be unlocked.
@@ -508,4 +1036,41 @@ public final class JRubyPool<E> implements LockablePool<E> {
     private boolean isPoolLockHeldByAnotherThread(Thread currentThread) {
         return (poolLockThread != null) && (poolLockThread != currentThread);
     }
+
+    /**
+     * A borrower waiting for an element in fair mode.  `item` is set, with
+     * the `queueLock` held, when an element is handed off to the waiter.
+     */
+    private static final class Waiter<E> {
+        private final Thread thread;
+        private final Condition ready;
+        private E item;
+
+        private Waiter(Thread thread, Condition ready) {
+            this.thread = thread;
+            this.ready = ready;
+        }
+    }
+
+    /**
+     * An action queued by `broadcast` for a single element, along with the
+     * future through which its completion is reported.
+     */
+    private static final class BroadcastAction<E> {
+        private final Consumer<? super E> action;
+        private final CompletableFuture<Void> result = new CompletableFuture<>();
+
+        private BroadcastAction(Consumer<? super E> action) {
+            this.action = action;
+        }
+
+        private void apply(E e) {
+            try {
+                action.accept(e);
+                result.complete(null);
+            } catch (Throwable t) {
+                result.completeExceptionally(t);
+            }
+        }
+    }
 }
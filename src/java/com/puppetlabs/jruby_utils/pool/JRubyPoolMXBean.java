@@ -0,0 +1,20 @@
+package com.puppetlabs.jruby_utils.pool;
+
+import java.util.List;
+
+/**
+ * The management interface through which a JRuby pool publishes the
+ * statistics of its instances over JMX.
+ */
+public interface JRubyPoolMXBean {
+    /**
+     * Returns the statistics of every instance currently registered with
+     * the pool.
+     */
+    List<InstanceStatistics> getInstanceStatistics();
+
+    /**
+     * Returns a snapshot of the state of the pool itself.
+     */
+    PoolStatistics getPoolStatistics();
+}
@@ -0,0 +1,37 @@
+package com.puppetlabs.jruby_utils.pool;
+
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * A {@link JRubyPoolMXBean} which gathers the statistics it publishes on
+ * demand, each time an attribute is read, so that keeping it registered
+ * costs nothing while no one is looking.
+ */
+public final class JRubyPoolMonitor implements JRubyPoolMXBean {
+    private final LockablePool<?> pool;
+    private final Supplier<List<InstanceStatistics>> instanceStatistics;
+
+    /**
+     * Create a JRubyPoolMonitor
+     *
+     * @param pool               the pool to report the state of
+     * @param instanceStatistics called to gather the statistics of the
+     *                           instances registered with the pool
+     */
+    public JRubyPoolMonitor(LockablePool<?> pool,
+                            Supplier<List<InstanceStatistics>> instanceStatistics) {
+        this.pool = pool;
+        this.instanceStatistics = instanceStatistics;
+    }
+
+    @Override
+    public List<InstanceStatistics> getInstanceStatistics() {
+        return instanceStatistics.get();
+    }
+
+    @Override
+    public PoolStatistics getPoolStatistics() {
+        return pool.getStatistics();
+    }
+}
@@ -1,8 +1,11 @@
 package com.puppetlabs.jruby_utils.pool;
 
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
 
 public interface LockablePool<E> {
 
@@ -84,6 +87,27 @@ public interface LockablePool<E> {
     E borrowItemWithTimeout(long timeout, TimeUnit unit)
             throws InterruptedException;
 
+    /**
+     * Borrow <tt>count</tt> elements from the pool at once.  All of the
+     * elements which can be borrowed right away, up to <tt>count</tt>, are
+     * taken in a single step; the call then blocks, as for
+     * {@link #borrowItem()}, only for as many more as are still needed.
+     *
+     * If a pill has been inserted into the pool, it is added as the last
+     * element of the returned list and no further elements are borrowed, so
+     * the list may hold fewer than <tt>count</tt> elements.  The elements
+     * borrowed before the pill was found remain borrowed.
+     *
+     * @param count the number of elements to borrow
+     * @return the borrowed elements, possibly followed by the pill
+     * @throws InterruptedException if the calling thread is interrupted
+     *                              while waiting; any elements which were
+     *                              already borrowed are first released back
+     *                              into the pool
+     * @see #borrowItem()
+     */
+    List<E> borrowItems(int count) throws InterruptedException;
+
    /**
     * Release an item back into the pool.
     *
@@ -106,8 +130,11 @@ public interface LockablePool<E> {
      * {@link #getRegisteredElements()} calls.  Note that any elements that
      * have been borrowed but not yet returned to the pool at the time this
      * method is called will remain registered.
+     *
+     * @return the elements which were unregistered, so that the caller can
+     *         dispose of them
      */
-    void clear() throws InterruptedException;
+    List<E> clear() throws InterruptedException;
 
     /**
      * Returns the number of elements that can be added into the pool.  Equal
@@ -122,6 +149,14 @@ public interface LockablePool<E> {
      */
     int currentSize();
 
+    /**
+     * Returns a snapshot of the counts of free, borrowed and registered
+     * elements, the number of waiting borrowers and the state of the pool
+     * lock.  Never blocks, so it is safe to call as often as needed for
+     * status reporting without holding up borrows from the pool.
+     */
+    PoolStatistics getStatistics();
+
    /**
     * Lock the pool. This method should make the following guarantees:
     *
@@ -180,4 +215,30 @@ public interface LockablePool<E> {
     * borrowed and elements that have already been borrowed.
     */
     Set<E> getRegisteredElements();
+
+    /**
+     * Apply an action once to every element which is currently registered
+     * with the pool, without locking the pool.  Elements which are not
+     * borrowed at the time this method is called have the action applied
+     * immediately, on the calling thread, while they are held out of the
+     * pool.  Elements which are borrowed have the action queued; it is
+     * applied by the thread which releases the element, before the element
+     * can be borrowed again.
+     *
+     * Borrows of other elements may proceed while the action is being
+     * applied.  If an element is unregistered before a queued action has
+     * been applied to it, the action is skipped for that element.
+     *
+     * Like a borrow, a broadcast from any thread other than the one holding
+     * the pool lock blocks until the pool is unlocked.
+     *
+     * @param action the action to apply to each element
+     * @return a future which completes once the action has been applied to
+     *         every element, or completes exceptionally if the action threw
+     *         for any of them
+     * @throws InterruptedException if interrupted while waiting for the pool
+     *         to be unlocked
+     */
+    CompletableFuture<Void> broadcast(Consumer<? super E> action)
+            throws InterruptedException;
 }
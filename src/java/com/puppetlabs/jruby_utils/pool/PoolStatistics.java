@@ -0,0 +1,80 @@
+package com.puppetlabs.jruby_utils.pool;
+
+/**
+ * A point-in-time snapshot of the state of a LockablePool, as returned from
+ * {@link LockablePool#getStatistics()}.
+ *
+ * The values are read without locking the pool, so they are not guaranteed
+ * to be consistent with one another, e.g., an element which is returned to
+ * the pool while the snapshot is being taken may be counted as both free and
+ * borrowed.  They are intended for status reporting and metrics rather than
+ * for making decisions about the pool.
+ */
+public final class PoolStatistics {
+    private final int freeCount;
+    private final int borrowedCount;
+    private final int registeredCount;
+    private final int waiterCount;
+    private final boolean locked;
+    private final long lockedSince;
+
+    public PoolStatistics(int freeCount,
+                          int borrowedCount,
+                          int registeredCount,
+                          int waiterCount,
+                          boolean locked,
+                          long lockedSince) {
+        this.freeCount = freeCount;
+        this.borrowedCount = borrowedCount;
+        this.registeredCount = registeredCount;
+        this.waiterCount = waiterCount;
+        this.locked = locked;
+        this.lockedSince = lockedSince;
+    }
+
+    /**
+     * Returns the number of borrows that could be satisfied right away, as
+     * per {@link LockablePool#currentSize()}.
+     */
+    public int getFreeCount() {
+        return freeCount;
+    }
+
+    /**
+     * Returns the number of borrows which have not yet been released.
+     */
+    public int getBorrowedCount() {
+        return borrowedCount;
+    }
+
+    /**
+     * Returns the number of elements registered with the pool.
+     */
+    public int getRegisteredCount() {
+        return registeredCount;
+    }
+
+    /**
+     * Returns the number of threads waiting to borrow from the pool.
+     */
+    public int getWaiterCount() {
+        return waiterCount;
+    }
+
+    /**
+     * Returns whether the pool lock was held, or was being waited for by the
+     * thread which will next hold it.
+     */
+    public boolean isLocked() {
+        return locked;
+    }
+
+    /**
+     * Returns the time, in milliseconds since the epoch, at which the
+     * current holder of the pool lock acquired it, or -1 if the pool was not
+     * locked.
+     */
+    public long getLockedSince() {
+        return lockedSince;
+    }
+}
@@ -1,12 +1,17 @@
 package com.puppetlabs.jruby_utils.pool;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -37,10 +42,48 @@ public final class ReferencePool<E> implements LockablePool<E> {
     // unavailable.
     //
     // See http://hg.openjdk.java.net/jdk8/jdk8/jdk/file/687fd7c7986d/src/share/classes/java/util/concurrent/LinkedBlockingDeque.java#l157
-
-    // Lock which guards all accesses to the underlying instance.
-    // Constructed as "nonfair" for performance, like the lock that a
-    // `LinkedBlockingDeque` does.  Not clear that we need this
+    //
+    // Unlike `LinkedBlockingDeque`, borrowing or releasing a reference does
+    // not normally take the lock.  The borrow count and the states which
+    // prevent borrows are packed into a single atomic `state` word, so the
+    // common case is a single compare-and-set on that word.  The lock is only
+    // taken by threads which have to wait - or which have to wake up waiting
+    // threads - and for transitions of the pool lock, pill and registration
+    // states.
+
+    // Bits of `state` holding the number of references currently borrowed.
+    private static final int COUNT_MASK = (1 << 28) - 1;
+
+    // Set in `state` while the pool lock is held by some thread.
+    private static final int LOCKED = 1 << 28;
+
+    // Set in `state` once a pill has been inserted.
+    private static final int PILL = 1 << 29;
+
+    // Set in `state` while `unregister` waits for outstanding borrows to be
+    // returned.  No new borrows are permitted in the meantime.
+    private static final int UNREGISTERING = 1 << 30;
+
+    // Set in `state` while no instance is registered.
+    private static final int EMPTY = 1 << 31;
+
+    // Any of the states in which a borrow can't be satisfied without
+    // further checks under the lock.
+    private static final int BORROW_BLOCKED = LOCKED | PILL | UNREGISTERING | EMPTY;
+
+    // Borrow count and state flags, see above.  The flags are only changed
+    // while holding the `borrowLock`; the count is changed with
+    // compare-and-set by borrowers and releasers, with or without the lock.
+    private final AtomicInteger state = new AtomicInteger(EMPTY);
+
+    // Number of borrowers waiting, with the `borrowLock` held or released by
+    // a condition await, for a reference to become available.  A releaser
+    // only needs to take the lock to wake them up if this is non-zero.
+    private final AtomicInteger waiters = new AtomicInteger(0);
+
+    // Lock which guards transitions of the `state` flags and which waiting
+    // threads park on.  Constructed as "nonfair" for performance, like the
+    // lock that a `LinkedBlockingDeque` does.  Not clear that we need this
     // to be a "fair" lock.
     private final ReentrantLock borrowLock = new ReentrantLock(false);
 
@@ -69,11 +112,7 @@ public final class ReferencePool<E> implements LockablePool<E> {
     private volatile E instance;
 
     // How many times the JRuby instance can be borrowed at once
-    private int maxBorrowCount;
-
-    // Current number of references to the pool held out in the world.
-    // Updates to this need to be visible to all threads.
-    private volatile AtomicInteger currentBorrowCount;
+    private final int maxBorrowCount;
 
     // Thread which currently holds the pool lock.  null indicates that
     // there is no current pool lock holder.  Using the current Thread
@@ -97,15 +136,22 @@ public final class ReferencePool<E> implements LockablePool<E> {
     // released item is the poison pill already stored here
     private volatile E pill;
 
+    // Time at which the pool lock was last acquired, or -1 if it is not
+    // held.  Only updated with the `borrowLock` held.
+    private volatile long lockedSince = -1;
+
     /**
      * Create a "pool" of handles to a Jruby instance.
      *
      * @param maxBorrows the max number of instance refs that can be handed out
      */
     public ReferencePool(int maxBorrows) {
+        if (maxBorrows > COUNT_MASK) {
+            throw new IllegalArgumentException(
+                    "Max borrows may not exceed " + COUNT_MASK);
+        }
         this.instance = null;
         this.maxBorrowCount = maxBorrows;
-        this.currentBorrowCount = new AtomicInteger(0);
     }
 
     @Override
@@ -118,10 +164,15 @@ public final class ReferencePool<E> implements LockablePool<E> {
                         "Unable to register additional instance, pool full");
             }
 
+            // The instance must be visible before the EMPTY flag is cleared,
+            // since borrowers read it after a successful compare-and-set.
             this.instance = e;
-            currentBorrowCount.set(0);
+            state.updateAndGet(s -> s & ~(EMPTY | COUNT_MASK));
 
-            signalPoolNotEmpty();
+            // All of the waiting borrowers can now proceed, up to the max
+            // borrow count.
+            borrowsAvailable.signalAll();
+            signalIfLockCanProceed();
         } finally {
             lock.unlock();
         }
@@ -141,10 +192,18 @@ public final class ReferencePool<E> implements LockablePool<E> {
         final ReentrantLock lock = this.borrowLock;
         lock.lock();
         try {
-            if (currentBorrowCount.get() != 0) {
-                instanceNotBorrowed.await();
+            setFlags(UNREGISTERING);
+            try {
+                while (borrowCount(state.get()) != 0) {
+                    instanceNotBorrowed.await();
+                }
+            } catch (InterruptedException ie) {
+                clearFlags(UNREGISTERING);
+                borrowsAvailable.signalAll();
+                throw ie;
             }
             instance = null;
+            state.updateAndGet(s -> (s & ~UNREGISTERING) | EMPTY);
 
             signalIfLockCanProceed();
         } finally {
@@ -154,29 +213,35 @@ public final class ReferencePool<E> implements LockablePool<E> {
 
     @Override
     public E borrowItem() throws InterruptedException {
-        E item = null;
+        E item = tryBorrowWithoutLock();
+        if (item != null) {
+            return item;
+        }
+
         final ReentrantLock lock = this.borrowLock;
         lock.lock();
+        waiters.incrementAndGet();
         try {
             final Thread currentThread = Thread.currentThread();
             do {
-                if (this.pill != null) {
+                final int s = state.get();
+                if ((s & PILL) != 0) {
                     // Return the pill immediately if there is one
                     item = pill;
                 } else if (isPoolLockHeldByAnotherThread(currentThread)) {
                     poolNotLocked.await();
-                } else if (instance == null) {
-                    // No instance initialized yet
+                } else if ((s & (EMPTY | UNREGISTERING)) != 0) {
+                    // No instance initialized yet, or it is going away
                     borrowsAvailable.await();
-                } else if (this.currentBorrowCount.get() >= this.maxBorrowCount) {
+                } else if (borrowCount(s) >= this.maxBorrowCount) {
                     // Max borrow count reached, wait for one to be returned
                     borrowsAvailable.await();
-                } else {
+                } else if (state.compareAndSet(s, s + 1)) {
                     item = this.instance;
-                    this.currentBorrowCount.getAndIncrement();
                 }
             } while (item == null);
         } finally {
+            waiters.decrementAndGet();
             lock.unlock();
         }
 
@@ -186,7 +251,11 @@ public final class ReferencePool<E> implements LockablePool<E> {
     @Override
     public E borrowItemWithTimeout(long timeout, TimeUnit unit) throws
             InterruptedException {
-        E item = null;
+        E item = tryBorrowWithoutLock();
+        if (item != null) {
+            return item;
+        }
+
         final ReentrantLock lock = this.borrowLock;
         long remainingMaxTimeToWait = unit.toNanos(timeout);
 
@@ -195,6 +264,7 @@ public final class ReferencePool<E> implements LockablePool<E> {
         // `LinkedBlockingDeque` does for a timed poll from a deque.  See:
         // http://hg.openjdk.java.net/jdk8/jdk8/jdk/file/687fd7c7986d/src/share/classes/java/util/concurrent/LinkedBlockingDeque.java#l516
         lock.lockInterruptibly();
+        waiters.incrementAndGet();
         try {
             final Thread currentThread = Thread.currentThread();
             // This pattern of using timed `awaitNanos` on a condition
@@ -203,7 +273,8 @@ public final class ReferencePool<E> implements LockablePool<E> {
             // `LinkedBlockingDeque` in `pollFirst` uses.  See:
             // http://hg.openjdk.java.net/jdk8/jdk8/jdk/file/687fd7c7986d/src/share/classes/java/util/concurrent/LinkedBlockingDeque.java#l522
             do {
-                if (this.pill != null) {
+                final int s = state.get();
+                if ((s & PILL) != 0) {
                     // Return the pill immediately if there is one
                     item = pill;
                 } else if (isPoolLockHeldByAnotherThread(currentThread)) {
@@ -212,32 +283,92 @@ public final class ReferencePool<E> implements LockablePool<E> {
                     }
                     remainingMaxTimeToWait =
                             poolNotLocked.awaitNanos(remainingMaxTimeToWait);
-                } else if (this.instance == null) {
-                    // No instance initialized yet
+                } else if ((s & (EMPTY | UNREGISTERING)) != 0) {
+                    // No instance initialized yet, or it is going away
                     if (remainingMaxTimeToWait <= 0) {
                         break;
                     }
                     remainingMaxTimeToWait =
                             borrowsAvailable.awaitNanos(remainingMaxTimeToWait);
-                } else if (this.currentBorrowCount.get() >= this.maxBorrowCount) {
+                } else if (borrowCount(s) >= this.maxBorrowCount) {
                     // Max borrow count reached, wait for one to be returned
                     if (remainingMaxTimeToWait <= 0) {
                         break;
                     }
                     remainingMaxTimeToWait =
                             borrowsAvailable.awaitNanos(remainingMaxTimeToWait);
-                } else if (instance != null) {
+                } else if (state.compareAndSet(s, s + 1)) {
                     item = instance;
-                    this.currentBorrowCount.getAndIncrement();
                 }
             } while (item == null);
         } finally {
+            waiters.decrementAndGet();
             lock.unlock();
         }
 
         return item;
     }
 
+    /**
+     * Borrows <tt>count</tt> references to the instance.  As many as the max
+     * borrow count permits are taken with a single compare-and-set; the
+     * remaining ones are borrowed one at a time, waiting as needed.
+     */
+    @Override
+    public List<E> borrowItems(int count) throws InterruptedException {
+        final List<E> items = new ArrayList<>(count);
+        try {
+            while (items.size() < count) {
+                final int s = state.get();
+                final int available = this.maxBorrowCount - borrowCount(s);
+                if ((s & BORROW_BLOCKED) == 0 && available > 0) {
+                    final int n = Math.min(available, count - items.size());
+                    if (state.compareAndSet(s, s + n)) {
+                        final E item = this.instance;
+                        for (int i = 0; i < n; i++) {
+                            items.add(item);
+                        }
+                    }
+                } else {
+                    final E item = borrowItem();
+                    items.add(item);
+                    if (item == this.pill) {
+                        break;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            for (E item : items) {
+                releaseItem(item);
+            }
+            throw e;
+        }
+        return items;
+    }
+
+    /**
+     * Borrows a reference with compare-and-set on the `state`, without
+     * taking the lock.  Only succeeds if none of the flags which could hold
+     * off a borrow are set and the max borrow count has not been reached,
+     * except that the pill, if inserted, is returned right away.
+     *
+     * @return the instance or pill, or null if the caller needs to take the
+     *         slow path under the lock
+     */
+    private E tryBorrowWithoutLock() {
+        int s;
+        while (((s = state.get()) & BORROW_BLOCKED) == 0 &&
+                borrowCount(s) < this.maxBorrowCount) {
+            if (state.compareAndSet(s, s + 1)) {
+                return this.instance;
+            }
+        }
+        if ((s & PILL) != 0) {
+            return this.pill;
+        }
+        return null;
+    }
+
     /**
      * Release an item and return it to the pool. Does nothing if the item
      * being released is the pill.
@@ -247,29 +378,48 @@ public final class ReferencePool<E> implements LockablePool<E> {
      */
     @Override
     public void releaseItem(E e) {
-        final ReentrantLock lock = this.borrowLock;
-        lock.lock();
-        try {
-            if (e != this.pill) {
-                if (!isRegistered(e)) {
-                    String errorMsg = "The item being released is not registered with the pool";
-                    throw new IllegalArgumentException(errorMsg);
-                }
+        if (e == this.pill) {
+            return;
+        }
+        if (!isRegistered(e)) {
+            String errorMsg = "The item being released is not registered with the pool";
+            throw new IllegalArgumentException(errorMsg);
+        }
 
-                this.currentBorrowCount.getAndDecrement();
+        int s;
+        do {
+            s = state.get();
+            if (borrowCount(s) == 0) {
+                throw new IllegalStateException(
+                        "The item being released has not been borrowed");
+            }
+        } while (!state.compareAndSet(s, s - 1));
+        s = s - 1;
+
+        // Only take the lock if some thread could be waiting for this
+        // release: a borrower, a caller of lock() or a caller of unregister().
+        // Both the waiter count and the flags are updated before the waiting
+        // thread checks the borrow count for the last time, so a waiter can't
+        // be missed here.
+        if (waiters.get() > 0 || (s & (LOCKED | UNREGISTERING)) != 0) {
+            final ReentrantLock lock = this.borrowLock;
+            lock.lock();
+            try {
                 signalPoolNotEmpty();
 
-                if (currentBorrowCount.get() == 0) {
-                   instanceNotBorrowed.signal();
+                if (borrowCount(state.get()) == 0) {
+                    instanceNotBorrowed.signal();
                 }
+            } finally {
+                lock.unlock();
             }
-        } finally {
-            lock.unlock();
         }
     }
 
     private boolean isRegistered(E e) {
-        return instance.equals(e);
+        // Compared by identity, since `equals` on a record of the instance is
+        // a deep comparison and this is on the path of every release.
+        return e != null && e == this.instance;
     }
 
     /**
@@ -283,8 +433,12 @@ public final class ReferencePool<E> implements LockablePool<E> {
         lock.lock();
         try {
             if (this.pill == null) {
+                // The pill must be visible before the PILL flag is set,
+                // since borrowers read it after seeing the flag.
                 this.pill = e;
-                signalPoolNotEmpty();
+                setFlags(PILL);
+                borrowsAvailable.signalAll();
+                signalIfLockCanProceed();
             }
         } finally {
             lock.unlock();
@@ -297,8 +451,10 @@ public final class ReferencePool<E> implements LockablePool<E> {
      * in preparation for unregistering it.
      */
     @Override
-    public void clear() throws InterruptedException {
-        unregister(this.instance);
+    public List<E> clear() throws InterruptedException {
+        final E e = this.instance;
+        unregister(e);
+        return e == null ? Collections.<E>emptyList() : Collections.singletonList(e);
     }
 
     @Override
@@ -308,19 +464,24 @@ public final class ReferencePool<E> implements LockablePool<E> {
 
     @Override
     public int currentSize() {
-        int size;
-        final ReentrantLock lock = this.borrowLock;
-        lock.lock();
-        try {
-            if (instance == null) {
-                size = 0;
-            } else {
-                size = this.maxBorrowCount - this.currentBorrowCount.get();
-            }
-        } finally {
-            lock.unlock();
+        final int s = state.get();
+        if ((s & EMPTY) != 0) {
+            return 0;
         }
-        return size;
+        return this.maxBorrowCount - borrowCount(s);
+    }
+
+    @Override
+    public PoolStatistics getStatistics() {
+        final int s = state.get();
+        final boolean empty = (s & EMPTY) != 0;
+        final long since = lockedSince;
+        return new PoolStatistics(empty ? 0 : this.maxBorrowCount - borrowCount(s),
+                                  borrowCount(s),
+                                  empty ? 0 : 1,
+                                  waiters.get(),
+                                  (s & LOCKED) != 0,
+                                  since);
     }
 
     /**
@@ -341,14 +502,14 @@ public final class ReferencePool<E> implements LockablePool<E> {
                     throw new InterruptedException(pillErrorMsg);
                 }
                 if (!isPoolLockHeld()) {
-                    poolLockThread = currentThread;
+                    acquirePoolLock(currentThread);
                 } else {
                     poolNotLocked.await();
                 }
             }
             try {
                 // Wait until all references have been returned to the pool
-                while (this.currentBorrowCount.get() > 0) {
+                while (borrowCount(state.get()) > 0) {
                     lockAvailable.await();
                     if (this.pill != null) {
                         throw new InterruptedException(pillErrorMsg);
@@ -384,7 +545,7 @@ public final class ReferencePool<E> implements LockablePool<E> {
                 }
 
                 if (!isPoolLockHeld()) {
-                    poolLockThread = currentThread;
+                    acquirePoolLock(currentThread);
                 } else {
                     if (remainingMaxTimeToWait <= 0) {
                         throw new TimeoutException(timeoutErrorMsg);
@@ -395,7 +556,7 @@ public final class ReferencePool<E> implements LockablePool<E> {
 
             try {
                 // Wait until all references have been returned to the pool
-                while (this.currentBorrowCount.get() > 0) {
+                while (borrowCount(state.get()) > 0) {
                     if (remainingMaxTimeToWait <= 0) {
                         throw new TimeoutException(timeoutErrorMsg);
                     }
@@ -416,15 +577,7 @@ public final class ReferencePool<E> implements LockablePool<E> {
 
     @Override
     public boolean isLocked() {
-        boolean locked;
-        final ReentrantLock lock = this.borrowLock;
-        lock.lock();
-        try {
-            locked = isPoolLockHeld();
-        } finally {
-            lock.unlock();
-        }
-        return locked;
+        return (state.get() & LOCKED) != 0;
     }
 
     @Override
@@ -462,8 +615,72 @@ public final class ReferencePool<E> implements LockablePool<E> {
       return registered;
     }
 
+    /**
+     * Apply an action to the JRuby instance.  Since the instance in this pool
+     * is shared by all borrowers at once, there is no need to wait for
+     * outstanding borrows to be returned: the action is applied right away,
+     * on the calling thread, as one additional borrow of the instance.  The
+     * additional borrow is permitted even if the maximum borrow count has
+     * been reached, but, like any other borrow, waits for the pool lock to be
+     * released if another thread holds it.
+     */
+    @Override
+    public CompletableFuture<Void> broadcast(Consumer<? super E> action)
+            throws InterruptedException {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        final Thread currentThread = Thread.currentThread();
+        while (true) {
+            final int s = state.get();
+            if ((s & (EMPTY | UNREGISTERING)) != 0) {
+                // No instance, or one which is going away, so there is
+                // nothing to apply the action to.
+                result.complete(null);
+                return result;
+            }
+            if ((s & LOCKED) != 0 && isPoolLockHeldByAnotherThread(currentThread)) {
+                awaitPoolNotLocked(currentThread);
+            } else if (state.compareAndSet(s, s + 1)) {
+                // The LOCKED flag is part of the word compared, so the pool
+                // can't have been locked since it was checked.
+                break;
+            }
+        }
+        final E item = this.instance;
+
+        try {
+            action.accept(item);
+            result.complete(null);
+        } catch (Throwable t) {
+            result.completeExceptionally(t);
+        } finally {
+            releaseItem(item);
+        }
+        return result;
+    }
+
+    private void awaitPoolNotLocked(Thread currentThread)
+            throws InterruptedException {
+        final ReentrantLock lock = this.borrowLock;
+        lock.lock();
+        try {
+            while (isPoolLockHeldByAnotherThread(currentThread)) {
+                poolNotLocked.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void acquirePoolLock(Thread currentThread) {
+        poolLockThread = currentThread;
+        lockedSince = System.currentTimeMillis();
+        setFlags(LOCKED);
+    }
+
     private void freePoolLock() {
         poolLockThread = null;
+        lockedSince = -1;
+        clearFlags(LOCKED);
         // Need to use 'signalAll' here because there might be multiple
         // waiters (e.g., multiple borrowers) queued up, waiting for the
         // pool to be unlocked.
@@ -475,7 +692,7 @@ public final class ReferencePool<E> implements LockablePool<E> {
         // reawoken when the pool lock is released, compensating for any
         // 'borrowsAvailable' signals that might have been essentially ignored from
         // when the pool lock was held.
-        if (this.currentBorrowCount.get() < this.maxBorrowCount) {
+        if (borrowCount(state.get()) < this.maxBorrowCount) {
             borrowsAvailable.signalAll();
         }
     }
@@ -506,11 +723,26 @@ public final class ReferencePool<E> implements LockablePool<E> {
         // is active at a time - a caller of lock() that has just acquired
         // the pool lock but is waiting for the live queue to be completely
         // filled
-        if ((instance != null && currentBorrowCount.get() == 0) || pill != null) {
+        final int s = state.get();
+        if (((s & EMPTY) == 0 && borrowCount(s) == 0) || (s & PILL) != 0) {
             lockAvailable.signal();
         }
     }
 
+    private static int borrowCount(int s) {
+        return s & COUNT_MASK;
+    }
+
+    // Flags are only changed while holding the `borrowLock`, but the count
+    // may be changed concurrently, hence the atomic update.
+    private void setFlags(int flags) {
+        state.updateAndGet(s -> s | flags);
+    }
+
+    private void clearFlags(int flags) {
+        state.updateAndGet(s -> s & ~flags);
+    }
+
     private boolean isPoolLockHeld() {
         return poolLockThread != null;
     }
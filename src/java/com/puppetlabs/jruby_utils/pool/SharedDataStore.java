@@ -0,0 +1,145 @@
+package com.puppetlabs.jruby_utils.pool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Read-only data shared by every JRuby instance in a pool, e.g. lookup tables
+ * which each instance would otherwise load a copy of.  Each entry is a file
+ * mapped into memory, so its contents are held once, in the page cache,
+ * however many instances read them, and are not on the heap at all.
+ *
+ * The entries are replaced all at once by {@link #refresh(Map)}, which maps
+ * the new files and then swaps in a new {@link Generation}.  A reader which
+ * needs a consistent view of several entries should take the current
+ * generation once and read them all from it.  A generation stays readable for
+ * as long as anything refers to it.
+ *
+ * The files must not be modified in place once they are mapped, since every
+ * reader would see the modification, and reading a mapping of a file which
+ * has been truncated crashes the JVM.  To change an entry, write a new file
+ * and refresh the store with it instead.
+ */
+public final class SharedDataStore {
+
+    /**
+     * The entries of the store between two refreshes.
+     */
+    public static final class Generation {
+        private final long number;
+        private final Map<String, ByteBuffer> entries;
+        private final long totalBytes;
+
+        Generation(long number, Map<String, ByteBuffer> entries) {
+            this.number = number;
+            this.entries = Collections.unmodifiableMap(entries);
+            long total = 0;
+            for (ByteBuffer entry : entries.values()) {
+                total += entry.capacity();
+            }
+            this.totalBytes = total;
+        }
+
+        /**
+         * @return - 0 before the store is first refreshed, and one more for
+         *           each refresh since
+         */
+        public long getNumber() {
+            return number;
+        }
+
+        /**
+         * @return - the names of the entries
+         */
+        public Set<String> getNames() {
+            return entries.keySet();
+        }
+
+        /**
+         * @return - the total size of the entries, in bytes
+         */
+        public long getTotalBytes() {
+            return totalBytes;
+        }
+
+        /**
+         * Returns the contents of an entry, as a read-only buffer of its own,
+         * so that readers don't share a position.  Reading it copies nothing.
+         *
+         * @param name - the name of the entry
+         * @return - the contents of the entry, or null if there isn't one
+         */
+        public ByteBuffer get(String name) {
+            ByteBuffer entry = entries.get(name);
+            return entry == null ? null : entry.duplicate();
+        }
+    }
+
+    private final AtomicReference<Generation> current =
+            new AtomicReference<>(new Generation(0, Collections.emptyMap()));
+
+    /**
+     * @return - the current generation of the entries
+     */
+    public Generation current() {
+        return current.get();
+    }
+
+    /**
+     * @return - the number of the current generation
+     */
+    public long getGeneration() {
+        return current.get().getNumber();
+    }
+
+    /**
+     * Returns the contents of an entry in the current generation; see
+     * {@link Generation#get(String)}.
+     *
+     * @param name - the name of the entry
+     * @return - the contents of the entry, or null if there isn't one
+     */
+    public ByteBuffer get(String name) {
+        return current.get().get(name);
+    }
+
+    /**
+     * Replaces the entries of the store with the contents of {@code files},
+     * keyed by name.  If any file can't be mapped, the store keeps its current
+     * entries.
+     *
+     * @param files - the file of each entry
+     * @return - the new generation
+     * @throws IOException if a file can't be mapped
+     */
+    public synchronized Generation refresh(Map<String, Path> files)
+            throws IOException {
+        Map<String, ByteBuffer> entries = new HashMap<>();
+        for (Map.Entry<String, Path> file : files.entrySet()) {
+            entries.put(file.getKey(), map(file.getValue()));
+        }
+        Generation next = new Generation(current.get().getNumber() + 1, entries);
+        current.set(next);
+        return next;
+    }
+
+    private static ByteBuffer map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Shared data file " + path + " is " + size +
+                        " bytes; at most " + Integer.MAX_VALUE + " can be mapped");
+            }
+            // The mapping stays valid once the channel is closed
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+    }
+}
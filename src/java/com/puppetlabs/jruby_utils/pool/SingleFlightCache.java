@@ -0,0 +1,188 @@
+package com.puppetlabs.jruby_utils.pool;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache which sits in front of the JRuby pool for calls whose results only
+ * depend upon their arguments.
+ *
+ * Concurrent requests for the same key share a single in-flight execution of
+ * the loader: the first caller runs it and all other callers block until
+ * its result (or exception) is available.  Completed results may optionally
+ * be memoized, bounded by a maximum number of entries (least recently used
+ * entries are evicted first) and by a time-to-live.
+ *
+ * @param <K> the type of the cache keys
+ * @param <V> the type of the cached values
+ */
+public final class SingleFlightCache<K, V> {
+
+    private static final class Result<V> {
+        private final V value;
+        private final long expiresAtNanos;
+
+        private Result(V value, long expiresAtNanos) {
+            this.value = value;
+            this.expiresAtNanos = expiresAtNanos;
+        }
+    }
+
+    // Maximum number of memoized results.  A value less than 1 disables
+    // memoization, leaving only the de-duplication of in-flight calls.
+    private final int maxEntries;
+
+    // How long a memoized result may be served, in nanoseconds.  A value less
+    // than 1 means that memoized results never expire on their own.
+    private final long ttlNanos;
+
+    // Calls which are currently executing, keyed by the call key.  Callers
+    // which find an entry here wait on it rather than starting their own
+    // execution.
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight =
+            new ConcurrentHashMap<>();
+
+    // Memoized results in access order, so that the eldest entry is always
+    // the least recently used one.  Guarded by its own monitor.
+    private final LinkedHashMap<K, Result<V>> entries;
+
+    // Incremented on every invalidation.  A call which started before an
+    // invalidation does not memoize its result, since it may have been
+    // computed by an instance which has since been flushed.  Only incremented
+    // while holding the monitor of entries, so that a result can be checked
+    // against it and memoized without an invalidation in between.
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * Create a SingleFlightCache
+     *
+     * @param maxEntries maximum number of results to memoize; values less
+     *                   than 1 disable memoization
+     * @param ttl        how long a memoized result may be served, in units
+     *                   of unit; values less than 1 disable expiry
+     * @param unit       a <tt>TimeUnit</tt> determining how to interpret the
+     *                   <tt>ttl</tt> parameter
+     */
+    public SingleFlightCache(final int maxEntries, long ttl, TimeUnit unit) {
+        this.maxEntries = maxEntries;
+        this.ttlNanos = unit.toNanos(ttl);
+        this.entries = new LinkedHashMap<K, Result<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Result<V>> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns the result for <tt>key</tt>, calling <tt>loader</tt> only if
+     * there is neither a memoized result nor an in-flight call for the key.
+     *
+     * @param key    the key identifying the call, e.g. the method name and
+     *               its arguments; must have value-based equals and hashCode
+     * @param loader the function which performs the call
+     * @return the result of the call
+     * @throws Exception whatever the loader threw, for both the caller that
+     *                   ran it and any callers that were waiting on it
+     */
+    public V get(K key, Callable<V> loader) throws Exception {
+        if (isMemoizing()) {
+            synchronized (entries) {
+                Result<V> entry = entries.get(key);
+                if (entry != null) {
+                    if (!isExpired(entry)) {
+                        return entry.value;
+                    }
+                    entries.remove(key);
+                }
+            }
+        }
+
+        CompletableFuture<V> call = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, call);
+        if (existing != null) {
+            return awaitResult(existing);
+        }
+
+        final long startGeneration = generation.get();
+        try {
+            V value = loader.call();
+            // Memoize the result before it is removed from the in-flight
+            // map below, so that there is no window in which a new caller
+            // can find neither and start a redundant call.
+            if (isMemoizing()) {
+                synchronized (entries) {
+                    if (startGeneration == generation.get()) {
+                        entries.put(key, new Result<>(value, expiryFromNow()));
+                    }
+                }
+            }
+            call.complete(value);
+            return value;
+        } catch (Throwable t) {
+            call.completeExceptionally(t);
+            throw t;
+        } finally {
+            inFlight.remove(key, call);
+        }
+    }
+
+    /**
+     * Discards all memoized results.  Calls which are in flight at the time
+     * this method is called will still deliver their results to the callers
+     * already waiting on them, but those results will not be memoized and
+     * new callers will start a fresh call.
+     */
+    public void invalidate() {
+        synchronized (entries) {
+            generation.incrementAndGet();
+            entries.clear();
+        }
+        inFlight.clear();
+    }
+
+    /**
+     * Returns the number of results which are currently memoized, including
+     * any which have expired but not yet been evicted.
+     */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private boolean isMemoizing() {
+        return maxEntries > 0;
+    }
+
+    private long expiryFromNow() {
+        return ttlNanos > 0 ? System.nanoTime() + ttlNanos : Long.MAX_VALUE;
+    }
+
+    private boolean isExpired(Result<V> entry) {
+        return entry.expiresAtNanos != Long.MAX_VALUE &&
+                System.nanoTime() - entry.expiresAtNanos >= 0;
+    }
+
+    private static <V> V awaitResult(CompletableFuture<V> call)
+            throws Exception {
+        try {
+            return call.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+}
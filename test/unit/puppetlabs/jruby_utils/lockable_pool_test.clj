@@ -2,7 +2,8 @@
   (:require [clojure.test :refer :all]
             [puppetlabs.services.jruby-pool-manager.jruby-testutils :as jruby-testutils])
   (:import (com.puppetlabs.jruby_utils.pool JRubyPool)
-           (java.util.concurrent TimeUnit ExecutionException TimeoutException)))
+           (java.util.concurrent TimeUnit ExecutionException TimeoutException)
+           (java.util.function Consumer)))
 
 (defn timed-deref
   [ref]
@@ -29,6 +30,12 @@
   (doseq [instance instances]
     (.releaseItem pool instance)))
 
+(defn consumer
+  [f]
+  (reify Consumer
+    (accept [_ x]
+      (f x))))
+
 (deftest pool-register-above-maximum-throws-exception-test
   (testing "attempt to register new instance with pool at max capacity fails"
     (let [pool (create-empty-pool 1)]
@@ -656,3 +663,249 @@
         (is (= 2 (.remainingCapacity pool)))
         (return-instances pool instances)
         (is (= 0 (.remainingCapacity pool)))))))
+
+(deftest pool-broadcast-test
+  (testing "broadcast applies action to idle instances immediately"
+    (let [pool (create-populated-pool 3)
+          applied (atom [])
+          result (.broadcast pool (consumer #(swap! applied conj %)))]
+      (is (nil? (timed-deref result)))
+      (is (= #{"foo0" "foo1" "foo2"} (set @applied)))
+      (is (= 3 (.currentSize pool)))))
+  (testing "broadcast applies action to borrowed instances when returned"
+    (let [pool (create-populated-pool 3)
+          instance (.borrowItem pool)
+          applied (atom [])
+          result (.broadcast pool (consumer #(swap! applied conj %)))]
+      (is (= 2 (count @applied)))
+      (is (not (.isDone result)))
+      (testing "idle instances can be borrowed during the broadcast"
+        (let [other-instances (borrow-n-instances pool 2)]
+          (return-instances pool other-instances)))
+      (.releaseItem pool instance)
+      (is (nil? (timed-deref result)))
+      (is (= instance (last @applied)))
+      (is (= 3 (count @applied)))
+      (is (= 3 (.currentSize pool)))))
+  (testing "broadcast actions run before returned instance is lent again"
+    (let [pool (create-populated-pool 1)
+          instance (.borrowItem pool)
+          action-started (promise)
+          finish-action (promise)
+          result (.broadcast pool (consumer
+                                   (fn [_]
+                                     (deliver action-started true)
+                                     @finish-action)))
+          return-future (future (.releaseItem pool instance))
+          _ (is (true? (timed-deref action-started)))
+          borrow-future (future (.borrowItem pool))]
+      (is (= :not-done (deref borrow-future 100 :not-done)))
+      (deliver finish-action true)
+      (is (nil? (timed-deref return-future)))
+      (is (nil? (timed-deref result)))
+      (is (= instance (timed-deref borrow-future)))))
+  (testing "broadcast future completes exceptionally if action throws"
+    (let [pool (create-populated-pool 2)
+          result (.broadcast pool (consumer
+                                   (fn [instance]
+                                     (when (= "foo1" instance)
+                                       (throw (IllegalStateException. "oops"))))))]
+      (is (thrown? ExecutionException (.get result 10 TimeUnit/SECONDS)))
+      (is (= 2 (.currentSize pool)))))
+  (testing "broadcast completes for borrowed instances which are unregistered"
+    (let [pool (create-populated-pool 2)
+          instance (.borrowItem pool)
+          result (.broadcast pool (consumer identity))]
+      (is (not (.isDone result)))
+      (.unregister pool instance)
+      (is (nil? (timed-deref result)))
+      (is (= 1 (.currentSize pool)))))
+  (testing "broadcast waits for the pool lock to be released"
+    (let [pool (create-populated-pool 2)
+          applied (atom [])]
+      (.lock pool)
+      (let [broadcast-future (future (.broadcast pool (consumer #(swap! applied conj %))))]
+        (is (= :not-done (deref broadcast-future 100 :not-done)))
+        (testing "without taking instances out of the locked pool"
+          (is (empty? @applied))
+          (is (= 2 (.currentSize pool))))
+        (.unlock pool)
+        (is (nil? (timed-deref (timed-deref broadcast-future))))
+        (is (= #{"foo0" "foo1"} (set @applied))))))
+  (testing "broadcast by the lock holder proceeds while the pool is locked"
+    (let [pool (create-populated-pool 2)
+          applied (atom [])]
+      (.lock pool)
+      (is (nil? (timed-deref (.broadcast pool (consumer #(swap! applied conj %))))))
+      (is (= 2 (count @applied)))
+      (.unlock pool))))
+
+(deftest pool-registry-uses-identity-test
+  (testing "releasing an equal but not identical item throws"
+    (let [pool (create-populated-pool 1)
+          instance (.borrowItem pool)
+          lookalike (String. instance)]
+      (is (= instance lookalike))
+      (is (thrown? IllegalArgumentException (.releaseItem pool lookalike)))
+      (.releaseItem pool instance)
+      (is (= 1 (.currentSize pool)))))
+  (testing "registered elements are a snapshot"
+    (let [pool (create-populated-pool 3)
+          snapshot (.getRegisteredElements pool)
+          instance (.borrowItem pool)]
+      (is (identical? snapshot (.getRegisteredElements pool)))
+      (is (thrown? UnsupportedOperationException (.clear snapshot)))
+      (.unregister pool instance)
+      (is (= 3 (.size snapshot)))
+      (is (= 2 (.size (.getRegisteredElements pool))))
+      (testing "and freed slots are reused"
+        (.register pool "foo3")
+        (is (= #{"foo0" "foo1" "foo2" "foo3"}
+               (conj (set (.getRegisteredElements pool)) instance)))
+        (is (= 3 (.size (.getRegisteredElements pool))))))))
+
+(defn start-waiting-borrow
+  "Starts a borrow from the pool on a new thread and blocks until that thread
+  is waiting for an item. Returns a future of the borrowed item."
+  [pool]
+  (let [borrow-thread (promise)
+        borrow (future (deliver borrow-thread (Thread/currentThread))
+                       (.borrowItem pool))]
+    (while (not= Thread$State/WAITING (.getState @borrow-thread))
+      (Thread/sleep 1))
+    borrow))
+
+(deftest fair-pool-hands-off-in-arrival-order-test
+  (testing "returned items go to the longest waiting borrower"
+    (let [pool (JRubyPool. 2 true)
+          _ (.register pool "foo0")
+          _ (.register pool "foo1")
+          instances (borrow-n-instances pool 2)
+          first-borrow (start-waiting-borrow pool)
+          second-borrow (start-waiting-borrow pool)]
+      (.releaseItem pool (second instances))
+      (is (= "foo1" (timed-deref first-borrow)))
+      (is (not (realized? second-borrow)))
+      (testing "and cannot be taken by a borrower which arrives later"
+        (.releaseItem pool (first instances))
+        (is (= 0 (.currentSize pool)))
+        (is (= "foo0" (timed-deref second-borrow))))))
+  (testing "items returned while the pool was locked are handed off on unlock"
+    (let [pool (JRubyPool. 2 true)
+          _ (.register pool "foo0")
+          _ (.register pool "foo1")
+          _ (.lock pool)
+          first-borrow (start-waiting-borrow pool)
+          second-borrow (start-waiting-borrow pool)]
+      (testing "the lock holder may still borrow"
+        (let [instance (.borrowItem pool)]
+          (is (= 1 (.currentSize pool)))
+          (.releaseItem pool instance)))
+      (is (= 2 (.currentSize pool)))
+      (is (not (realized? first-borrow)))
+      (.unlock pool)
+      (is (= #{"foo0" "foo1"}
+             (set [(timed-deref first-borrow) (timed-deref second-borrow)])))
+      (is (= 0 (.currentSize pool)))))
+  (testing "an item handed to an interrupted borrower is passed on"
+    (let [pool (JRubyPool. 1 true)
+          _ (.register pool "foo0")
+          instance (.borrowItem pool)
+          interrupted-borrow (start-waiting-borrow pool)
+          next-borrow (start-waiting-borrow pool)]
+      (future-cancel interrupted-borrow)
+      (.releaseItem pool instance)
+      (is (= "foo0" (timed-deref next-borrow)))))
+  (testing "all waiters receive the pill"
+    (let [pool (JRubyPool. 1 true)
+          _ (.register pool "foo0")
+          _ (.borrowItem pool)
+          borrows (doall (repeatedly 2 #(start-waiting-borrow pool)))]
+      (.insertPill pool "pill")
+      (is (= ["pill" "pill"] (map timed-deref borrows))))))
+
+(deftest pool-statistics-test
+  (testing "statistics reflect free, borrowed and waiting counts"
+    (let [pool (create-populated-pool 2)
+          instances (borrow-n-instances pool 2)
+          waiting-borrow (start-waiting-borrow pool)
+          stats (.getStatistics pool)]
+      (is (= 0 (.getFreeCount stats)))
+      (is (= 2 (.getBorrowedCount stats)))
+      (is (= 2 (.getRegisteredCount stats)))
+      (is (= 1 (.getWaiterCount stats)))
+      (is (false? (.isLocked stats)))
+      (is (= -1 (.getLockedSince stats)))
+      (return-instances pool instances)
+      (is (some #{(timed-deref waiting-borrow)} instances))
+      (let [stats (.getStatistics pool)]
+        (is (= 1 (.getFreeCount stats)))
+        (is (= 1 (.getBorrowedCount stats)))
+        (is (= 0 (.getWaiterCount stats))))))
+  (testing "statistics report when the pool was locked"
+    (let [pool (create-populated-pool 1)
+          before (System/currentTimeMillis)]
+      (.lock pool)
+      (let [stats (.getStatistics pool)]
+        (is (.isLocked stats))
+        (is (<= before (.getLockedSince stats) (System/currentTimeMillis))))
+      (.unlock pool)
+      (is (false? (.isLocked (.getStatistics pool)))))))
+
+(deftest pool-borrow-items-test
+  (testing "borrowItems takes all free items and blocks for the rest"
+    (let [pool (create-populated-pool 3)
+          instance (.borrowItem pool)
+          borrow-future (future (.borrowItems pool 3))]
+      (is (= :not-done (deref borrow-future 100 :not-done)))
+      (is (= 0 (.currentSize pool)))
+      (.releaseItem pool instance)
+      (let [items (timed-deref borrow-future)]
+        (is (= 3 (count items)))
+        (is (= #{"foo0" "foo1" "foo2"} (set items))))))
+  (testing "borrowItems stops at the pill"
+    (let [pool (create-populated-pool 2)
+          _ (.borrowItem pool)
+          borrow-future (future (.borrowItems pool 2))]
+      (is (= :not-done (deref borrow-future 100 :not-done)))
+      (.insertPill pool "pill")
+      (let [items (timed-deref borrow-future)]
+        (is (= 2 (count items)))
+        (is (= "pill" (last items))))))
+  (testing "borrowItems returns borrowed items when interrupted"
+    (let [pool (create-populated-pool 2)
+          instance (.borrowItem pool)
+          borrow-future (future (.borrowItems pool 2))]
+      (is (= :not-done (deref borrow-future 100 :not-done)))
+      (future-cancel borrow-future)
+      (is (= :done (deref (future (while (not= 1 (.currentSize pool))
+                                     (Thread/sleep 10))
+                                   :done)
+                          10000 :timed-out)))
+      (.releaseItem pool instance)
+      (is (= 2 (.currentSize pool))))))
+
+(deftest pool-set-max-size-test
+  (let [pool (JRubyPool. 3 1 false)]
+    (.register pool "foo0")
+    (testing "registrations are limited to the current size"
+      (is (thrown? IllegalStateException (.register pool "foo1")))
+      (is (= 3 (.getCapacity pool))))
+    (testing "the pool can grow up to its capacity"
+      (.setMaxSize pool 3)
+      (.register pool "foo1")
+      (.register pool "foo2")
+      (is (= 3 (.currentSize pool)))
+      (is (thrown? IllegalArgumentException (.setMaxSize pool 4))))
+    (testing "the pool cannot shrink below its registered elements"
+      (is (thrown? IllegalArgumentException (.setMaxSize pool 2))))
+    (testing "a lock waiting for a borrowed element proceeds once it is removed"
+      (let [instance (.borrowItem pool)
+            lock-thread (future (.lock pool))]
+        (is (= :not-done (deref lock-thread 100 :not-done)))
+        (.unregister pool instance)
+        (is (= :not-done (deref lock-thread 100 :not-done)))
+        (.setMaxSize pool 2)
+        (timed-deref lock-thread)
+        (is (.isLocked pool))
+        (.unlock pool)))))
@@ -2,7 +2,8 @@
   (:require [clojure.test :refer :all]
             [puppetlabs.services.jruby-pool-manager.jruby-testutils :as jruby-testutils])
   (:import (com.puppetlabs.jruby_utils.pool ReferencePool)
-           (java.util.concurrent TimeUnit ExecutionException TimeoutException)))
+           (java.util.concurrent TimeUnit ExecutionException TimeoutException)
+           (java.util.function Consumer)))
 
 (defn timed-deref
   [ref]
@@ -30,6 +31,12 @@
   (doseq [instance instances]
     (.releaseItem pool instance)))
 
+(defn consumer
+  [f]
+  (reify Consumer
+    (accept [_ x]
+      (f x))))
+
 (deftest pool-register-above-maximum-throws-exception-test
   (testing "attempt to register new instance with pool at max capacity fails"
     (let [pool (create-empty-pool)]
@@ -628,3 +635,93 @@
           pool (create-populated-pool 5)]
       (is (= 1 (.remainingCapacity empty-pool)))
       (is (= 0 (.remainingCapacity pool))))))
+
+(deftest pool-broadcast-test
+  (testing "broadcast applies action immediately even while instance borrowed"
+    (let [pool (create-populated-pool 2)
+          instances (borrow-n-instances pool 2)
+          applied (atom [])
+          result (.broadcast pool (consumer #(swap! applied conj %)))]
+      (is (.isDone result))
+      (is (nil? (timed-deref result)))
+      (is (= ["foo"] @applied))
+      (return-instances pool instances)
+      (is (= 2 (.currentSize pool)))))
+  (testing "broadcast future completes exceptionally if action throws"
+    (let [pool (create-populated-pool 2)
+          result (.broadcast pool (consumer
+                                   (fn [_]
+                                     (throw (IllegalStateException. "oops")))))]
+      (is (thrown? ExecutionException (.get result 10 TimeUnit/SECONDS)))
+      (is (= 2 (.currentSize pool)))))
+  (testing "broadcast waits for the pool lock to be released"
+    (let [pool (create-populated-pool 2)
+          applied (atom [])]
+      (.lock pool)
+      (let [broadcast-future (future (.broadcast pool (consumer #(swap! applied conj %))))]
+        (is (= :not-done (deref broadcast-future 100 :not-done)))
+        (testing "without borrowing the locked instance"
+          (is (empty? @applied))
+          (is (= 2 (.currentSize pool))))
+        (.unlock pool)
+        (is (nil? (timed-deref (timed-deref broadcast-future))))
+        (is (= ["foo"] @applied))
+        (is (= 2 (.currentSize pool))))))
+  (testing "broadcast by the lock holder proceeds while the pool is locked"
+    (let [pool (create-populated-pool 2)
+          applied (atom [])]
+      (.lock pool)
+      (is (nil? (timed-deref (.broadcast pool (consumer #(swap! applied conj %))))))
+      (is (= ["foo"] @applied))
+      (.unlock pool))))
+
+(deftest release-without-borrow-test
+  (testing "releasing the instance more times than it was borrowed errors"
+    (let [pool (create-populated-pool 2)
+          instance (.borrowItem pool)]
+      (.releaseItem pool instance)
+      (is (thrown? IllegalStateException (.releaseItem pool instance)))
+      (is (= 2 (.currentSize pool))))))
+
+(deftest unregister-blocks-new-borrows-test
+  (testing "no new borrows are granted while waiting for unregister"
+    (let [pool (create-populated-pool 2)
+          instance (.borrowItem pool)
+          unregister-future (future (.unregister pool instance))]
+      (is (= :not-done (deref unregister-future 100 :not-done)))
+      (is (nil? (.borrowItemWithTimeout pool 100 TimeUnit/MILLISECONDS)))
+      (.releaseItem pool instance)
+      (is (nil? (timed-deref unregister-future)))
+      (is (= 0 (.currentSize pool)))
+      (let [borrow-future (future (.borrowItem pool))]
+        (is (= :not-done (deref borrow-future 100 :not-done)))
+        (.register pool "bar")
+        (is (= "bar" (timed-deref borrow-future)))))))
+
+(deftest pool-statistics-test
+  (testing "statistics reflect the borrows of the shared instance"
+    (let [pool (create-populated-pool 3)
+          instances (borrow-n-instances pool 2)
+          stats (.getStatistics pool)]
+      (is (= 1 (.getFreeCount stats)))
+      (is (= 2 (.getBorrowedCount stats)))
+      (is (= 1 (.getRegisteredCount stats)))
+      (is (= 0 (.getWaiterCount stats)))
+      (is (false? (.isLocked stats)))
+      (return-instances pool instances)
+      (.lock pool)
+      (is (.isLocked (.getStatistics pool)))
+      (is (pos? (.getLockedSince (.getStatistics pool))))
+      (.unlock pool)
+      (is (= -1 (.getLockedSince (.getStatistics pool)))))))
+
+(deftest pool-borrow-items-test
+  (testing "borrowItems takes available references and blocks for the rest"
+    (let [pool (create-populated-pool 3)
+          instance (.borrowItem pool)
+          borrow-future (future (.borrowItems pool 3))]
+      (is (= :not-done (deref borrow-future 100 :not-done)))
+      (is (= 0 (.currentSize pool)))
+      (.releaseItem pool instance)
+      (is (= ["foo" "foo" "foo"] (timed-deref borrow-future)))
+      (is (= 0 (.currentSize pool))))))
@@ -0,0 +1,117 @@
+(ns puppetlabs.jruby_utils.single-flight-cache-test
+  (:require [clojure.test :refer :all])
+  (:import (com.puppetlabs.jruby_utils.pool SingleFlightCache)
+           (java.util.concurrent TimeUnit)))
+
+(defn timed-deref
+  [ref]
+  (deref ref 10000 :timed-out))
+
+(defn create-cache
+  ([] (create-cache 0 0))
+  ([max-entries ttl-ms]
+   (SingleFlightCache. max-entries ttl-ms TimeUnit/MILLISECONDS)))
+
+(deftest concurrent-calls-share-one-execution-test
+  (testing "callers arriving while a call is in flight wait for its result"
+    (let [cache (create-cache)
+          calls (atom 0)
+          release? (promise)
+          loader (fn [] (swap! calls inc) @release? :result)
+          first-call (future (.get cache "key" loader))
+          _ (while (zero? @calls) (Thread/yield))
+          second-call (future (.get cache "key" loader))]
+      (Thread/sleep 100)
+      (is (not (realized? second-call)))
+      (deliver release? true)
+      (is (= :result (timed-deref first-call)))
+      (is (= :result (timed-deref second-call)))
+      (is (= 1 @calls))))
+  (testing "waiting callers receive the exception thrown by the shared call"
+    (let [cache (create-cache)
+          calls (atom 0)
+          release? (promise)
+          loader (fn []
+                   (swap! calls inc)
+                   @release?
+                   (throw (IllegalStateException. "BOOM")))
+          catching-get #(try (.get cache "key" loader)
+                             (catch IllegalStateException e e))
+          first-call (future (catching-get))
+          _ (while (zero? @calls) (Thread/yield))
+          second-call (future (catching-get))]
+      (Thread/sleep 100)
+      (deliver release? true)
+      (is (= "BOOM" (.getMessage (timed-deref first-call))))
+      (is (= "BOOM" (.getMessage (timed-deref second-call))))
+      (is (= 1 @calls)))))
+
+(deftest memoization-test
+  (testing "results are not memoized when max entries is 0"
+    (let [cache (create-cache)
+          calls (atom 0)]
+      (.get cache "key" #(swap! calls inc))
+      (.get cache "key" #(swap! calls inc))
+      (is (= 2 @calls))
+      (is (= 0 (.size cache)))))
+  (testing "results are memoized per key"
+    (let [cache (create-cache 10 0)
+          calls (atom 0)]
+      (is (= 1 (.get cache "a" #(swap! calls inc))))
+      (is (= 1 (.get cache "a" #(swap! calls inc))))
+      (is (= 2 (.get cache "b" #(swap! calls inc))))
+      (is (= 2 @calls))))
+  (testing "least recently used entries are evicted beyond max entries"
+    (let [cache (create-cache 2 0)]
+      (.get cache "a" (constantly 1))
+      (.get cache "b" (constantly 2))
+      (.get cache "a" (constantly :unused))
+      (.get cache "c" (constantly 3))
+      (is (= 2 (.size cache)))
+      (is (= 1 (.get cache "a" (constantly :recomputed))))
+      (is (= :recomputed (.get cache "b" (constantly :recomputed))))))
+  (testing "entries expire after the ttl"
+    (let [cache (create-cache 10 50)]
+      (.get cache "a" (constantly 1))
+      (is (= 1 (.get cache "a" (constantly 2))))
+      (Thread/sleep 100)
+      (is (= 2 (.get cache "a" (constantly 2))))))
+  (testing "exceptions are not memoized"
+    (let [cache (create-cache 10 0)]
+      (is (thrown? IllegalStateException
+                   (.get cache "a" #(throw (IllegalStateException. "BOOM")))))
+      (is (= 1 (.get cache "a" (constantly 1)))))))
+
+(deftest invalidate-test
+  (testing "invalidate discards memoized results"
+    (let [cache (create-cache 10 0)]
+      (.get cache "a" (constantly 1))
+      (.invalidate cache)
+      (is (= 0 (.size cache)))
+      (is (= 2 (.get cache "a" (constantly 2))))))
+  (testing "a call in flight during an invalidation does not memoize its result"
+    (let [cache (create-cache 10 0)
+          started? (promise)
+          release? (promise)
+          in-flight (future (.get cache "a" (fn [] (deliver started? true) @release? 1)))]
+      @started?
+      (.invalidate cache)
+      (deliver release? true)
+      (is (= 1 (timed-deref in-flight)))
+      (is (= 0 (.size cache)))
+      (is (= 2 (.get cache "a" (constantly 2))))))
+  (testing "an invalidation racing a call's completion never leaves its result memoized"
+    (let [stale (atom 0)]
+      (dotimes [_ 1000]
+        (let [cache (create-cache 10 0)
+              started? (promise)
+              release? (promise)
+              in-flight (future (.get cache "a" (fn [] (deliver started? true) @release? 1)))
+              _ @started?
+              invalidation (future (.invalidate cache))]
+          (deliver release? true)
+          (timed-deref invalidation)
+          (timed-deref in-flight)
+          (when (pos? (.size cache))
+            (swap! stale inc))))
+      (is (= 0 @stale)))))
@@ -0,0 +1,91 @@
+(ns puppetlabs.services.jruby-pool-manager.borrow-recorder-test
+  (:require [clojure.test :refer :all]
+            [puppetlabs.kitchensink.core :as ks]
+            [schema.test :as schema-test]
+            [puppetlabs.services.jruby-pool-manager.jruby-core :as jruby-core]
+            [puppetlabs.services.jruby-pool-manager.jruby-testutils :as jruby-testutils]
+            [puppetlabs.services.jruby-pool-manager.impl.borrow-recorder :as borrow-recorder])
+  (:import (com.puppetlabs.jruby_utils.pool BorrowJournal BorrowJournal$Record)
+           (java.nio.file Paths)
+           (java.util.concurrent TimeUnit)))
+
+(use-fixtures :once schema-test/validate-schemas)
+
+(defn- read-journal
+  [path]
+  (let [path (Paths/get path (into-array String []))]
+    {:records (BorrowJournal/read path)
+     :reasons (vec (BorrowJournal/readReasons path))}))
+
+(defn- millis
+  [nanos]
+  (.toMillis TimeUnit/NANOSECONDS nanos))
+
+(deftest borrow-recorder-test
+  (let [path (str (ks/temp-file-name "borrow-journal"))
+        config (jruby-testutils/jruby-config {:max-active-instances 1})]
+    (jruby-testutils/with-pool-context
+     pool-context
+     jruby-testutils/default-services
+     config
+     (let [journal (borrow-recorder/create-journal path 100)]
+       (jruby-core/register-event-handler pool-context (borrow-recorder/event-handler journal))
+       (jruby-core/with-jruby-instance jruby-instance pool-context :test-borrow
+         (Thread/sleep 50))
+       (jruby-core/with-lock pool-context :test-lock
+         (Thread/sleep 20))
+       (borrow-recorder/close-journal! journal)))
+    (let [{:keys [records reasons]} (read-journal path)
+          reason (fn [^BorrowJournal$Record r] (get reasons (.reasonId r)))]
+      (testing "borrows, returns and locks are recorded in order"
+        (is (= [BorrowJournal/BORROWED BorrowJournal/RETURNED
+                BorrowJournal/LOCK_ACQUIRED BorrowJournal/LOCK_RELEASED]
+               (map #(.type ^BorrowJournal$Record %) records)))
+        (is (= [":test-borrow" ":test-borrow" ":test-lock" ":test-lock"]
+               (map reason records))))
+      (testing "returns record how long the instance was held"
+        (let [^BorrowJournal$Record returned (second records)]
+          (is (<= 50 (millis (.holdNanos returned))))
+          (is (= (.instanceId ^BorrowJournal$Record (first records))
+                 (.instanceId returned)))))
+      (testing "lock releases record how long the lock was held"
+        (is (<= 20 (millis (.holdNanos ^BorrowJournal$Record (last records)))))))
+    (testing "the journal can be replayed against a pool created from a config"
+      (let [report (borrow-recorder/replay path config 2.0)]
+        (is (= 1 (.getBorrowCount report)))
+        (is (= 1 (.getLockCount report)))
+        (is (= 0 (.getFailureCount report)))
+        (is (<= 25 (millis (.getElapsedNanos report))))))))
+
+(deftest request-reasons-test
+  (let [path (str (ks/temp-file-name "borrow-journal"))
+        journal (borrow-recorder/create-journal path 100)
+        handle (borrow-recorder/event-handler journal)]
+    (doseq [n (range 10)
+            :let [reason {:request {:request-method :get
+                                    :route-id "catalog"
+                                    :uri (str "/catalog/node" n)}}]]
+      (handle {:type :instance-borrowed :reason reason :instance nil}))
+    (handle {:type :instance-borrowed :reason {:operation :flush} :instance nil})
+    (handle {:type :instance-borrowed :reason nil :instance nil})
+    (borrow-recorder/close-journal! journal)
+    (testing "requests are recorded by their method and route, not the whole request"
+      (is (= ["[:get \"catalog\"]" "#{:operation}" "nil"]
+             (:reasons (read-journal path))))
+      (is (= 12 (count (:records (read-journal path))))))))
+
+(deftest reason-table-test
+  (let [path (Paths/get (str (ks/temp-file-name "borrow-journal")) (into-array String []))
+        journal (BorrowJournal. path 1)]
+    (testing "reasons are assigned ids in the order they're first seen"
+      (is (= 0 (.reasonId journal ":a")))
+      (is (= 1 (.reasonId journal ":b")))
+      (is (= 0 (.reasonId journal ":a"))))
+    (testing "events beyond the journal's capacity are dropped"
+      (.append journal BorrowJournal/BORROWED 1 0 0 0)
+      (.append journal BorrowJournal/RETURNED 1 0 0 0)
+      (is (= 1 (.getRecordCount journal)))
+      (is (= 1 (.getDroppedCount journal))))
+    (.close journal)
+    (is (= [":a" ":b"] (vec (BorrowJournal/readReasons path))))
+    (is (= 1 (count (BorrowJournal/read path))))))
@@ -0,0 +1,107 @@
+(ns puppetlabs.services.jruby-pool-manager.compile-cache-test
+  (:require [clojure.edn :as edn]
+            [clojure.java.io :as io]
+            [clojure.test :refer :all]
+            [me.raynes.fs :as fs]
+            [schema.test :as schema-test]
+            [puppetlabs.services.jruby-pool-manager.jruby-testutils :as jruby-testutils]
+            [puppetlabs.services.jruby-pool-manager.impl.compile-cache :as compile-cache]
+            [puppetlabs.services.jruby-pool-manager.impl.jruby-internal :as jruby-internal]))
+
+(use-fixtures :once schema-test/validate-schemas)
+
+(defn- sha-256
+  [f]
+  (format "%064x" (BigInteger. 1 (.digest (java.security.MessageDigest/getInstance "SHA-256")
+                                          (java.nio.file.Files/readAllBytes (.toPath f))))))
+
+(defn- write-entry!
+  "Writes a cache entry for `source` as if it had been compiled."
+  [mirror base source]
+  (fs/mkdirs mirror)
+  (spit (io/file mirror (str base ".class")) "not really bytecode")
+  (spit (io/file mirror (str base ".source.edn"))
+        (pr-str {:sha256 (sha-256 source)
+                 :size (.length source)
+                 :modified (.lastModified source)
+                 :compiled? true})))
+
+(deftest load-path-test
+  (let [load-dir (str (fs/temp-dir "compile-cache-test"))
+        cache-dir (str (fs/temp-dir "compile-cache-test"))]
+    (testing "the load path is unchanged without a compile cache"
+      (is (= [load-dir "uri:classloader:/lib"]
+             (compile-cache/load-path
+              (jruby-testutils/jruby-config {:ruby-load-path [load-dir "uri:classloader:/lib"]})))))
+    (testing "each directory is preceded by its mirror in the compile cache"
+      (let [root (compile-cache/cache-root cache-dir)]
+        (is (= [(.getAbsolutePath (compile-cache/mirror-dir root load-dir))
+                load-dir
+                "uri:classloader:/lib"]
+               (compile-cache/load-path
+                (jruby-testutils/jruby-config {:ruby-load-path [load-dir "uri:classloader:/lib"]
+                                               :compile-cache-dir cache-dir}))))))))
+
+(deftest evict-stale-test
+  (let [load-dir (str (fs/temp-dir "compile-cache-test"))
+        root (compile-cache/cache-root (str (fs/temp-dir "compile-cache-test")))
+        mirror (compile-cache/mirror-dir root load-dir)
+        source (io/file load-dir "lib" "foo.rb")]
+    (fs/mkdirs (.getParentFile source))
+    (spit source "module Foo; end")
+    (testing "entries for unchanged sources are kept"
+      (write-entry! mirror "lib/foo" source)
+      (is (= 0 (compile-cache/evict-stale! root load-dir)))
+      (is (fs/exists? (io/file mirror "lib/foo.class"))))
+    (testing "touching a source doesn't evict its entry"
+      (.setLastModified source (+ 10000 (.lastModified source)))
+      (is (= 0 (compile-cache/evict-stale! root load-dir)))
+      (is (fs/exists? (io/file mirror "lib/foo.class")))
+      (is (= (.lastModified source)
+             (:modified (edn/read-string (slurp (io/file mirror "lib/foo.source.edn")))))))
+    (testing "entries for changed sources are evicted"
+      (spit source "module Foo; BAR = 1; end")
+      (is (= 1 (compile-cache/evict-stale! root load-dir)))
+      (is (not (fs/exists? (io/file mirror "lib/foo.class"))))
+      (is (not (fs/exists? (io/file mirror "lib/foo.source.edn")))))
+    (testing "entries for deleted sources are evicted"
+      (write-entry! mirror "lib/foo" source)
+      (fs/delete source)
+      (is (= 1 (compile-cache/evict-stale! root load-dir)))
+      (is (not (fs/exists? (io/file mirror "lib/foo.class")))))
+    (testing "compiled classes without a record are evicted"
+      (spit (io/file mirror "lib/bar.class") "not really bytecode")
+      (is (= 1 (compile-cache/evict-stale! root load-dir)))
+      (is (not (fs/exists? (io/file mirror "lib/bar.class")))))))
+
+(deftest refresh-test
+  (let [load-dir (str (fs/temp-dir "compile-cache-test"))
+        cache-dir (str (fs/temp-dir "compile-cache-test"))
+        config (jruby-testutils/jruby-config {:ruby-load-path [load-dir]
+                                              :compile-cache-dir cache-dir})
+        mirror (compile-cache/mirror-dir (compile-cache/cache-root cache-dir) load-dir)]
+    (spit (io/file load-dir "compile_cache_test.rb")
+          "module CompileCacheTest; def self.answer; 42; end; end")
+    (testing "nothing is done without a compile cache"
+      (is (nil? (compile-cache/refresh! (assoc config :compile-cache-dir nil)))))
+    (testing "sources are compiled in the background"
+      (.join (compile-cache/refresh! config))
+      (let [record (edn/read-string (slurp (io/file mirror "compile_cache_test.source.edn")))]
+        (is (:compiled? record))
+        (is (fs/exists? (io/file mirror "compile_cache_test.class")))))
+    (testing "scripting containers load the compiled source"
+      (let [container (jruby-internal/create-scripting-container config)]
+        (try
+          (is (= 42 (.runScriptlet container "require 'compile_cache_test'; CompileCacheTest.answer")))
+          (testing "from the compiled class rather than the source"
+            (is (= [(.getAbsolutePath (io/file mirror "compile_cache_test.class"))]
+                   (vec (.runScriptlet container
+                                       "$LOADED_FEATURES.grep(/compile_cache_test/).map { |f| File.expand_path(f) }")))))
+          (finally
+            (.terminate container)))))
+    (testing "changed sources are recompiled"
+      (spit (io/file load-dir "compile_cache_test.rb")
+            "module CompileCacheTest; def self.answer; 40 + 3; end; end")
+      (.join (compile-cache/refresh! config))
+      (is (= (sha-256 (io/file load-dir "compile_cache_test.rb"))
+             (:sha256 (edn/read-string (slurp (io/file mirror "compile_cache_test.source.edn")))))))))
@@ -0,0 +1,59 @@
+(ns puppetlabs.services.jruby-pool-manager.gemspec-index-test
+  (:require [clojure.java.io :as io]
+            [clojure.test :refer :all]
+            [me.raynes.fs :as fs]
+            [schema.test :as schema-test]
+            [puppetlabs.services.jruby-pool-manager.jruby-testutils :as jruby-testutils]
+            [puppetlabs.services.jruby-pool-manager.impl.gemspec-index :as gemspec-index]
+            [puppetlabs.services.jruby-pool-manager.impl.jruby-internal :as jruby-internal])
+  (:import (java.io File)))
+
+(use-fixtures :once schema-test/validate-schemas)
+
+(defn- write-gemspec!
+  [gem-home version]
+  (let [f (io/file gem-home "specifications" (str "gemspec-index-test-" version ".gemspec"))]
+    (fs/mkdirs (.getParentFile f))
+    (spit f (str "$gemspec_evaluated = true\n"
+                 "Gem::Specification.new do |s|\n"
+                 "  s.name = 'gemspec-index-test'\n"
+                 "  s.version = '" version "'\n"
+                 "  s.summary = 'A gem for testing the gemspec index'\n"
+                 "  s.authors = ['Puppet']\n"
+                 "  s.require_paths = ['lib', 'ext']\n"
+                 "end\n"))
+    (.getAbsolutePath f)))
+
+(defn- describe-spec
+  [config gemspec]
+  (let [container (jruby-internal/create-scripting-container config)]
+    (try
+      (.runScriptlet container
+                     (format "s = Gem::Specification.load('%s')
+                              \"#{s.name} #{s.version} #{s.require_paths.join(',')} #{$gemspec_evaluated.inspect}\""
+                             gemspec))
+      (finally
+        (.terminate container)))))
+
+(deftest gem-dirs-test
+  (is (= ["/gems/home" "/gems/a" "/gems/b"]
+         (gemspec-index/gem-dirs
+          (jruby-testutils/jruby-config {:gem-home "/gems/home"
+                                         :gem-path (str "/gems/a" File/pathSeparator "/gems/b")})))))
+
+(deftest gemspec-index-test
+  (let [gem-home (str (fs/temp-dir "gemspec-index-test"))
+        config (jruby-testutils/jruby-config {:gem-home gem-home
+                                              :gemspec-index true})
+        gemspec (write-gemspec! gem-home "1.0.0")]
+    (testing "the first container evaluates the gemspecs to build the index"
+      (is (= "gemspec-index-test 1.0.0 lib,ext true" (describe-spec config gemspec))))
+    (testing "later containers restore specifications from the index"
+      (is (= "gemspec-index-test 1.0.0 lib,ext nil" (describe-spec config gemspec))))
+    (testing "the index is rebuilt once the gemspecs change"
+      (let [gemspec (write-gemspec! gem-home "2.0.0")]
+        (is (= "gemspec-index-test 2.0.0 lib,ext true" (describe-spec config gemspec)))
+        (is (= "gemspec-index-test 2.0.0 lib,ext nil" (describe-spec config gemspec)))))
+    (testing "specifications aren't indexed unless enabled"
+      (is (= "gemspec-index-test 1.0.0 lib,ext true"
+             (describe-spec (assoc config :gemspec-index false) gemspec))))))
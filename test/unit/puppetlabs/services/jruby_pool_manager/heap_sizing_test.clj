@@ -0,0 +1,50 @@
+(ns puppetlabs.services.jruby-pool-manager.heap-sizing-test
+  (:require [clojure.test :refer :all]
+            [puppetlabs.kitchensink.core :as ks]
+            [schema.test :as schema-test]
+            [puppetlabs.services.jruby-pool-manager.jruby-testutils :as jruby-testutils]
+            [puppetlabs.services.jruby-pool-manager.impl.heap-sizing :as heap-sizing]
+            [puppetlabs.services.jruby-pool-manager.impl.jruby-agents :as jruby-agents]
+            [puppetlabs.services.jruby-pool-manager.impl.jruby-internal :as jruby-internal]))
+
+(use-fixtures :once schema-test/validate-schemas)
+
+(def megabyte (* 1024 1024))
+
+(deftest instance-limit-test
+  (let [config (jruby-testutils/jruby-config {:heap-budget 100
+                                              :max-active-instances 8})]
+    (testing "as many instances as fit within the budget are allowed"
+      (is (= {:instance-bytes (* 30 megabyte) :memory-limit 3 :core-limit 15 :size 3}
+             (heap-sizing/instance-limit config (* 30 megabyte) 16))))
+    (testing "the pool is no larger than the cores or the configured maximum allow"
+      (is (= 1 (:size (heap-sizing/instance-limit config (* 30 megabyte) 2))))
+      (is (= 8 (:size (heap-sizing/instance-limit config megabyte 16)))))
+    (testing "the pool always has at least one instance"
+      (is (= 1 (:size (heap-sizing/instance-limit config (* 200 megabyte) 16)))))
+    (testing "implausibly small measurements are rounded up"
+      (is (= heap-sizing/min-instance-bytes
+             (:instance-bytes (heap-sizing/instance-limit config -5 16)))))))
+
+(deftest default-max-active-instances-test
+  (testing "a heap budget rather than a fixed cap limits the default pool size"
+    (is (= (max 1 (dec (ks/num-cpus)))
+           (:max-active-instances (jruby-testutils/jruby-config {:heap-budget 1024}))))))
+
+(deftest heap-budget-limits-pool-test
+  ;; Each instance retains far more than a megabyte, so only one fits
+  (jruby-testutils/with-pool-context
+   pool-context
+   jruby-testutils/default-services
+   (jruby-testutils/jruby-config {:max-active-instances 3
+                                  :heap-budget 1})
+   (is (jruby-testutils/wait-for-predicate
+        #(:heap-limit (jruby-internal/get-pool-state pool-context))))
+   (testing "the pool is only filled with as many instances as fit in the budget"
+     (is (= 1 (:heap-limit (jruby-internal/get-pool-state pool-context))))
+     (is (= 1 (jruby-internal/get-pool-size pool-context)))
+     (is (jruby-testutils/wait-for-instances (jruby-internal/get-pool pool-context) 1))
+     (is (= 1 (count (.getRegisteredElements (jruby-internal/get-pool pool-context))))))
+   (testing "the pool doesn't grow beyond the budget"
+     (is (false? (jruby-agents/grow-pool! pool-context)))
+     (is (= 1 (jruby-internal/get-pool-size pool-context))))))
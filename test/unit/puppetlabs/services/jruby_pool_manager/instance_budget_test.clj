@@ -0,0 +1,176 @@
+(ns puppetlabs.services.jruby-pool-manager.instance-budget-test
+  (:require [clojure.test :refer :all]
+            [schema.test :as schema-test]
+            [puppetlabs.services.jruby-pool-manager.jruby-testutils :as jruby-testutils]
+            [puppetlabs.services.jruby-pool-manager.jruby-core :as jruby-core]
+            [puppetlabs.services.jruby-pool-manager.jruby-schemas :as jruby-schemas]
+            [puppetlabs.services.jruby-pool-manager.impl.instance-budget :as instance-budget]
+            [puppetlabs.services.jruby-pool-manager.impl.jruby-agents :as jruby-agents]
+            [puppetlabs.services.jruby-pool-manager.impl.jruby-internal :as jruby-internal]
+            [puppetlabs.services.jruby-pool-manager.impl.jruby-pool-manager-core :as jruby-pool-manager-core]))
+
+(use-fixtures :once schema-test/validate-schemas)
+
+(defn- demand
+  [size min max free waiting]
+  {:size size :min min :max max :free free :waiting waiting})
+
+(deftest plan-rebalance-test
+  (testing "pools without waiting borrowers are left alone"
+    (is (= [] (instance-budget/plan-rebalance [(demand 2 1 4 0 0)
+                                               (demand 2 1 4 2 0)]
+                                              4))))
+  (testing "unallocated capacity goes to the pools with the most waiters first"
+    (is (= [{:grow 1}]
+           (instance-budget/plan-rebalance [(demand 2 1 4 0 1)
+                                            (demand 2 1 4 0 5)]
+                                           1))))
+  (testing "pools never grow past their maximum"
+    (is (= [] (instance-budget/plan-rebalance [(demand 4 1 4 0 3)] 2))))
+  (testing "once the budget is allocated, idle capacity above a pool's minimum is lent"
+    (is (= [{:grow 0 :from 2}]
+           (instance-budget/plan-rebalance [(demand 2 1 4 0 3)
+                                            (demand 3 1 4 1 0)
+                                            (demand 3 1 4 2 0)]
+                                           0))))
+  (testing "pools are not shrunk below their minimum, nor while they have waiters"
+    (is (= [] (instance-budget/plan-rebalance [(demand 2 1 4 0 3)
+                                               (demand 2 2 4 2 0)
+                                               (demand 3 1 4 1 1)]
+                                              0)))))
+
+(defn- wait-for-waiter
+  [pool-context]
+  (let [pool (jruby-internal/get-pool pool-context)
+        deadline (+ (System/currentTimeMillis) 10000)]
+    (while (and (zero? (.getWaiterCount (.getStatistics pool)))
+                (< (System/currentTimeMillis) deadline))
+      (Thread/sleep 10))))
+
+(deftest budget-lends-capacity-on-demand-test
+  (let [budget (instance-budget/create-budget {:max-total-instances 3})
+        config (jruby-testutils/jruby-config {:min-active-instances 1
+                                              :max-active-instances 2})
+        pool-a (jruby-pool-manager-core/create-pool config budget)
+        pool-b (jruby-pool-manager-core/create-pool config budget)]
+    (try
+      (testing "pools start with their guaranteed minimum"
+        (is (= 1 (jruby-internal/get-pool-size pool-a)))
+        (is (= 2 @(:allocated budget))))
+      (testing "a pool with waiting borrowers is grown from the unallocated budget"
+        (let [instance (jruby-core/borrow-from-pool pool-a :test [])
+              waiting (future (jruby-core/borrow-from-pool pool-a :test []))]
+          (wait-for-waiter pool-a)
+          (instance-budget/rebalance! budget)
+          (is (= 2 (jruby-internal/get-pool-size pool-a)))
+          (is (= 3 @(:allocated budget)))
+          (let [other (deref waiting 10000 :timed-out)]
+            (is (jruby-schemas/jruby-instance? other))
+            (jruby-core/return-to-pool pool-a other :test []))
+          (jruby-core/return-to-pool pool-a instance :test [])))
+      (testing "once the budget is allocated, idle instances are lent between pools"
+        (let [instance (jruby-core/borrow-from-pool pool-b :test [])
+              waiting (future (jruby-core/borrow-from-pool pool-b :test []))]
+          (wait-for-waiter pool-b)
+          (instance-budget/rebalance! budget)
+          (is (= 1 (jruby-internal/get-pool-size pool-a)))
+          (is (= 2 (jruby-internal/get-pool-size pool-b)))
+          (is (= 3 @(:allocated budget)))
+          (jruby-core/return-to-pool pool-b (deref waiting 10000 :timed-out) :test [])
+          (jruby-core/return-to-pool pool-b instance :test [])))
+      (testing "pools cannot be created unless their minimum can be guaranteed"
+        (is (thrown? IllegalStateException
+                     (jruby-pool-manager-core/create-pool-context config budget))))
+      (finally
+        (jruby-core/flush-pool-for-shutdown! pool-a)
+        (jruby-core/flush-pool-for-shutdown! pool-b)
+        (is (= 0 @(:allocated budget)))
+        (instance-budget/stop! budget)))))
+
+(deftest budget-follows-pool-size-test
+  (let [budget (instance-budget/create-budget {:max-total-instances 4})
+        ;; Each instance retains far more than a megabyte, so only one fits
+        config (jruby-testutils/jruby-config {:min-active-instances 3
+                                              :max-active-instances 3
+                                              :heap-budget 1})
+        pool-context (jruby-pool-manager-core/create-pool config budget)]
+    (try
+      (testing "instances removed to fit a heap budget are returned to the budget"
+        (is (jruby-testutils/wait-for-predicate
+             #(:heap-limit (jruby-internal/get-pool-state pool-context))))
+        (is (= 1 (jruby-internal/get-pool-size pool-context)))
+        (is (= 1 @(:allocated budget))))
+      (finally
+        (jruby-core/flush-pool-for-shutdown! pool-context)
+        (testing "the rest are returned once the pool is shut down"
+          (is (= 0 @(:allocated budget))))
+        (instance-budget/stop! budget)))))
+
+(deftest degraded-capacity-returned-to-budget-test
+  (let [budget (instance-budget/create-budget {:max-total-instances 4})
+        config (jruby-testutils/jruby-config
+                {:min-active-instances 3
+                 :max-active-instances 3
+                 :creation-retries 1
+                 :creation-retry-backoff 60000
+                 :lifecycle {:initialize-pool-instance
+                             (fn [instance]
+                               (when (= 2 (:id instance))
+                                 (throw (IllegalStateException. "BORK!")))
+                               instance)}})
+        pool-context (jruby-pool-manager-core/create-pool config budget)]
+    (try
+      (testing "an instance given up on is returned to the budget"
+        (is (jruby-testutils/wait-for-predicate
+             #(= 1 (:degraded-instances (jruby-core/pool-statistics pool-context)))))
+        (is (= 2 (jruby-internal/get-pool-size pool-context)))
+        (is (= 2 @(:allocated budget))))
+      (finally
+        (jruby-core/flush-pool-for-shutdown! pool-context)
+        (is (= 0 @(:allocated budget)))
+        (instance-budget/stop! budget)))))
+
+(defn- block-agent!
+  "Occupies the pool's modify-instance-agent until the returned promise is
+  delivered."
+  [pool-context]
+  (let [unblock (promise)]
+    (jruby-agents/send-agent (jruby-agents/get-modify-instance-agent pool-context)
+                             #(deref unblock))
+    unblock))
+
+(defn- total-size
+  [& pools]
+  (reduce + (map jruby-internal/get-pool-size pools)))
+
+(deftest late-resizes-keep-budget-test
+  (let [budget (instance-budget/create-budget {:max-total-instances 3})
+        config (jruby-testutils/jruby-config {:min-active-instances 1
+                                              :max-active-instances 2})
+        pool-a (jruby-pool-manager-core/create-pool config budget)]
+    (try
+      (with-redefs [instance-budget/resize-timeout 100]
+        (testing "a grow which outlasts the timeout is only counted once it happens"
+          (let [unblock (block-agent! pool-a)]
+            (is (not (instance-budget/apply-move! budget [pool-a] {:grow 0})))
+            (is (= 1 @(:allocated budget)))
+            (deliver unblock true)
+            (is (jruby-testutils/wait-for-predicate
+                 #(= 2 (jruby-internal/get-pool-size pool-a))))
+            (is (= 2 @(:allocated budget)))))
+        (let [pool-b (jruby-pool-manager-core/create-pool config budget)]
+          (try
+            (testing "a shrink which outlasts the timeout still returns its instance"
+              (let [unblock (block-agent! pool-a)]
+                (is (not (instance-budget/apply-move! budget [pool-a pool-b] {:grow 1 :from 0})))
+                (deliver unblock true)
+                (is (jruby-testutils/wait-for-predicate
+                     #(= 1 (jruby-internal/get-pool-size pool-a))))
+                (is (= 1 (jruby-internal/get-pool-size pool-b)))
+                (is (= (total-size pool-a pool-b) @(:allocated budget)))))
+            (finally
+              (jruby-core/flush-pool-for-shutdown! pool-b)))))
+      (finally
+        (jruby-core/flush-pool-for-shutdown! pool-a)
+        (is (= 0 @(:allocated budget)))
+        (instance-budget/stop! budget)))))
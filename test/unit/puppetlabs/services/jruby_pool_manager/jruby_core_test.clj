@@ -62,6 +62,19 @@
     (is (= 4 (jruby-core/default-pool-size 32)))
     (is (= 4 (jruby-core/default-pool-size 64)))))
 
+(deftest min-active-instances-default-test
+  (testing "a pool is guaranteed one instance unless configured otherwise"
+    (is (= 1 (:min-active-instances
+              (jruby-core/initialize-config (assoc min-config :min-active-instances nil
+                                                   :max-active-instances 4)))))
+    (is (= 3 (:min-active-instances
+              (jruby-core/initialize-config (assoc min-config :min-active-instances 3
+                                                   :max-active-instances 4))))))
+  (testing "the minimum is never more than the maximum"
+    (is (= 2 (:min-active-instances
+              (jruby-core/initialize-config (assoc min-config :min-active-instances 3
+                                                   :max-active-instances 2)))))))
+
 (deftest cli-run!-error-handling-test
   (testing "when command is not found as a resource"
     (logutils/with-test-logging
@@ -1,7 +1,12 @@
 (ns puppetlabs.services.jruby-pool-manager.jruby-interpreter-test
   (:require [clojure.test :refer :all]
             [puppetlabs.services.jruby-pool-manager.jruby-testutils :as jruby-testutils]
-            [puppetlabs.services.jruby-pool-manager.jruby-core :as jruby-core]))
+            [puppetlabs.services.jruby-pool-manager.jruby-core :as jruby-core])
+  (:import (com.puppetlabs.jruby_utils.jruby InternalScriptingContainer)
+           (java.io ByteArrayOutputStream)
+           (java.nio ByteBuffer)
+           (java.util.function Consumer)
+           (org.jruby.embed LocalContextScope)))
 
 (deftest jruby-env-vars
   (testing "the environment used by the JRuby interpreters"
@@ -31,3 +36,94 @@
        (is (= #{"HOME" "PATH" "GEM_HOME" "JARS_NO_REQUIRE" "JARS_REQUIRE" "FOO" "RUBY"}
               (set (remove (set jruby-core/proxy-vars-allowed-list) (keys jruby-env)))))
        (is (= (.get jruby-env "FOO") "for_jruby"))))))
+
+(deftest cached-scriptlets
+  (jruby-testutils/with-scripting-container
+   jruby-interpreter
+   (jruby-testutils/jruby-config {:scriptlet-cache-max-entries 2})
+   (testing "a cached scriptlet is parsed once and can be run repeatedly"
+     (let [unit (.parseScriptlet jruby-interpreter "$cached_count = ($cached_count || 0) + 1")]
+       (is (identical? unit (.parseScriptlet jruby-interpreter "$cached_count = ($cached_count || 0) + 1")))
+       (is (= 1 (.runCachedScriptlet jruby-interpreter "$cached_count = ($cached_count || 0) + 1")))
+       (is (= 2 (.runCachedScriptlet jruby-interpreter "$cached_count = ($cached_count || 0) + 1")))
+       (is (= 1 (.getScriptletCacheSize jruby-interpreter)))))
+   (testing "results are converted to Java objects as by runScriptlet"
+     (is (= (.runScriptlet jruby-interpreter "'a' * 3")
+            (.runCachedScriptlet jruby-interpreter "'a' * 3"))))
+   (testing "the least recently used scriptlets are discarded beyond the limit"
+     (.runCachedScriptlet jruby-interpreter "1 + 1")
+     (is (= 2 (.getScriptletCacheSize jruby-interpreter))))))
+
+(deftest cached-scriptlets-shared-by-threads
+  (jruby-testutils/with-scripting-container
+   jruby-interpreter
+   (jruby-testutils/jruby-config {:multithreaded true})
+   (let [script "x = Thread.current.object_id; sleep 0.001; x == Thread.current.object_id"
+         runs (doall (for [_ (range 8)]
+                       (future
+                         (doall (repeatedly 20 #(.runCachedScriptlet jruby-interpreter script))))))]
+     (testing "a container which threads share runs a scriptlet in each thread at once"
+       (is (every? true? (mapcat deref runs))))
+     (testing "without caching it"
+       (is (= 0 (.getScriptletCacheSize jruby-interpreter))))))
+  (testing "a CONCURRENT container doesn't cache scriptlets"
+    (let [container (InternalScriptingContainer. LocalContextScope/CONCURRENT)]
+      (try
+        (is (not (identical? (.parseScriptlet container "1 + 1")
+                             (.parseScriptlet container "1 + 1"))))
+        (is (= 0 (.getScriptletCacheSize container)))
+        (finally
+          (.terminate container))))))
+
+(deftest zero-copy-bytes
+  (jruby-testutils/with-scripting-container
+   jruby-interpreter
+   (jruby-testutils/jruby-config)
+   (let [bytes (.getBytes "hello, world" "UTF-8")
+         receiver (.runScriptlet jruby-interpreter
+                                 (str "Object.new.tap { |o| def o.same(s); s; end; "
+                                      "def o.upcased(s); s.upcase; end; "
+                                      "def o.encoding_of(s); s.encoding.to_s; end }"))]
+     (testing "wrapped bytes are passed to Ruby as a binary String"
+       (is (= 12 (.callMethodWithArgArray jruby-interpreter
+                                          (.wrapBytes jruby-interpreter bytes)
+                                          "bytesize" (object-array []) Object)))
+       (is (= "ASCII-8BIT" (.callMethodWithArgArray jruby-interpreter receiver "encoding_of"
+                                                    (object-array [(.wrapBytes jruby-interpreter bytes 7 5)])
+                                                    String))))
+     (testing "bytes returned from Ruby share the storage they were passed in"
+       (let [buffer (.callMethodForBytes jruby-interpreter receiver "same"
+                                         (object-array [(.wrapBytes jruby-interpreter bytes)]))]
+         (aset-byte bytes 0 (byte (int \j)))
+         (is (= (int \j) (.get buffer 0)))
+         (is (= 12 (.remaining buffer)))))
+     (testing "Ruby copies a wrapped String before modifying it"
+       (let [buffer (.callMethodForBytes jruby-interpreter receiver "upcased"
+                                         (object-array [(.wrapBytes jruby-interpreter bytes)]))
+             upcased (byte-array (.remaining buffer))]
+         (.get buffer upcased)
+         (is (= "JELLO, WORLD" (String. upcased "UTF-8")))
+         (is (= "jello, world" (String. bytes "UTF-8"))))))))
+
+(deftest streamed-output
+  (jruby-testutils/with-scripting-container
+   jruby-interpreter
+   (jruby-testutils/jruby-config)
+   (let [receiver (.runScriptlet jruby-interpreter
+                                 (str "Object.new.tap { |o| def o.stream(n, io); "
+                                      "n.times { |i| io.write(\"chunk#{i}\\n\") }; n; end }"))]
+     (testing "a Ruby method can write its output to an OutputStream"
+       (let [out (ByteArrayOutputStream.)]
+         (is (= 3 (.callMethodWithOutputStream jruby-interpreter receiver "stream"
+                                               (object-array [3]) out)))
+         (is (= "chunk0\nchunk1\nchunk2\n" (.toString out "UTF-8")))))
+     (testing "each write can be handed on as it is made"
+       (let [chunks (atom [])
+             consumer (reify Consumer
+                        (accept [_ buffer]
+                          (let [chunk (byte-array (.remaining ^ByteBuffer buffer))]
+                            (.get ^ByteBuffer buffer chunk)
+                            (swap! chunks conj (String. chunk "UTF-8")))))]
+         (is (= 2 (.callMethodWithChunks jruby-interpreter receiver "stream"
+                                         (object-array [2]) consumer)))
+         (is (= ["chunk0\n" "chunk1\n"] @chunks)))))))
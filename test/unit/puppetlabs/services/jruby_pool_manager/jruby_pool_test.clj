@@ -8,9 +8,13 @@
             [puppetlabs.services.jruby-pool-manager.impl.jruby-internal :as jruby-internal]
             [puppetlabs.trapperkeeper.testutils.logging :as logutils]
             [puppetlabs.services.jruby-pool-manager.impl.jruby-pool-manager-core :as jruby-pool-manager-core]
+            [puppetlabs.services.jruby-pool-manager.impl.warm-up :as warm-up]
+            [puppetlabs.services.jruby-pool-manager.impl.canary :as canary]
             [puppetlabs.services.jruby-pool-manager.jruby-schemas :as jruby-schemas]
             [puppetlabs.services.protocols.jruby-pool :as pool-protocol])
   (:import (clojure.lang ExceptionInfo)
+           (java.lang.management ManagementFactory)
+           (javax.management ObjectName)
            (puppetlabs.services.jruby_pool_manager.jruby_schemas ShutdownPoisonPill)))
 
 
@@ -36,6 +40,8 @@
       (is (= (jruby-core/default-pool-size (ks/num-cpus)) (:max-active-instances config))))
     (testing "max-borrows-per-instance is set to 0 if not specified"
       (is (= 0 (:max-borrows-per-instance config))))
+    (testing "shutdown-timeout is set to 0 if not specified"
+      (is (= 0 (:shutdown-timeout config))))
     (testing "max-borrows-per-instance is honored if specified"
       (is (= 5 (-> minimal-config
                    (assoc :max-borrows-per-instance 5)
@@ -207,6 +213,56 @@
           err-msg
           (jruby-core/borrow-from-pool-with-timeout pool-context :test []))))))
 
+(deftest prime-pools-degraded
+  (let [failing? (atom true)
+        attempts (atom 0)
+        init-fn (fn [instance]
+                  ;; Only the second instance fails, for as long as
+                  ;; `failing?` is set
+                  (when (and (= 2 (:id instance)) @failing?)
+                    (swap! attempts inc)
+                    (throw (IllegalStateException. "BORK!")))
+                  instance)
+        config (jruby-testutils/jruby-config {:max-active-instances 3
+                                              :creation-retries 2
+                                              :creation-retry-backoff 5000
+                                              :lifecycle {:initialize-pool-instance init-fn}})
+        pool-context (jruby-pool-manager-core/create-pool-context config)]
+    (jruby-agents/prime-pool! pool-context)
+    (try
+      (testing "an instance which fails is given up at once, and the pool serves without it"
+        (is (= 1 @attempts))
+        (is (= 2 (jruby-internal/get-pool-size pool-context)))
+        (is (= {:registered-instances 2 :degraded-instances 1 :creation-failures 1}
+               (select-keys (jruby-core/pool-statistics pool-context)
+                            [:registered-instances :degraded-instances :creation-failures])))
+        (let [instance (jruby-core/borrow-from-pool pool-context :test [])]
+          (is (jruby-schemas/jruby-instance? instance))
+          (jruby-core/return-to-pool pool-context instance :test [])))
+      (testing "the capacity given up is restored by a retry once instances can be created again"
+        (reset! failing? false)
+        (is (jruby-testutils/wait-for-predicate
+             #(= 3 (jruby-internal/get-pool-size pool-context)) 40 500))
+        (is (= 0 (:degraded-instances (jruby-core/pool-statistics pool-context))))
+        (is (= 1 @attempts)))
+      (finally
+        (jruby-core/flush-pool-for-shutdown! pool-context)))))
+
+(deftest prime-pools-degraded-to-nothing
+  (let [config (jruby-testutils/jruby-config {:max-active-instances 1
+                                              :creation-retries 2
+                                              :creation-retry-backoff 10})
+        pool-context (jruby-pool-manager-core/create-pool-context config)]
+    (testing "a pool with no instance left is poisoned after the retries"
+      (jruby-agents/prime-pool!
+       (assoc-in pool-context [:config :lifecycle :initialize-pool-instance]
+                 (fn [_] (throw (IllegalStateException. "BORK!")))))
+      (is (jruby-testutils/wait-for-predicate
+           #(= 3 (:creation-failures (jruby-core/pool-statistics pool-context)))))
+      (is (thrown-with-msg? IllegalStateException
+                            #"Unable to borrow JRubyInstance from pool"
+                            (jruby-core/borrow-from-pool pool-context :test []))))))
+
 (deftest test-default-pool-size
   (let [config (jruby-testutils/jruby-config)
         pool (jruby-pool-manager-core/create-pool-context config)
@@ -364,3 +420,342 @@
            pill (ShutdownPoisonPill. pool)]
        ; Returning a pill should be a noop
        (jruby-core/return-to-pool pool-context pill :test [])))))
+
+(deftest cached-call-test
+  (jruby-testutils/with-pool-context
+   pool-context
+   jruby-testutils/default-services
+   (jruby-testutils/jruby-config {:max-active-instances 1
+                                  :call-cache-max-entries 10})
+   (let [calls (atom 0)
+         call (fn [arg]
+                (jruby-core/cached-call pool-context :test "classify" [arg]
+                                        (fn [instance]
+                                          (swap! calls inc)
+                                          (is (jruby-schemas/jruby-instance? instance))
+                                          (str "classified " arg))))]
+     (testing "results are memoized by method name and arguments"
+       (is (= "classified foo" (call "foo")))
+       (is (= "classified foo" (call "foo")))
+       (is (= "classified bar" (call "bar")))
+       (is (= 2 @calls)))
+     (testing "the borrowed instance is returned to the pool"
+       (is (= 1 (jruby-core/free-instance-count (jruby-core/get-pool pool-context)))))
+     (testing "memoized results are discarded when the pool is flushed"
+       (jruby-core/flush-pool! pool-context)
+       (is (= "classified foo" (call "foo")))
+       (is (= 3 @calls))))))
+
+(deftest warm-up-test
+  (let [script (str (ks/temp-file-name "warm-up"))]
+    (spit script "$warmed_up = true")
+    (jruby-testutils/with-pool-context
+     pool-context
+     jruby-testutils/default-services
+     (jruby-testutils/jruby-config {:max-active-instances 1
+                                    :warm-up-script script
+                                    :warm-up-calls 5})
+     (let [calls (atom 0)
+           call (fn [arg]
+                  (jruby-core/cached-call pool-context :test "classify" [arg]
+                                          (fn [instance]
+                                            (swap! calls inc)
+                                            (.runScriptlet (:scripting-container instance)
+                                                           "$classified = ($classified || 0) + 1")
+                                            (str "classified " arg))))]
+       (testing "the warm-up script is run before the instance is added to the pool"
+         (let [instance (jruby-core/borrow-from-pool pool-context :test [])]
+           (is (true? (.runScriptlet (:scripting-container instance) "$warmed_up")))
+           (is (nil? (.runScriptlet (:scripting-container instance) "$classified")))
+           (jruby-core/return-to-pool pool-context instance :test [])))
+       (testing "recent cached calls are replayed against new instances"
+         (is (= "classified foo" (call "foo")))
+         (is (= 1 @calls))
+         (jruby-core/flush-pool! pool-context)
+         (let [instance (jruby-core/borrow-from-pool pool-context :test [])]
+           (is (< 1 @calls))
+           (testing "on the new instance itself"
+             (is (= (dec @calls) (.runScriptlet (:scripting-container instance) "$classified"))))
+           (is (true? (.runScriptlet (:scripting-container instance) "$warmed_up")))
+           (jruby-core/return-to-pool pool-context instance :test [])))))))
+
+(deftest call-recorder-test
+  (let [recorder (warm-up/create-call-recorder
+                  (jruby-testutils/jruby-config {:warm-up-calls 2}))
+        recorded (fn [] (map first (#'warm-up/recorded-calls recorder)))]
+    (testing "nothing is recorded unless warm-up calls are configured"
+      (is (nil? (warm-up/create-call-recorder (jruby-testutils/jruby-config {})))))
+    (testing "calls are kept least recently made first"
+      (warm-up/record-call! recorder :a identity)
+      (Thread/sleep 1)
+      (warm-up/record-call! recorder :b identity)
+      (is (= [:a :b] (recorded))))
+    (testing "making a call again makes it the most recent"
+      (Thread/sleep 1)
+      (warm-up/record-call! recorder :a identity)
+      (is (= [:b :a] (recorded))))
+    (testing "the least recent call is forgotten to make room for a new one"
+      (Thread/sleep 1)
+      (warm-up/record-call! recorder :c identity)
+      (is (= [:a :c] (recorded))))))
+
+(deftest canary-test
+  (let [config (jruby-testutils/jruby-config {:max-active-instances 4
+                                              :compile-mode :jit
+                                              :canary {:fraction 0.25
+                                                       :compile-mode "off"
+                                                       :jit-threshold 10
+                                                       :context-scope "threadsafe"}})]
+    (testing "canary settings are converted to keywords"
+      (is (= {:fraction 0.25 :compile-mode :off :jit-threshold 10 :context-scope :threadsafe}
+             (:canary config))))
+    (jruby-testutils/with-pool-context
+     pool-context
+     jruby-testutils/default-services
+     config
+     (let [instances (jruby-testutils/drain-pool pool-context 4)
+           by-profile (group-by #(get-in % [:internal :profile]) instances)]
+       (testing "the configured fraction of instances are canaries"
+         (is (= 1 (count (:canary by-profile))))
+         (is (= 3 (count (:default by-profile))))
+         (is (= {:default 3 :canary 1}
+                (frequencies (map :profile (jruby-core/instance-stats pool-context))))))
+       (testing "canaries are created with the alternate tuning"
+         (is (= "OFF" (str (.getCompileMode (:scripting-container (first (:canary by-profile)))))))
+         (is (= "JIT" (str (.getCompileMode (:scripting-container (first (:default by-profile))))))))
+       (Thread/sleep 20)
+       (doseq [instance instances]
+         (jruby-core/return-to-pool pool-context instance :test []))
+       (testing "borrows are counted for each profile"
+         (let [stats (jruby-core/profile-stats pool-context)]
+           (is (= #{:default :canary} (set (keys stats))))
+           (is (= 3 (get-in stats [:default :borrows])))
+           (is (= 1 (get-in stats [:canary :instances])))
+           (is (= 1 (get-in stats [:canary :borrows])))
+           (is (<= 20 (get-in stats [:canary :max-borrow-time])))
+           (is (pos? (get-in stats [:canary :borrows-per-instance-second])))))))
+    (testing "a replacement has the profile of the instance it replaces, whatever its id"
+      (let [pool (jruby-internal/instantiate-instance-pool 1 false)
+            canary-id (first (filter #(= :canary (canary/instance-profile config %)) (range 1 5)))
+            replacement (jruby-internal/create-pool-instance!
+                         pool 6 config false
+                         {:previous-retirement {:id canary-id :reason :pool-flush :borrow-count 3
+                                                :generation 0 :profile :canary}})]
+        (try
+          (is (= :default (canary/instance-profile config 6)))
+          (is (= :canary (get-in replacement [:internal :profile])))
+          (is (= "OFF" (str (.getCompileMode (:scripting-container replacement)))))
+          (finally
+            (.terminate (:scripting-container replacement))))))))
+
+(deftest broadcast-test
+  (jruby-testutils/with-pool-context
+   pool-context
+   jruby-testutils/default-services
+   (jruby-testutils/jruby-config {:max-active-instances 2})
+   (let [seen (atom #{})
+         borrowed (jruby-core/borrow-from-pool pool-context :test [])
+         result (jruby-core/broadcast! pool-context
+                                       #(swap! seen conj (:id %)))]
+     (testing "idle instances are visited immediately"
+       (is (= 1 (count @seen)))
+       (is (not (.isDone result))))
+     (testing "borrowed instances are visited when returned"
+       (jruby-core/return-to-pool pool-context borrowed :test [])
+       (is (nil? (deref result 10000 :timed-out)))
+       (is (= 2 (count @seen)))
+       (is (contains? @seen (:id borrowed)))))))
+
+(deftest pool-statistics-test
+  (jruby-testutils/with-pool-context
+   pool-context
+   jruby-testutils/default-services
+   (jruby-testutils/jruby-config {:max-active-instances 2})
+   (let [instance (jruby-core/borrow-from-pool pool-context :test [])]
+     (is (= {:free-instances 1
+             :borrowed-instances 1
+             :registered-instances 2
+             :waiting-borrowers 0
+             :locked? false
+             :locked-since nil
+             :degraded-instances 0
+             :creation-failures 0}
+            (jruby-core/pool-statistics pool-context)))
+     (jruby-core/return-to-pool pool-context instance :test []))))
+
+(defn- wait-for-registered-count
+  [pool expected]
+  (let [deadline (+ (System/currentTimeMillis) 10000)]
+    (while (and (not= expected (count (.getRegisteredElements pool)))
+                (< (System/currentTimeMillis) deadline))
+      (Thread/sleep 10))
+    (count (.getRegisteredElements pool))))
+
+(deftest shutdown-with-timeout-test
+  (testing "idle instances are terminated without waiting for borrowed ones"
+    (let [config (jruby-testutils/jruby-config {:max-active-instances 2
+                                                :shutdown-timeout 60000})
+          pool-context (jruby-pool-manager-core/create-pool-context config)
+          pool (jruby-core/get-pool pool-context)
+          _ (jruby-agents/prime-pool! pool-context)
+          borrowed (jruby-core/borrow-from-pool pool-context :test [])
+          shutdown (future (jruby-core/flush-pool-for-shutdown! pool-context))]
+      (is (= 1 (wait-for-registered-count pool 1)))
+      (is (instance? ShutdownPoisonPill (.borrowItem pool)))
+      (is (not (realized? shutdown)))
+      (testing "and borrowed instances are terminated once returned"
+        (jruby-core/return-to-pool pool-context borrowed :test [])
+        (is (nil? (deref shutdown 10000 :timed-out)))
+        (is (empty? (.getRegisteredElements pool))))))
+  (testing "instances returned past their max borrows are not replaced"
+    (let [config (jruby-testutils/jruby-config {:max-active-instances 2
+                                                :max-borrows-per-instance 1
+                                                :splay-instance-flush false
+                                                :shutdown-timeout 60000})
+          pool-context (jruby-pool-manager-core/create-pool-context config)
+          pool (jruby-core/get-pool pool-context)
+          _ (jruby-agents/prime-pool! pool-context)
+          borrowed (jruby-core/borrow-from-pool pool-context :test [])
+          shutdown (future (jruby-core/flush-pool-for-shutdown! pool-context))]
+      (is (= 1 (wait-for-registered-count pool 1)))
+      (jruby-core/return-to-pool pool-context borrowed :test [])
+      (is (nil? (deref shutdown 10000 :timed-out)))
+      (await (jruby-agents/get-modify-instance-agent pool-context))
+      (is (empty? (.getRegisteredElements pool)))
+      (is (= 1 (jruby-internal/get-pool-size pool-context)))))
+  (testing "instances still borrowed at the deadline are abandoned"
+    (let [config (jruby-testutils/jruby-config {:max-active-instances 1
+                                                :shutdown-timeout 500})
+          pool-context (jruby-pool-manager-core/create-pool-context config)
+          pool (jruby-core/get-pool pool-context)
+          _ (jruby-agents/prime-pool! pool-context)
+          borrowed (jruby-core/borrow-from-pool pool-context :test [])
+          start (System/currentTimeMillis)]
+      (try
+        (jruby-core/flush-pool-for-shutdown! pool-context)
+        (is (>= (- (System/currentTimeMillis) start) 500))
+        (is (= #{borrowed} (set (.getRegisteredElements pool))))
+        (finally
+          (.terminate (:scripting-container borrowed)))))))
+
+(deftest outstanding-borrows-test
+  (logutils/with-test-logging
+   (jruby-testutils/with-pool-context
+    pool-context
+    jruby-testutils/default-services
+    (jruby-testutils/jruby-config {:max-active-instances 2
+                                   :long-borrow-threshold 50
+                                   :capture-borrow-stacks true})
+    (let [instance (jruby-core/borrow-from-pool pool-context {:test "long"} [])
+          [borrow & others] (jruby-core/outstanding-borrows pool-context)]
+      (testing "borrows are listed with their thread, reason and stack"
+        (is (empty? others))
+        (is (= (:id instance) (:instance-id borrow)))
+        (is (= (.getName (Thread/currentThread)) (:thread borrow)))
+        (is (= {:test "long"} (:reason borrow)))
+        (is (seq (:stack borrow))))
+      (testing "borrows held past the threshold are reported by the watchdog"
+        (let [deadline (+ (System/currentTimeMillis) 10000)]
+          (while (and (not (logged? #"JRubyInstance \d+ has been borrowed by thread" :warn))
+                      (< (System/currentTimeMillis) deadline))
+            (Thread/sleep 10)))
+        (is (logged? #"JRubyInstance \d+ has been borrowed by thread" :warn)))
+      (testing "returned borrows are no longer listed"
+        (jruby-core/return-to-pool pool-context instance {:test "long"} [])
+        (is (empty? (jruby-core/outstanding-borrows pool-context))))
+      (testing "borrows returned by another thread are no longer listed"
+        (let [instance (jruby-core/borrow-from-pool pool-context :other-thread [])]
+          (is (= 1 (count (jruby-core/outstanding-borrows pool-context))))
+          @(future (jruby-core/return-to-pool pool-context instance :other-thread []))
+          (is (empty? (jruby-core/outstanding-borrows pool-context)))))))))
+
+(deftest instance-stats-test
+  (jruby-testutils/with-pool-context
+   pool-context
+   jruby-testutils/default-services
+   (jruby-testutils/jruby-config {:max-active-instances 1
+                                  :max-borrows-per-instance 2})
+   (let [instance (jruby-core/borrow-from-pool pool-context :test [])
+         [initial-stats] (jruby-core/instance-stats pool-context)]
+     (testing "new instances have no completed borrows or predecessor"
+       (is (= 0 (:borrow-count initial-stats)))
+       (is (= 0 (:busy-time initial-stats)))
+       (is (<= (:created-at initial-stats) (:last-borrowed-at initial-stats)))
+       (is (nil? (:previous-retirement initial-stats)))
+       (is (<= 0 (:creation-duration initial-stats)))
+       (is (= 0 (:warm-up-duration initial-stats))))
+     (Thread/sleep 20)
+     (jruby-core/return-to-pool pool-context instance :test [])
+     (testing "borrows are counted and timed"
+       (let [[stats] (jruby-core/instance-stats pool-context)]
+         (is (= (:id instance) (:id stats)))
+         (is (= 1 (:borrow-count stats)))
+         (is (<= 20 (:busy-time stats)))
+         (is (<= (:created-at stats) (:last-borrowed-at stats)))))
+     (testing "replacement instances record why their predecessor was retired"
+       (jruby-core/return-to-pool pool-context
+                                  (jruby-core/borrow-from-pool pool-context :test [])
+                                  :test [])
+       (let [deadline (+ (System/currentTimeMillis) 10000)]
+         (while (and (= [(:id instance)] (map :id (jruby-core/instance-stats pool-context)))
+                     (< (System/currentTimeMillis) deadline))
+           (Thread/sleep 10)))
+       (let [[stats] (jruby-core/instance-stats pool-context)]
+         (is (= {:id (:id instance) :reason :max-borrows :borrow-count 2
+                 :generation 0 :profile :default}
+                (:previous-retirement stats))))))))
+
+(deftest baseline-instance-internals-test
+  (jruby-testutils/with-pool-context
+   pool-context
+   jruby-testutils/default-services
+   (jruby-testutils/jruby-config
+    {:max-active-instances 1
+     :lifecycle {:initialize-pool-instance
+                 ;; Keeps only the internals an instance had before lifecycle
+                 ;; statistics were recorded
+                 #(update % :internal select-keys
+                          [:pool :initial-borrows :max-borrows :state])}})
+   (let [instance (jruby-core/borrow-from-pool pool-context :test [])]
+     (testing "an instance with only the baseline internals can be borrowed and returned"
+       (is (jruby-schemas/jruby-instance? instance))
+       (is (nil? (get-in instance [:internal :busy-time])))
+       (jruby-core/return-to-pool pool-context instance :test []))
+     (testing "its statistics leave out what it doesn't record"
+       (let [[stats] (jruby-core/instance-stats pool-context)]
+         (is (= 1 (:borrow-count stats)))
+         (is (not (contains? stats :busy-time)))
+         (is (not (contains? stats :profile)))))
+     (testing "its borrows count towards the default profile"
+       (is (= 1 (get-in (jruby-core/profile-stats pool-context) [:default :borrows])))))))
+
+(deftest pool-mbean-test
+  (let [object-name "puppetlabs.jruby-utils.test:type=JRubyPool"
+        server (ManagementFactory/getPlatformMBeanServer)]
+    (jruby-testutils/with-pool-context
+     pool-context
+     jruby-testutils/default-services
+     (jruby-testutils/jruby-config {:max-active-instances 2
+                                    :jmx-object-name object-name})
+     ;; Wait for the pool to be filled
+     (jruby-testutils/fill-drained-pool pool-context
+                                        (jruby-testutils/drain-pool pool-context 2))
+     (let [instances (.getAttribute server (ObjectName. object-name) "InstanceStatistics")
+           pool-stats (.getAttribute server (ObjectName. object-name) "PoolStatistics")]
+       (is (= (set (map :id (jruby-core/registered-instances pool-context)))
+              (set (map #(.get % "id") instances))))
+       (is (= 2 (.get pool-stats "registeredCount"))))
+     (testing "a second pool with the same object name is published under a name of its own"
+       (let [other-context (jruby-pool-manager-core/create-pool-context
+                            (jruby-testutils/jruby-config {:max-active-instances 1
+                                                           :jmx-object-name object-name}))
+             other-name @(get-in other-context [:internal :mbean-name])]
+         (try
+           (is (not= (ObjectName. object-name) other-name))
+           (is (.isRegistered server other-name))
+           (is (.isRegistered server (ObjectName. object-name)))
+           (finally
+             (jruby-internal/unregister-pool-mbean! other-context)))
+         (is (not (.isRegistered server other-name))))))
+    (testing "the MBean is unregistered when the pool is shut down"
+      (is (not (.isRegistered server (ObjectName. object-name)))))))
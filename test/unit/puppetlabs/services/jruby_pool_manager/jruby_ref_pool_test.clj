@@ -66,14 +66,18 @@
 
 
 (defn add-watch-for-flush-complete
+  "Returns a future which is realized once the JRubyInstance in the pool has
+  been replaced by a flush."
   [pool-context]
-  (let [flush-complete (promise)]
-    (add-watch (:borrow-count pool-context) :flush-callback
-               (fn [k a old-count new-count]
-                 (when (and (= k :flush-callback ) (< new-count old-count))
-                   (remove-watch a :flush-callback)
-                   (deliver flush-complete true))))
-    flush-complete))
+  (let [instance-id #(:id (first (jruby-core/registered-instances pool-context)))
+        old-id (instance-id)]
+    (future
+      (loop []
+        (let [new-id (instance-id)]
+          (if (and new-id (not= old-id new-id))
+            true
+            (do (Thread/sleep 10)
+                (recur))))))))
 
 (deftest flush-jruby-after-max-borrows
   (testing "JRubyInstance is not flushed if it has not exceeded max borrows"
@@ -160,6 +164,26 @@
           (pool-protocol/return pool-context instance2)
           (is @flush-complete))))))
 
+(deftest only-one-flush-scheduled-at-a-time
+  (testing "Returns past max borrows do not queue more flushes while one is pending"
+    (jruby-testutils/with-pool-context
+      pool-context
+      jruby-testutils/default-services
+      (jruby-test-config 1 5)
+      (let [instances (doall (repeatedly 4 #(first (pool-protocol/borrow pool-context))))
+            flush-complete (add-watch-for-flush-complete pool-context)
+            modify-instance-agent (jruby-agents/get-modify-instance-agent pool-context)]
+        ;; The last instance stays borrowed, so the flush triggered by the
+        ;; first return can't get the lock until it is returned
+        (doseq [instance (butlast instances)]
+          (pool-protocol/return pool-context instance))
+        (is (.get (:flush-scheduled pool-context)))
+        (is (<= (.getQueueCount modify-instance-agent) 1))
+        (is (not (realized? flush-complete)))
+        (pool-protocol/return pool-context (last instances))
+        (is @flush-complete)
+        (is (= 2 (:id (first (jruby-core/registered-instances pool-context)))))))))
+
 (deftest flush-times-out
   (testing "Attempt to flush times out if flush-timeout is reached"
     (jruby-testutils/with-pool-context
@@ -223,6 +247,25 @@
         (is (= "Lock can't be granted because a pill has been inserted"
                (.getMessage exception)))))))
 
+(deftest shutdown-prevents-flush-at-max-borrows
+  (testing "A return past max borrows during shutdown does not replace the instance"
+    (let [config (jruby-test-config 1 2)
+          pool-context (jruby-pool-manager-core/create-pool-context config)
+          _ (jruby-agents/prime-pool! pool-context)
+          pool (jruby-core/get-pool pool-context)
+          _ (jruby-testutils/wait-for-jrubies-from-pool-context pool-context)
+          instance (first (pool-protocol/borrow pool-context))
+          shutdown-complete? (promise)
+          _ (future
+              (pool-protocol/shutdown pool-context)
+              (deliver shutdown-complete? true))
+          _ (jruby-testutils/wait-for-pool-to-be-locked pool)]
+      (pool-protocol/return pool-context instance)
+      (is (true? (deref shutdown-complete? 10000 :timed-out)))
+      (await (jruby-agents/get-modify-instance-agent pool-context))
+      (testing "and no new instance is registered"
+        (is (empty? (.getRegisteredElements pool)))))))
+
 (deftest shutdown-times-out
   (testing "Attempt to shutdown times out if flush-timeout is reached"
     (let [config (jruby-test-config 3 1 {:flush-timeout 0})
@@ -0,0 +1,71 @@
+(ns puppetlabs.services.jruby-pool-manager.require-index-test
+  (:require [clojure.java.io :as io]
+            [clojure.test :refer :all]
+            [me.raynes.fs :as fs]
+            [schema.test :as schema-test]
+            [puppetlabs.services.jruby-pool-manager.jruby-testutils :as jruby-testutils]
+            [puppetlabs.services.jruby-pool-manager.impl.jruby-internal :as jruby-internal]
+            [puppetlabs.services.jruby-pool-manager.impl.require-index :as require-index]))
+
+(use-fixtures :once schema-test/validate-schemas)
+
+(defn- write-source!
+  [dir feature content]
+  (let [f (io/file dir (str feature ".rb"))]
+    (fs/mkdirs (.getParentFile f))
+    (spit f content)
+    f))
+
+(deftest build-index-test
+  (let [first-dir (fs/temp-dir "require-index-test")
+        second-dir (fs/temp-dir "require-index-test")]
+    (write-source! first-dir "lib/shared" "")
+    (write-source! second-dir "lib/shared" "")
+    (write-source! second-dir "lib/other" "")
+    (spit (io/file second-dir "lib" "compiled.class") "")
+    (let [index (require-index/build-index [(str first-dir) "uri:classloader:/lib" (str second-dir)])]
+      (testing "features are indexed by their path relative to the load path entry"
+        (is (= #{"lib/shared" "lib/other" "lib/compiled"} (set (keys index)))))
+      (testing "the first load path entry providing a feature wins"
+        (is (= (.getAbsolutePath (io/file first-dir "lib" "shared.rb"))
+               (get index "lib/shared"))))
+      (testing "compiled classes are indexed without their suffix"
+        (is (= (.getAbsolutePath (io/file second-dir "lib" "compiled"))
+               (get index "lib/compiled")))))))
+
+(deftest require-with-index-test
+  (let [load-dir (fs/temp-dir "require-index-test")
+        config (jruby-testutils/jruby-config {:ruby-load-path [(str load-dir)]
+                                              :require-index true})]
+    (write-source! load-dir "indexed/answer" "module IndexedAnswer; VALUE = 42; end")
+    (testing "indexed features are required from the indexed file"
+      (let [container (jruby-internal/create-scripting-container config)]
+        (try
+          (is (= 42 (.runScriptlet container "require 'indexed/answer'; IndexedAnswer::VALUE")))
+          (is (false? (.runScriptlet container "require 'indexed/answer.rb'")))
+          (finally
+            (.terminate container)))))
+    (testing "features added since the index was built are still found"
+      (write-source! load-dir "indexed/late" "module IndexedLate; VALUE = 1; end")
+      (let [container (jruby-internal/create-scripting-container config)]
+        (try
+          (is (= 1 (.runScriptlet container "require 'indexed/late'; IndexedLate::VALUE")))
+          (finally
+            (.terminate container)))))
+    (testing "features removed since the index was built raise a LoadError"
+      (fs/delete (io/file load-dir "indexed" "answer.rb"))
+      (let [container (jruby-internal/create-scripting-container config)]
+        (try
+          (is (= "LoadError"
+                 (.runScriptlet container
+                                "begin; require 'indexed/answer'; rescue LoadError => e; e.class.name; end")))
+          (finally
+            (.terminate container)))))
+    (testing "the index is rebuilt once it has been invalidated"
+      (write-source! load-dir "indexed/answer" "module IndexedAnswer; VALUE = 43; end")
+      (require-index/invalidate! config)
+      (let [container (jruby-internal/create-scripting-container config)]
+        (try
+          (is (= 43 (.runScriptlet container "require 'indexed/answer'; IndexedAnswer::VALUE")))
+          (finally
+            (.terminate container)))))))
@@ -0,0 +1,90 @@
+(ns puppetlabs.services.jruby-pool-manager.shared-data-test
+  (:require [clojure.test :refer :all]
+            [me.raynes.fs :as fs]
+            [puppetlabs.kitchensink.core :as ks]
+            [schema.test :as schema-test]
+            [puppetlabs.services.jruby-pool-manager.jruby-core :as jruby-core]
+            [puppetlabs.services.jruby-pool-manager.jruby-testutils :as jruby-testutils]
+            [puppetlabs.services.jruby-pool-manager.impl.shared-data :as shared-data])
+  (:import (com.puppetlabs.jruby_utils.pool SharedDataStore)
+           (java.io IOException)
+           (java.nio ByteBuffer)))
+
+(use-fixtures :once schema-test/validate-schemas)
+
+(def read-entry
+  "Ruby which reads the whole of an entry of the shared data as a String."
+  (str "def read_entry(name); "
+       "b = $jruby_shared_data.get(name); "
+       "bytes = Java::byte[b.remaining].new; "
+       "b.get(bytes); "
+       "String.from_java_bytes(bytes); "
+       "end"))
+
+(defn- temp-file
+  [contents]
+  (let [path (str (ks/temp-file-name "shared-data"))]
+    (spit path contents)
+    path))
+
+(defn- entry-string
+  [^ByteBuffer buffer]
+  (let [bytes (byte-array (.remaining buffer))]
+    (.get buffer bytes)
+    (String. bytes "UTF-8")))
+
+(deftest shared-data-store-test
+  (let [greeting (temp-file "hello")
+        farewell (temp-file "goodbye")
+        store (shared-data/create-store {:greeting greeting})]
+    (testing "entries are read from the mapped files"
+      (is (= 1 (.getGeneration store)))
+      (is (= "hello" (entry-string (.get store "greeting"))))
+      (is (nil? (.get store "farewell"))))
+    (testing "each read has a position of its own"
+      (.get (.get store "greeting"))
+      (is (= 5 (.remaining (.get store "greeting")))))
+    (testing "refreshing replaces every entry at once"
+      (let [before (.current store)]
+        (is (= 2 (shared-data/refresh! store {"farewell" farewell})))
+        (is (= #{"farewell"} (set (.getNames (.current store)))))
+        (testing "while a generation taken before keeps its entries"
+          (is (= "hello" (entry-string (.get before "greeting")))))))
+    (testing "a refresh which fails keeps the current entries"
+      (is (thrown? IOException
+                   (shared-data/refresh! store {"missing" (str farewell ".missing")})))
+      (is (= 2 (.getGeneration store)))
+      (is (= "goodbye" (entry-string (.get store "farewell")))))
+    (fs/delete greeting)
+    (fs/delete farewell)))
+
+(deftest shared-data-pool-test
+  (let [greeting (temp-file "hello")
+        replacement (temp-file "bonjour")]
+    (jruby-testutils/with-pool-context
+     pool-context
+     jruby-testutils/default-services
+     (jruby-testutils/jruby-config {:max-active-instances 2
+                                    :shared-data-files {:greeting greeting}})
+     (let [read-greeting (fn []
+                           (jruby-core/with-jruby-instance jruby-instance pool-context :test
+                             (.runScriptlet (:scripting-container jruby-instance) read-entry)
+                             (.runScriptlet (:scripting-container jruby-instance)
+                                            "read_entry('greeting')")))]
+       (jruby-testutils/wait-for-jrubies-from-pool-context pool-context)
+       (testing "the store is kept out of the pool's config"
+         (is (not (contains? (:config pool-context) :shared-data)))
+         (is (instance? SharedDataStore (jruby-core/shared-data pool-context))))
+       (testing "every instance reads the entries of the pool's store"
+         (is (= ["hello" "hello"]
+                (->> (jruby-core/registered-instances pool-context)
+                     (map (fn [instance]
+                            (.runScriptlet (:scripting-container instance) read-entry)
+                            (.runScriptlet (:scripting-container instance)
+                                           "read_entry('greeting')")))
+                     vec))))
+       (testing "instances see refreshed entries without being flushed"
+         (is (= 2 (jruby-core/refresh-shared-data! pool-context {:greeting replacement})))
+         (is (= "bonjour" (read-greeting))))))
+    (fs/delete greeting)
+    (fs/delete replacement)))
@@ -0,0 +1,95 @@
+(ns puppetlabs.services.jruby-pool-manager.tracing-test
+  (:require [clojure.test :refer :all]
+            [me.raynes.fs :as fs]
+            [puppetlabs.kitchensink.core :as ks]
+            [schema.test :as schema-test]
+            [puppetlabs.services.jruby-pool-manager.jruby-core :as jruby-core]
+            [puppetlabs.services.jruby-pool-manager.jruby-testutils :as jruby-testutils]
+            [puppetlabs.services.jruby-pool-manager.impl.tracing :as tracing]
+            [puppetlabs.services.protocols.span-tracer :as tracer-protocol])
+  (:import (java.io Closeable)))
+
+(use-fixtures :once schema-test/validate-schemas)
+
+(defn- spans-by-name
+  [spans]
+  (into {} (map (juxt :name identity) spans)))
+
+(deftest file-tracer-test
+  (let [path (str (ks/temp-file-name "spans"))
+        tracer (tracing/file-tracer path)]
+    (try
+      (jruby-testutils/with-pool-context
+       pool-context
+       jruby-testutils/default-services
+       (jruby-testutils/jruby-config {:max-active-instances 1})
+       (jruby-core/register-tracer pool-context tracer)
+       (jruby-core/with-jruby-instance jruby-instance pool-context :test-borrow
+         (Thread/sleep 20))
+       (jruby-core/with-lock pool-context :test-lock
+         (Thread/sleep 10))
+       (jruby-core/register-tracer pool-context nil)
+       (jruby-core/with-jruby-instance jruby-instance pool-context :untraced
+         nil))
+      (finally
+        (.close ^Closeable tracer)))
+    (let [spans (tracing/read-spans path)
+          by-name (spans-by-name spans)
+          id-of #(get-in by-name [% :id])]
+      (testing "each span is written once it ends"
+        (is (= ["jruby.borrow" "jruby.execute" "jruby.instance"
+                "jruby.lock-wait" "jruby.locked" "jruby.lock"]
+               (map :name spans))))
+      (testing "spans within the borrow and lock macros are their children"
+        (is (nil? (get-in by-name ["jruby.instance" :parent-id])))
+        (is (= (id-of "jruby.instance") (get-in by-name ["jruby.borrow" :parent-id])))
+        (is (= (id-of "jruby.instance") (get-in by-name ["jruby.execute" :parent-id])))
+        (is (nil? (get-in by-name ["jruby.lock" :parent-id])))
+        (is (= (id-of "jruby.lock") (get-in by-name ["jruby.lock-wait" :parent-id])))
+        (is (= (id-of "jruby.lock") (get-in by-name ["jruby.locked" :parent-id]))))
+      (testing "borrow spans have the reason, queue position, worker and generation"
+        (is (= {:reason :test-borrow
+                :queue-position 0
+                :worker-id 1
+                :instance-id 1
+                :instance-generation 0}
+               (get-in by-name ["jruby.borrow" :attributes]))))
+      (testing "spans are timed"
+        (is (<= 20000000 (get-in by-name ["jruby.execute" :duration-nanos])))
+        (is (<= 10000000 (get-in by-name ["jruby.locked" :duration-nanos]))))
+      (testing "nothing is traced once the tracer is unregistered"
+        (is (not-any? #(= :untraced (get-in % [:attributes :reason])) spans))))
+    (fs/delete path)))
+
+(deftest instance-generation-test
+  (jruby-testutils/with-pool-context
+   pool-context
+   jruby-testutils/default-services
+   (jruby-testutils/jruby-config {:max-active-instances 2})
+   (let [generations #(jruby-core/with-jruby-instance jruby-instance pool-context :test
+                        [(:id jruby-instance) (tracing/instance-generation jruby-instance)])]
+     (jruby-testutils/wait-for-jrubies-from-pool-context pool-context)
+     (testing "the instances the pool is filled with are the first generation"
+       (is (= 0 (second (generations)))))
+     (testing "each replacement is the next generation, whatever its id"
+       (jruby-core/flush-pool! pool-context)
+       (is (= 1 (second (generations))))
+       (jruby-core/flush-pool! pool-context)
+       (let [[id generation] (generations)]
+         (is (= 2 generation))
+         (is (not= generation (quot (dec id) 2))))))))
+
+(deftest failing-tracer-test
+  (let [tracer (reify tracer-protocol/SpanTracer
+                 (start-span [_ _ _ _]
+                   (throw (IllegalStateException. "tracer broke")))
+                 (end-span [_ _ _]
+                   nil))]
+    (jruby-testutils/with-pool-context
+     pool-context
+     jruby-testutils/default-services
+     (jruby-testutils/jruby-config {:max-active-instances 1})
+     (jruby-core/register-tracer pool-context tracer)
+     (testing "a tracer which throws doesn't stop instances being borrowed"
+       (is (= :done (jruby-core/with-jruby-instance jruby-instance pool-context :test
+                      :done)))))))